@@ -98,6 +98,7 @@ public class WebRTCallActivity extends Activity
     private IncomingCallFragment incomingCallFragment;
 
     private WebRTCat webrtcat;
+    private WebRTCatParams webrtcatParams;
     private boolean callControlFragmentVisible;
 
     private String callerName;
@@ -273,6 +274,11 @@ public class WebRTCallActivity extends Activity
     @Override
     protected void onDestroy() {
         webrtcat.disconnect(WebRTCat.DisconnectReason.CLIENT_SHUTDOWN);
+        // Leaves the room pre-joined on the incoming call notification if connect() never took it.
+        // Only the pre-join of this call's room: a newer call may have pre-joined another one.
+        if (webrtcatParams != null) {
+            WebRTCat.cancelPrejoin(webrtcatParams);
+        }
         super.onDestroy();
     }
 
@@ -336,7 +342,7 @@ public class WebRTCallActivity extends Activity
             return;
         }
 
-        WebRTCatParams webrtcatParams = new WebRTCatParams(roomUri.toString(), roomId);
+        webrtcatParams = new WebRTCatParams(roomUri.toString(), roomId);
         webrtcatParams.setAudioCodec(intent.getStringExtra(WebRTCallActivity.EXTRA_AUDIOCODEC));
         webrtcatParams.setAudioStartingBitrate(intent.getIntExtra(WebRTCallActivity.EXTRA_AUDIO_BITRATE, 0));
         webrtcatParams.setVideoCodec(intent.getStringExtra(WebRTCallActivity.EXTRA_VIDEOCODEC));
@@ -422,6 +428,7 @@ public class WebRTCallActivity extends Activity
     public void onCallConnected() {
         isCallConnected = true;
         Log.i(WebRTConstants.LOG_TAG, "Call connected!");
+        Log.i(WebRTConstants.LOG_TAG, "Call setup: " + webrtcat.getCallSetupTimeline());
     }
 
     @Override
@@ -6,6 +6,9 @@ import android.util.Log;
 
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
+import net.i2cat.seg.webrtcat4.WebRTCat;
+import net.i2cat.seg.webrtcat4.WebRTCatParams;
+import net.i2cat.seg.webrtcat4.sampleapp.WebRTCatUserManager;
 import net.i2cat.seg.webrtcat4.sampleapp.util.AndroidUtils;
 import net.i2cat.seg.webrtcat4.sampleapp.util.HttpClientUtils;
 import net.i2cat.seg.webrtcat4.sampleapp.util.JSONUtils;
@@ -62,6 +65,7 @@ public class WebRTCatMessagingService extends FirebaseMessagingService {
                 }
             }
             if (startIncomingCall) {
+                prejoinRoom(bundle);
                 WebRTCallActivity.startIncomingCall(this, bundle);
             }
         }
@@ -106,6 +110,18 @@ public class WebRTCatMessagingService extends FirebaseMessagingService {
         });
     }
 
+    // Starts joining the call room while the call activity starts and the phone rings,
+    // so that the call can be answered without waiting for signaling. The activity takes
+    // over the joined room when it connects.
+    private void prejoinRoom(Bundle bundle) {
+        String roomName = bundle.getString("roomName");
+        if (roomName == null) {
+            return;
+        }
+        WebRTCatParams params = new WebRTCatParams(WebRTConstants.getWebRTCat4ServerURL(), roomName);
+        WebRTCat.prejoin(this, params, WebRTCatUserManager.getSavedUsername(this));
+    }
+
     private Bundle toBundle(RemoteMessage remoteMessage) {
         Bundle remoteMessageBundle = new Bundle();
         if (remoteMessage.getData() != null) {
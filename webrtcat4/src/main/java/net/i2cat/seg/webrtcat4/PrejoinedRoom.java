@@ -0,0 +1,248 @@
+package net.i2cat.seg.webrtcat4;
+
+import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.util.AppLog;
+import org.appspot.apprtc.util.LooperExecutor;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A room join started ahead of WebRTCat.connect(), e.g. while an incoming call rings.
+ *
+ * <p>The WebRTCatClient held here joins the room, fetches the TURN credentials and
+ * registers on the WebSocket server right away. The signaling events it raises are
+ * queued until connect() adopts the client, and are then replayed in order. A
+ * pre-join that is not adopted before its timeout, or that is cancelled, leaves the
+ * room. There is at most one pre-join at a time.
+ */
+class PrejoinedRoom {
+    private static final String TAG = "PrejoinedRoom";
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private static PrejoinedRoom current;
+
+    private final String roomServerUri;
+    private final String roomName;
+    private final String username;
+    private final List<Object> clientConfig;
+    private final LooperExecutor executor = new LooperExecutor();
+    private final QueuedSignalingEvents events = new QueuedSignalingEvents();
+    private final WebRTCatClient client;
+    private ScheduledFuture<?> timeout;
+
+    private PrejoinedRoom(WebRTCatParams params, String username) {
+        this.roomServerUri = params.getRoomServerUri();
+        this.roomName = params.getRoomName();
+        this.username = username;
+        this.clientConfig = WebRTCat.clientConfig(params);
+        client = new WebRTCatClient(events, executor, username);
+        WebRTCat.configureClient(client, params);
+    }
+
+    /**
+     * Joins the room of |params| as |username|, replacing any previous pre-join. The
+     * room is left if start() is not followed by a matching take() within |timeoutMs|.
+     */
+    static void start(WebRTCatParams params, String username, long timeoutMs) {
+        final PrejoinedRoom room = new PrejoinedRoom(params, username);
+        PrejoinedRoom previous;
+        synchronized (PrejoinedRoom.class) {
+            previous = current;
+            current = room;
+            room.timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (remove(room)) {
+                        AppLog.d(TAG, "Pre-join of room {} timed out", room.roomName);
+                        room.leave(WebRTCat.DisconnectReason.CLIENT_SHUTDOWN);
+                        WebRTCatPeerConnectionClient.getInstance().discardPrewarmedFactory();
+                    }
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        if (previous != null) {
+            previous.timeout.cancel(false);
+            previous.leave(WebRTCat.DisconnectReason.CLIENT_SHUTDOWN);
+        }
+        AppLog.d(TAG, "Pre-joining room {}", room.roomName);
+        room.client.connectToRoom(new RoomConnectionParameters(room.roomServerUri, room.roomName, false));
+    }
+
+    /**
+     * Returns the pre-join of the room of |params| made as |username| and hands it
+     * over to the caller, or returns null if there is none. A pre-join of that room
+     * whose client was configured with other settings than |params| is left instead,
+     * so that the caller joins again with its own settings.
+     */
+    static synchronized PrejoinedRoom take(WebRTCatParams params, String username) {
+        PrejoinedRoom room = current;
+        if (room == null || !room.isForRoom(params)
+                || !(room.username == null ? username == null : room.username.equals(username))) {
+            return null;
+        }
+        room.timeout.cancel(false);
+        current = null;
+        if (!room.clientConfig.equals(WebRTCat.clientConfig(params))) {
+            AppLog.w(TAG, "Not using pre-joined room {}: client settings differ", room.roomName);
+            room.leave(WebRTCat.DisconnectReason.CLIENT_SHUTDOWN);
+            return null;
+        }
+        return room;
+    }
+
+    /**
+     * Leaves the room of the pending pre-join, if any and, when |params| is not null,
+     * if it is for the room of |params|; e.g. after the call is rejected.
+     */
+    static void cancel(WebRTCatParams params) {
+        PrejoinedRoom room;
+        synchronized (PrejoinedRoom.class) {
+            room = current;
+            if (room == null || (params != null && !room.isForRoom(params))) {
+                return;
+            }
+            current = null;
+        }
+        room.timeout.cancel(false);
+        room.leave(WebRTCat.DisconnectReason.CALL_REJECT);
+        WebRTCatPeerConnectionClient.getInstance().discardPrewarmedFactory();
+    }
+
+    private static synchronized boolean remove(PrejoinedRoom room) {
+        if (current != room) {
+            return false;
+        }
+        current = null;
+        return true;
+    }
+
+    private boolean isForRoom(WebRTCatParams params) {
+        return roomServerUri.equals(params.getRoomServerUri()) && roomName.equals(params.getRoomName());
+    }
+
+    WebRTCatClient getClient() {
+        return client;
+    }
+
+    /** Delivers the queued signaling events to |target|, followed by any later ones. */
+    void attach(final WebRTCatClient.SignalingEvents target) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                events.attach(target);
+            }
+        });
+    }
+
+    private void leave(final WebRTCat.DisconnectReason reason) {
+        // disconnectFromRoom() sends the LEAVE message if the join completed.
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                client.setDisconnectReason(reason);
+                client.disconnectFromRoom();
+            }
+        });
+    }
+
+    // Queues signaling events until a target is attached. All methods run on the
+    // client's looper thread.
+    private static class QueuedSignalingEvents implements WebRTCatClient.SignalingEvents {
+        private WebRTCatClient.SignalingEvents target;
+        private final List<Runnable> queued = new ArrayList<Runnable>();
+
+        void attach(WebRTCatClient.SignalingEvents target) {
+            this.target = target;
+            for (Runnable event : queued) {
+                event.run();
+            }
+            queued.clear();
+        }
+
+        private void deliver(Runnable event) {
+            if (target != null) {
+                event.run();
+            } else {
+                queued.add(event);
+            }
+        }
+
+        @Override
+        public void onConnectedToRoom(final SignalingParameters params) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    target.onConnectedToRoom(params);
+                }
+            });
+        }
+
+        @Override
+        public void onRemoteDescription(final SessionDescription sdp) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    target.onRemoteDescription(sdp);
+                }
+            });
+        }
+
+        @Override
+        public void onRemoteIceCandidate(final IceCandidate candidate) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    target.onRemoteIceCandidate(candidate);
+                }
+            });
+        }
+
+        @Override
+        public void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    target.onRemoteIceCandidatesRemoved(candidates);
+                }
+            });
+        }
+
+        @Override
+        public void onChannelClose() {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    target.onChannelClose();
+                }
+            });
+        }
+
+        @Override
+        public void onChannelError(final String description) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    target.onChannelError(description);
+                }
+            });
+        }
+
+        @Override
+        public void onChannelError(final String description, final WebRTCatErrorCode errorCode) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    target.onChannelError(description, errorCode);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package net.i2cat.seg.webrtcat4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import static net.i2cat.seg.webrtcat4.WebRTUtils.jsonPut;
+
+/**
+ * Binary WebSocket frames for the messages exchanged with the other client, an
+ * alternative to the JSON text envelopes.
+ *
+ * <p>The client asks for them by adding "frames":"b1" to its register message. A server
+ * that supports them answers with a HELLO frame; from then on the client sends binary
+ * frames, and until then, or with a server that ignores the field, text. Frames received
+ * from the server are accepted at any time.
+ *
+ * <p>A frame is a magic byte (0xB1), a type byte and a body. Integers are unsigned LEB128
+ * varints unless noted, and strings are a varint byte length followed by UTF-8.
+ * <ul>
+ * <li>HELLO (0): no body.
+ * <li>CANDIDATE (1): label, id, then a candidate line: either a 0 byte and the line as a
+ * string, or a 1 byte and its fields: foundation (string), component, transport (byte: 0
+ * udp, 1 tcp), priority (4 bytes), address, port (2 bytes), type (byte: 0 host, 1 srflx,
+ * 2 prflx, 3 relay), a byte set to 1 if the related address and port follow, and the
+ * remaining attributes (string). An address is a 4 byte and an IPv4 address, or a 0 byte
+ * and a string.
+ * <li>SDP (2): type (byte: 0 offer, 1 answer), sdp (string).
+ * <li>JSON (3): any other message, as its JSON text (string).
+ * </ul>
+ * A candidate or offer/answer with other keys than those above, or with values of
+ * other types, is sent as JSON so that nothing is lost.
+ * Multi-byte fixed-size integers are big-endian.
+ */
+final class SignalingFrameCodec {
+    static final String FORMAT = "b1";
+
+    private static final int MAGIC = 0xB1;
+    private static final int TYPE_HELLO = 0;
+    private static final int TYPE_CANDIDATE = 1;
+    private static final int TYPE_SDP = 2;
+    private static final int TYPE_JSON = 3;
+
+    private static final String[] TRANSPORTS = {"udp", "tcp"};
+    private static final String[] CANDIDATE_TYPES = {"host", "srflx", "prflx", "relay"};
+
+    private SignalingFrameCodec() {
+    }
+
+    /** Encodes |message|, the JSON text of a message to the other client, as a frame. */
+    static byte[] encode(String message) throws JSONException {
+        JSONObject json = new JSONObject(message);
+        String type = json.optString("type");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(message.length() / 2 + 16);
+        out.write(MAGIC);
+        if (type.equals("candidate") && isCandidate(json)) {
+            out.write(TYPE_CANDIDATE);
+            writeVarint(out, json.getInt("label"));
+            writeString(out, json.getString("id"));
+            writeCandidate(out, json.getString("candidate"));
+        } else if ((type.equals("offer") || type.equals("answer"))
+                && json.length() == 2 && json.opt("sdp") instanceof String) {
+            out.write(TYPE_SDP);
+            out.write(type.equals("offer") ? 0 : 1);
+            writeString(out, json.getString("sdp"));
+        } else {
+            out.write(TYPE_JSON);
+            writeString(out, message);
+        }
+        return out.toByteArray();
+    }
+
+    // Whether |json| holds exactly the fields of a CANDIDATE frame, with their types.
+    private static boolean isCandidate(JSONObject json) {
+        Object label = json.opt("label");
+        return json.length() == 4
+            && (label instanceof Integer || label instanceof Long)
+            && ((Number) label).longValue() >= 0
+            && ((Number) label).longValue() <= Integer.MAX_VALUE
+            && json.opt("id") instanceof String
+            && json.opt("candidate") instanceof String;
+    }
+
+    static boolean isHello(byte[] frame) {
+        return frame.length >= 2 && (frame[0] & 0xff) == MAGIC && frame[1] == TYPE_HELLO;
+    }
+
+    /** Decodes a frame other than HELLO into the JSON text of the message it carries. */
+    static String decode(byte[] frame) throws IOException {
+        Reader in = new Reader(frame);
+        if (in.readByte() != MAGIC) {
+            throw new IOException("Not a signaling frame");
+        }
+        int type = in.readByte();
+        JSONObject json;
+        switch (type) {
+            case TYPE_CANDIDATE:
+                json = new JSONObject();
+                jsonPut(json, "type", "candidate");
+                jsonPut(json, "label", in.readVarint());
+                jsonPut(json, "id", in.readString());
+                jsonPut(json, "candidate", readCandidate(in));
+                break;
+            case TYPE_SDP:
+                json = new JSONObject();
+                jsonPut(json, "type", (in.readByte() == 0) ? "offer" : "answer");
+                jsonPut(json, "sdp", in.readString());
+                break;
+            case TYPE_JSON:
+                return in.readString();
+            default:
+                throw new IOException("Unknown signaling frame type " + type);
+        }
+        return json.toString();
+    }
+
+    // Writes the fields of |candidate| if it is a well-formed candidate line that they
+    // reproduce exactly, else the line itself.
+    private static void writeCandidate(ByteArrayOutputStream out, String candidate) {
+        ByteArrayOutputStream fields = new ByteArrayOutputStream(candidate.length() / 2);
+        if (writeCandidateFields(fields, candidate)) {
+            out.write(1);
+            out.write(fields.toByteArray(), 0, fields.size());
+        } else {
+            out.write(0);
+            writeString(out, candidate);
+        }
+    }
+
+    // "candidate:<foundation> <component> <transport> <priority> <address> <port>
+    //  typ <type> [raddr <address> rport <port>] [<attributes>]"
+    private static boolean writeCandidateFields(ByteArrayOutputStream out, String candidate) {
+        if (!candidate.startsWith("candidate:")) {
+            return false;
+        }
+        String[] tokens = candidate.substring("candidate:".length()).split(" ", -1);
+        if (tokens.length < 8 || !tokens[6].equals("typ")) {
+            return false;
+        }
+        int transport = indexOf(TRANSPORTS, tokens[2]);
+        int candidateType = indexOf(CANDIDATE_TYPES, tokens[7]);
+        long component = parseUnsigned(tokens[1], Integer.MAX_VALUE);
+        long priority = parseUnsigned(tokens[3], 0xffffffffL);
+        long port = parseUnsigned(tokens[5], 0xffff);
+        if (transport < 0 || candidateType < 0 || component < 0 || priority < 0 || port < 0) {
+            return false;
+        }
+        int next = 8;
+        long relatedPort = -1;
+        if (tokens.length >= 12 && tokens[8].equals("raddr") && tokens[10].equals("rport")) {
+            relatedPort = parseUnsigned(tokens[11], 0xffff);
+            if (relatedPort < 0) {
+                return false;
+            }
+            next = 12;
+        }
+        StringBuilder attributes = new StringBuilder();
+        for (int i = next; i < tokens.length; i++) {
+            if (i > next) {
+                attributes.append(' ');
+            }
+            attributes.append(tokens[i]);
+        }
+        if (next < tokens.length && attributes.length() == 0) {
+            // A trailing space would be lost.
+            return false;
+        }
+
+        writeString(out, tokens[0]);
+        writeVarint(out, component);
+        out.write(transport);
+        writeFixed(out, priority, 4);
+        writeAddress(out, tokens[4]);
+        writeFixed(out, port, 2);
+        out.write(candidateType);
+        if (relatedPort >= 0) {
+            out.write(1);
+            writeAddress(out, tokens[9]);
+            writeFixed(out, relatedPort, 2);
+        } else {
+            out.write(0);
+        }
+        writeString(out, attributes.toString());
+        return true;
+    }
+
+    private static String readCandidate(Reader in) throws IOException {
+        if (in.readByte() == 0) {
+            return in.readString();
+        }
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("candidate:").append(in.readString());
+        sb.append(' ').append(in.readVarint());
+        sb.append(' ').append(lookup(TRANSPORTS, in.readByte()));
+        sb.append(' ').append(in.readFixed(4));
+        sb.append(' ').append(readAddress(in));
+        sb.append(' ').append(in.readFixed(2));
+        sb.append(" typ ").append(lookup(CANDIDATE_TYPES, in.readByte()));
+        if (in.readByte() == 1) {
+            sb.append(" raddr ").append(readAddress(in));
+            sb.append(" rport ").append(in.readFixed(2));
+        }
+        String attributes = in.readString();
+        if (attributes.length() > 0) {
+            sb.append(' ').append(attributes);
+        }
+        return sb.toString();
+    }
+
+    // IPv4 addresses in canonical dotted form take 4 bytes, anything else (IPv6, mDNS
+    // host names) is kept as text.
+    private static void writeAddress(ByteArrayOutputStream out, String address) {
+        String[] parts = address.split("\\.", -1);
+        byte[] ipv4 = (parts.length == 4) ? new byte[4] : null;
+        for (int i = 0; ipv4 != null && i < 4; i++) {
+            long part = parseUnsigned(parts[i], 255);
+            if (part < 0 || !Long.toString(part).equals(parts[i])) {
+                ipv4 = null;
+            } else {
+                ipv4[i] = (byte) part;
+            }
+        }
+        if (ipv4 != null) {
+            out.write(4);
+            out.write(ipv4, 0, 4);
+        } else {
+            out.write(0);
+            writeString(out, address);
+        }
+    }
+
+    private static String readAddress(Reader in) throws IOException {
+        int kind = in.readByte();
+        if (kind == 0) {
+            return in.readString();
+        }
+        if (kind != 4) {
+            throw new IOException("Unknown address kind " + kind);
+        }
+        return in.readByte() + "." + in.readByte() + "." + in.readByte() + "." + in.readByte();
+    }
+
+    // Parses a decimal number without sign or leading zeros. Returns -1 if |s| is not
+    // one or exceeds |max|.
+    private static long parseUnsigned(String s, long max) {
+        if (s.isEmpty() || s.length() > 10 || (s.length() > 1 && s.charAt(0) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return (value <= max) ? value : -1;
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String lookup(String[] values, int index) throws IOException {
+        if (index >= values.length) {
+            throw new IOException("Unknown value " + index);
+        }
+        return values[index];
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeFixed(ByteArrayOutputStream out, long value, int bytes) {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static class Reader {
+        private final byte[] frame;
+        private int position;
+
+        Reader(byte[] frame) {
+            this.frame = frame;
+        }
+
+        int readByte() throws IOException {
+            if (position >= frame.length) {
+                throw new IOException("Truncated signaling frame");
+            }
+            return frame[position++] & 0xff;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in signaling frame");
+        }
+
+        long readFixed(int bytes) throws IOException {
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        String readString() throws IOException {
+            long length = readVarint();
+            if (length > frame.length - position) {
+                throw new IOException("Truncated signaling frame");
+            }
+            String value = new String(frame, position, (int) length, "UTF-8");
+            position += (int) length;
+            return value;
+        }
+    }
+}
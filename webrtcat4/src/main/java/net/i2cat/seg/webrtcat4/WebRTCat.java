@@ -1,9 +1,11 @@
 package net.i2cat.seg.webrtcat4;
 
 import android.app.Activity;
+import android.content.Context;
 import android.net.Uri;
-import android.util.Log;
 
+import net.i2cat.seg.webrtcat4.stats.CallSetupTimeline;
+import net.i2cat.seg.webrtcat4.stats.HttpTimingStats;
 import net.i2cat.seg.webrtcat4.stats.WebRTCAudioStats;
 import net.i2cat.seg.webrtcat4.stats.WebRTCMediaStats;
 import net.i2cat.seg.webrtcat4.stats.WebRTCVideoStats;
@@ -14,16 +16,30 @@ import org.appspot.apprtc.AppRTCClient;
 import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.PercentFrameLayout;
+import org.appspot.apprtc.RoomConfigCache;
+import org.appspot.apprtc.TurnCredentialCache;
+import org.appspot.apprtc.util.AppLog;
+import org.appspot.apprtc.util.AsyncHttpExecutor;
+import org.appspot.apprtc.util.AsyncHttpURLConnection;
+import org.appspot.apprtc.util.HostPrewarmer;
+import org.appspot.apprtc.util.HttpConnectionManager;
+import org.appspot.apprtc.util.HttpTimingListener;
 import org.appspot.apprtc.util.LooperExecutor;
+import org.appspot.apprtc.util.StreamUtils;
+import org.json.JSONException;
 import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.SessionDescription;
 import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class WebRTCat {
 
@@ -31,6 +47,8 @@ public class WebRTCat {
 
     // Peer connection statistics callback period in ms.
     private static final int STAT_CALLBACK_PERIOD = 1000;
+    // Stats reports are logged at most this often.
+    private static final int STAT_LOG_PERIOD = 10000;
     // Local preview screen position before call is connected.
     private static final int LOCAL_X_CONNECTING = 0;
     private static final int LOCAL_Y_CONNECTING = 0;
@@ -41,6 +59,8 @@ public class WebRTCat {
     private static final int LOCAL_Y_CONNECTED = 72;
     private static final int LOCAL_WIDTH_CONNECTED = 25;
     private static final int LOCAL_HEIGHT_CONNECTED = 25;
+    // Time a pre-joined room is kept waiting for connect() before it is left.
+    public static final long DEFAULT_PREJOIN_TIMEOUT_MS = 60000;
     // Remote video screen position
     private static final int REMOTE_X = 0;
     private static final int REMOTE_Y = 0;
@@ -77,6 +97,7 @@ public class WebRTCat {
     private boolean iceConnected;
     private boolean isError;
     private long callStartedTimeMs = 0;
+    private CallSetupTimeline callSetupTimeline;
     // The current state of this object. This should not be referenced directly;
     // instead use getState() to read or transitionState() to write
     private WebRTCatState webrtcatState;
@@ -86,6 +107,9 @@ public class WebRTCat {
     private Executor cleanupExecutor = Executors.newSingleThreadScheduledExecutor();
     private Long lastCallStartTime;
     private WebRTStats lastStats;
+    // Per-endpoint phase timings of the signaling HTTP requests of the current call.
+    private final HttpTimingStats httpTimingStats = new HttpTimingStats();
+    private final AppLog.Sampler statsLogSampler = new AppLog.Sampler(STAT_LOG_PERIOD);
     // If true, indicates that this object was connected (i.e. was in state=READY) at least once.
     // Used to distinguish between legitimate programming errors or callbacks being invoked after we have already disconnected, for example.
     private boolean wasConnected;
@@ -108,6 +132,7 @@ public class WebRTCat {
         this.owningActivity = owningActivity;
         this.callbacks = callbacks;
         this.webrtcatState = WebRTCatState.DISCONNECTED;
+        AppLog.configure(owningActivity);
     }
 
     public void muteVideo() {
@@ -153,7 +178,7 @@ public class WebRTCat {
 
     public void connect(WebRTCatParams webrtcatParams) {
         if (getState() != WebRTCatState.DISCONNECTED) {
-            Log.e(TAG, "This method can only be called in state " + WebRTCatState.DISCONNECTED + " (current state is " + getState() + ")");
+            AppLog.e(TAG, "This method can only be called in state " + WebRTCatState.DISCONNECTED + " (current state is " + getState() + ")");
             callbacks.onError(WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
         }
         iceConnected = false;
@@ -171,24 +196,190 @@ public class WebRTCat {
         );
         // Store existing audio settings and change audio mode to
         // MODE_IN_COMMUNICATION for best possible VoIP performance.
-        Log.d(TAG, "Initializing the audio manager...");
+        AppLog.d(TAG, "Initializing the audio manager...");
         audioManager.init();
 
-        // Create connection client and connection parameters.
-        appRtcClient = new WebRTCatClient(new SignallingEventHandler(), new LooperExecutor(), username);
+        configureHttp(webrtcatParams);
+        // Connection reuse counters and request timings are reported per call.
+        HttpConnectionManager.getInstance().resetStats();
+        HostPrewarmer.getInstance().resetStats();
+        httpTimingStats.reset();
+        // The manager is process-wide: the listener is removed on disconnect or error so
+        // that it does not keep this instance reachable.
+        HttpConnectionManager.getInstance().addTimingListener(httpTimingStats);
+        try {
+            connectInternal(webrtcatParams);
+        } catch (RuntimeException e) {
+            HttpConnectionManager.getInstance().removeTimingListener(httpTimingStats);
+            throw e;
+        }
+    }
+
+    private void connectInternal(WebRTCatParams webrtcatParams) {
+        // Create connection client and connection parameters, or adopt the client of a
+        // matching pre-join.
+        PrejoinedRoom prejoinedRoom = PrejoinedRoom.take(webrtcatParams, username);
+        if (prejoinedRoom != null) {
+            AppLog.d(TAG, "Using pre-joined room {}", webrtcatParams.getRoomName());
+            appRtcClient = prejoinedRoom.getClient();
+        } else {
+            appRtcClient = new WebRTCatClient(new SignallingEventHandler(), new LooperExecutor(), username);
+            configureClient((WebRTCatClient)appRtcClient, webrtcatParams);
+        }
+        callSetupTimeline = ((WebRTCatClient)appRtcClient).getCallSetupTimeline();
         roomConnectionParameters = new RoomConnectionParameters(webrtcatParams.getRoomServerUri(),
                                                                 webrtcatParams.getRoomName(),
                                                                 false);
 
         peerConnectionClient = WebRTCatPeerConnectionClient.getInstance();
+        peerConnectionClient.setCallSetupTimeline(callSetupTimeline);
         peerConnectionClient.createPeerConnectionFactory(owningActivity, webrtcatParams.getPCParameters(),
                                                          new PeerConnectionEventHandler());
+        // With the configuration of an earlier join to this room server, start ICE gathering
+        // while the join request is in flight.
+        prepareFromCachedConfig(webrtcatParams.getRoomServerUri());
         isAudioEnabled = true;
 
         callStartedTimeMs = System.currentTimeMillis();
 
-        // Start room connection.
-        appRtcClient.connectToRoom(roomConnectionParameters);
+        // Start room connection. A pre-joined room replays the signaling events it got so far.
+        if (prejoinedRoom != null) {
+            prejoinedRoom.attach(new SignallingEventHandler());
+        } else {
+            appRtcClient.connectToRoom(roomConnectionParameters);
+        }
+    }
+
+    /**
+     * Starts joining the room of |webrtcatParams| as |username| before connect() is
+     * called, e.g. when an incoming call notification arrives: the room join request,
+     * the TURN credentials request, the WebSocket registration and the peer connection
+     * factory creation then run while the phone rings. A later connect() with the same
+     * room, username and signaling settings adopts the joined room; with other signaling
+     * settings it leaves it and joins again. The room is left if connect() is not called
+     * within |timeoutMs|, or when cancelPrejoin() is called.
+     */
+    public static void prejoin(Context context, WebRTCatParams webrtcatParams, String username,
+                               long timeoutMs) {
+        Context appContext = context.getApplicationContext();
+        AppLog.configure(appContext);
+        configureHttp(webrtcatParams);
+        RoomConfigCache.getInstance().setDirectory(appContext.getCacheDir());
+        final String roomServerUri = webrtcatParams.getRoomServerUri();
+        executeHttp(new Runnable() {
+            @Override
+            public void run() {
+                RoomConfigCache.Entry cachedConfig = RoomConfigCache.getInstance().get(roomServerUri);
+                if (cachedConfig != null) {
+                    prewarmHosts(cachedConfig.wssUrl, cachedConfig.wssPostUrl);
+                }
+            }
+        });
+        WebRTCatPeerConnectionClient.getInstance().prewarmFactory(appContext, webrtcatParams.getPCParameters());
+        PrejoinedRoom.start(webrtcatParams, username, timeoutMs);
+    }
+
+    public static void prejoin(Context context, WebRTCatParams webrtcatParams, String username) {
+        prejoin(context, webrtcatParams, username, DEFAULT_PREJOIN_TIMEOUT_MS);
+    }
+
+    // Leaves the room joined by prejoin(), unless connect() already took it over.
+    public static void cancelPrejoin() {
+        PrejoinedRoom.cancel(null);
+    }
+
+    // Same as cancelPrejoin(), but only if the pending pre-join is for the room of
+    // |webrtcatParams|, so that a later pre-join of another call is kept.
+    public static void cancelPrejoin(WebRTCatParams webrtcatParams) {
+        PrejoinedRoom.cancel(webrtcatParams);
+    }
+
+    // Signaling HTTP settings are process-wide.
+    private static void configureHttp(WebRTCatParams webrtcatParams) {
+        // Signaling HTTP requests share a bounded worker pool across calls.
+        AsyncHttpExecutor.getInstance().configure(webrtcatParams.getHttpMaxThreads(),
+                                                  webrtcatParams.getHttpQueueCapacity());
+        StreamUtils.setMaxBodyBytes(webrtcatParams.getMaxHttpResponseBytes());
+        AsyncHttpURLConnection.setDefaultRetryPolicy(webrtcatParams.getHttpRetryPolicy());
+        AsyncHttpURLConnection.setDefaultTransport(webrtcatParams.getHttpTransport());
+        HostPrewarmer.getInstance().setConnectionPrewarmEnabled(webrtcatParams.isPrewarmSignalingConnection());
+        // Resolved while the rest of the call setup runs, ahead of the room join request.
+        HostPrewarmer.getInstance().prewarm(webrtcatParams.getRoomServerUri());
+    }
+
+    // Looks up the configuration of an earlier join to |roomServerUri| on the HTTP executor,
+    // as the first lookup reads the cache file. Its hosts are prewarmed there, and the peer
+    // connection is prepared with its ICE servers back on the UI thread unless the call has
+    // ended in the meantime.
+    private void prepareFromCachedConfig(final String roomServerUri) {
+        RoomConfigCache.getInstance().setDirectory(owningActivity.getCacheDir());
+        final WebRTCatPeerConnectionClient pcClient = peerConnectionClient;
+        final EglBase eglBase = rootEglBase;
+        executeHttp(new Runnable() {
+            @Override
+            public void run() {
+                RoomConfigCache.Entry cachedConfig = RoomConfigCache.getInstance().get(roomServerUri);
+                if (cachedConfig == null) {
+                    return;
+                }
+                prewarmHosts(cachedConfig.wssUrl, cachedConfig.wssPostUrl);
+                final List<PeerConnection.IceServer> iceServers;
+                try {
+                    iceServers = cachedConfig.getIceServers();
+                } catch (JSONException e) {
+                    AppLog.w(TAG, "Ignoring cached room configuration: {}", e.getMessage());
+                    return;
+                }
+                for (PeerConnection.IceServer iceServer : iceServers) {
+                    HostPrewarmer.getInstance().prewarm(iceServer.uri);
+                }
+                owningActivity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (getState() != WebRTCatState.DISCONNECTED && rootEglBase == eglBase
+                                && peerConnectionClient == pcClient) {
+                            pcClient.prepareConnection(eglBase.getEglBaseContext(), iceServers);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static void executeHttp(Runnable runnable) {
+        try {
+            AsyncHttpExecutor.getInstance().execute(runnable);
+        } catch (RejectedExecutionException e) {
+            AppLog.w(TAG, "Not using cached room configuration: {}", e.getMessage());
+        }
+    }
+
+    // Starts resolving the WebSocket server hosts named by an earlier join to the room server.
+    private static void prewarmHosts(String wssUrl, String wssPostUrl) {
+        HostPrewarmer.getInstance().prewarm(wssUrl, wssPostUrl);
+        HostPrewarmer.getInstance().prewarmConnection(wssPostUrl);
+    }
+
+    static void configureClient(WebRTCatClient client, WebRTCatParams webrtcatParams) {
+        client.setIceCandidateBatchWindowMs(webrtcatParams.getIceCandidateBatchWindowMs());
+        client.setLeaveRequestEncoding(webrtcatParams.getLeaveRequestEncoding());
+        client.setMaxMessagesInFlight(webrtcatParams.getMaxSignalingMessagesInFlight());
+        client.setWebSocketSendQueue(webrtcatParams.getWebSocketSendQueueCapacity(),
+                                     webrtcatParams.getWebSocketSendQueueOverflowPolicy());
+        client.setWebSocketReconnectTimeoutMs(webrtcatParams.getWebSocketReconnectTimeoutMs());
+        client.setBinarySignalingFrames(webrtcatParams.isBinarySignalingFrames());
+    }
+
+    // The settings applied by configureClient(), compared to tell whether a pre-joined
+    // client is set up as connect() would set it up. Keep in sync with configureClient().
+    static List<Object> clientConfig(WebRTCatParams webrtcatParams) {
+        return Arrays.<Object>asList(webrtcatParams.getIceCandidateBatchWindowMs(),
+                                     webrtcatParams.getLeaveRequestEncoding(),
+                                     webrtcatParams.getMaxSignalingMessagesInFlight(),
+                                     webrtcatParams.getWebSocketSendQueueCapacity(),
+                                     webrtcatParams.getWebSocketSendQueueOverflowPolicy(),
+                                     webrtcatParams.getWebSocketReconnectTimeoutMs(),
+                                     webrtcatParams.isBinarySignalingFrames());
     }
 
     public void disconnect(final DisconnectReason reason) {
@@ -198,41 +389,47 @@ public class WebRTCat {
             public void run() {
                 try {
                     long t = System.currentTimeMillis();
-                    Log.d(TAG, "Begin async disconnect");
+                    AppLog.d(TAG, "Begin async disconnect");
                     if (appRtcClient != null) {
                         ((WebRTCatClient)appRtcClient).setDisconnectReason(reason);
                         ((WebRTCatClient)appRtcClient).setLastStats(lastStats);
                         appRtcClient.disconnectFromRoom();
                         appRtcClient = null;
                     }
-                    Log.d(TAG, "appRtcClient.disconnectFromRoom(): " + (System.currentTimeMillis() - t));
+                    AppLog.d(TAG, "appRtcClient.disconnectFromRoom(): {}", System.currentTimeMillis() - t);
+                    AppLog.d(TAG, "Signaling TLS handshakes: {}",
+                        HttpConnectionManager.getInstance().getTotalHandshakeCount());
+                    HttpConnectionManager.getInstance().removeTimingListener(httpTimingStats);
+                    AppLog.d(TAG, "Signaling HTTP timings: {}", httpTimingStats);
+                    AppLog.d(TAG, "Signaling DNS prewarm: {}", HostPrewarmer.getInstance());
                     if (peerConnectionClient != null) {
+                        peerConnectionClient.setCallSetupTimeline(null);
                         peerConnectionClient.close();
                         peerConnectionClient = null;
                     }
-                    Log.d(TAG, "peerConnectionClient.close(): " + (System.currentTimeMillis() - t));
+                    AppLog.d(TAG, "peerConnectionClient.close(): {}", System.currentTimeMillis() - t);
                     if (localRender != null) {
                         localRender.release();
                         localRender = null;
                     }
-                    Log.d(TAG, "localRender.release(): " + (System.currentTimeMillis() - t));
+                    AppLog.d(TAG, "localRender.release(): {}", System.currentTimeMillis() - t);
                     if (remoteRender != null) {
                         remoteRender.release();
                         remoteRender = null;
                     }
-                    Log.d(TAG, "remoteRender.release(): " + (System.currentTimeMillis() - t));
+                    AppLog.d(TAG, "remoteRender.release(): {}", System.currentTimeMillis() - t);
                     if (audioManager != null) {
                         audioManager.close();
                         audioManager = null;
                     }
-                    Log.d(TAG, "audioManager.close(): " + (System.currentTimeMillis() - t));
+                    AppLog.d(TAG, "audioManager.close(): {}", System.currentTimeMillis() - t);
                     if (rootEglBase != null) {
                         rootEglBase.release();
                         rootEglBase = null;
                     }
-                    Log.d(TAG, "rootEglBase.release(): " + (System.currentTimeMillis() - t));
+                    AppLog.d(TAG, "rootEglBase.release(): {}", System.currentTimeMillis() - t);
                 } catch(Exception e) {
-                    Log.e(TAG, "Exception on disconnect(): ", e);
+                    AppLog.e(TAG, "Exception on disconnect(): ", e);
                 }
             }
         });
@@ -256,7 +453,7 @@ public class WebRTCat {
                          PercentFrameLayout localRenderLayout, PercentFrameLayout remoteRenderLayout) {
         if (getState() == WebRTCatState.DISCONNECTED) {
             if (!wasConnected()) {
-                Log.e(TAG, "This method can not be called in state " + WebRTCatState.DISCONNECTED);
+                AppLog.e(TAG, "This method can not be called in state " + WebRTCatState.DISCONNECTED);
                 callbacks.onError(WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
             }
             return;
@@ -264,7 +461,7 @@ public class WebRTCat {
 
         if ((peerConnectionClient == null) || (rootEglBase == null)) {
             if (!wasConnected()) {
-                Log.e(TAG, "Can't set views with uninitialized PeerConnectionClient and/or EglBase");
+                AppLog.e(TAG, "Can't set views with uninitialized PeerConnectionClient and/or EglBase");
                 callbacks.onError(WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
             }
             return;
@@ -293,7 +490,7 @@ public class WebRTCat {
     public void call(String destClientName) {
         if (getState() != WebRTCatState.READY) {
             if (!wasConnected()) {
-                Log.e(TAG, "This method can only be called in state " + WebRTCatState.READY + " (current state is " + getState() + ")");
+                AppLog.e(TAG, "This method can only be called in state " + WebRTCatState.READY + " (current state is " + getState() + ")");
                 callbacks.onError(WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
             }
             return;
@@ -301,7 +498,7 @@ public class WebRTCat {
 
         if (peerConnectionClient == null) {
             if (!wasConnected()) {
-                Log.e(TAG, "Can't set views with uninitialized PeerConnectionClient");
+                AppLog.e(TAG, "Can't set views with uninitialized PeerConnectionClient");
                 callbacks.onError(WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
             }
             return;
@@ -311,7 +508,7 @@ public class WebRTCat {
         peerConnectionClient.addLocalMediaStream(rootEglBase.getEglBaseContext());
         // Create offer. Offer SDP will be sent to answering client in
         // PeerConnectionEvents.onLocalDescription event.
-        Log.i(TAG, "Creating OFFER...");
+        AppLog.i(TAG, "Creating OFFER...");
         peerConnectionClient.createOffer();
         transitionState(WebRTCatState.CALLING);
     }
@@ -319,7 +516,7 @@ public class WebRTCat {
     public void acceptCall() {
         if (getState() != WebRTCatState.IN_CALL_OFFER) {
             if (!wasConnected()) {
-                Log.e(TAG, "This method can only be called in state " + WebRTCatState.IN_CALL_OFFER + " (current state is " + getState() + ")");
+                AppLog.e(TAG, "This method can only be called in state " + WebRTCatState.IN_CALL_OFFER + " (current state is " + getState() + ")");
                 callbacks.onError(WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
             }
             return;
@@ -327,23 +524,24 @@ public class WebRTCat {
 
         if (peerConnectionClient == null) {
             if (!wasConnected()) {
-                Log.e(TAG, "Can't set views with uninitialized PeerConnectionClient");
+                AppLog.e(TAG, "Can't set views with uninitialized PeerConnectionClient");
                 callbacks.onError(WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
             }
             return;
         }
 
+        callSetupTimeline.mark(CallSetupTimeline.Milestone.CALL_ACCEPTED);
         peerConnectionClient.addLocalMediaStream(rootEglBase.getEglBaseContext());
         // Create answer. Answer SDP will be sent to offering client in
         // PeerConnectionEvents.onLocalDescription event.
-        Log.i(TAG, "Creating ANSWER...");
+        AppLog.i(TAG, "Creating ANSWER...");
         peerConnectionClient.createAnswer();
     }
 
     public void rejectCall() {
         if (getState() != WebRTCatState.IN_CALL_OFFER) {
             if (!wasConnected()) {
-                Log.e(TAG, "This method can only be called in state " + WebRTCatState.IN_CALL_OFFER + " (current state is " + getState() + ")");
+                AppLog.e(TAG, "This method can only be called in state " + WebRTCatState.IN_CALL_OFFER + " (current state is " + getState() + ")");
                 callbacks.onError(WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
             }
             return;
@@ -356,11 +554,31 @@ public class WebRTCat {
         return lastStats;
     }
 
+    // Time taken by each call setup phase of the current or last call; complete once
+    // onCallConnected() is called.
+    public CallSetupTimeline getCallSetupTimeline() {
+        return callSetupTimeline;
+    }
+
+    // Per-endpoint histograms of the signaling HTTP request phases since the last connect().
+    public HttpTimingStats getHttpTimingStats() {
+        return httpTimingStats;
+    }
+
+    // Registers a listener that receives the phase timings of every signaling HTTP request.
+    public static void addHttpTimingListener(HttpTimingListener listener) {
+        HttpConnectionManager.getInstance().addTimingListener(listener);
+    }
+
+    public static void removeHttpTimingListener(HttpTimingListener listener) {
+        HttpConnectionManager.getInstance().removeTimingListener(listener);
+    }
+
     public synchronized WebRTCatState getState() { return webrtcatState; }
 
     // Only this object can set its state.
     private synchronized void transitionState(WebRTCatState newState) {
-        Log.i(TAG, "WebRTCat state: " + webrtcatState + " -> " + newState);
+        AppLog.i(TAG, "WebRTCat state: {} -> {}", webrtcatState, newState);
         webrtcatState = newState;
         if (newState == WebRTCatState.READY) {
             wasConnected = true;
@@ -404,9 +622,9 @@ public class WebRTCat {
             public void run() {
                 transitionState(WebRTCatState.IN_CALL);
                 final long delta = System.currentTimeMillis() - callStartedTimeMs;
-                Log.i(TAG, "Call connected: delay=" + delta + "ms");
+                AppLog.i(TAG, "Call connected: delay={}ms", delta);
                 if (peerConnectionClient == null || isError) {
-                    Log.w(TAG, "Call is connected in closed or error state");
+                    AppLog.w(TAG, "Call is connected in closed or error state");
                     return;
                 }
                 // Update video view.
@@ -414,6 +632,7 @@ public class WebRTCat {
                 // Enable statistics callback.
                 peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
                 lastCallStartTime = System.currentTimeMillis();
+                AppLog.i(TAG, "Call setup timeline: {}", callSetupTimeline);
                 callbacks.onCallConnected();
             }
         });
@@ -421,7 +640,8 @@ public class WebRTCat {
 
     private void reportError(String description, WebRTCatErrorCode errorCode) {
         isError = true;
-        Log.e(TAG, description);
+        AppLog.e(TAG, description);
+        HttpConnectionManager.getInstance().removeTimingListener(httpTimingStats);
         // Our error messages are considered implementation details and are not leaked to outside code
         // (only to logs), so we only surface the error code.
         callbacks.onError(errorCode);
@@ -437,7 +657,7 @@ public class WebRTCat {
 
             signalingParameters = params;
             // Create peer connection for the caller (initiator)
-            Log.i(TAG, "Creating peer connection, delay=" + delta + "ms");
+            AppLog.i(TAG, "Creating peer connection, delay={}ms", delta);
             // We'll set the local and remote renderers in a later call.
             peerConnectionClient.createPeerConnection(rootEglBase.getEglBaseContext(),
                     null, null, signalingParameters);
@@ -448,7 +668,7 @@ public class WebRTCat {
                     if (params.iceCandidates != null) {
                         // Add remote ICE candidates from room.
                         for (IceCandidate iceCandidate : params.iceCandidates) {
-                            Log.i(TAG, "Adding REMOTE ICE candidate: " + iceCandidate);
+                            AppLog.i(TAG, "Adding REMOTE ICE candidate: {}", iceCandidate);
                             peerConnectionClient.addRemoteIceCandidate(iceCandidate);
                         }
                     }
@@ -466,10 +686,10 @@ public class WebRTCat {
         public void onRemoteDescription(final SessionDescription sdp) {
             final long delta = System.currentTimeMillis() - callStartedTimeMs;
             if (peerConnectionClient == null) {
-                Log.e(TAG, "Received remote SDP for non-initilized peer connection.");
+                AppLog.e(TAG, "Received remote SDP for non-initilized peer connection.");
                 return;
             }
-            Log.i(TAG, "Received remote " + sdp.type + ", delay=" + delta + "ms");
+            AppLog.i(TAG, "Received remote {}, delay={}ms", sdp.type, delta);
             peerConnectionClient.setRemoteDescription(sdp);
             if (!signalingParameters.initiator) {
                 // We now have the caller's remote description -- notify client of the incoming call.
@@ -481,17 +701,17 @@ public class WebRTCat {
         @Override
         public void onRemoteIceCandidate(final IceCandidate candidate) {
             if (peerConnectionClient == null) {
-                Log.e(TAG, "Received ICE candidate for non-initilized peer connection.");
+                AppLog.e(TAG, "Received ICE candidate for non-initilized peer connection.");
                 return;
             }
-            Log.i(TAG, "Adding REMOTE ICE candidate: " + candidate);
+            AppLog.i(TAG, "Adding REMOTE ICE candidate: {}", candidate);
             peerConnectionClient.addRemoteIceCandidate(candidate);
         }
 
         @Override
         public void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates) {
             if (peerConnectionClient == null) {
-                Log.e(TAG, "Received ICE candidate removals for a non-initialized peer connection.");
+                AppLog.e(TAG, "Received ICE candidate removals for a non-initialized peer connection.");
                 return;
             }
             peerConnectionClient.removeRemoteIceCandidates(candidates);
@@ -499,7 +719,7 @@ public class WebRTCat {
 
         @Override
         public void onChannelClose() {
-            Log.i(TAG, "Received remote hangup");
+            AppLog.i(TAG, "Received remote hangup");
             WebRTCatState prevState = getState();
             disconnect(DisconnectReason.HANGUP);
             if (prevState == WebRTCatState.CALLING) {
@@ -536,7 +756,7 @@ public class WebRTCat {
         public void onLocalDescription(final SessionDescription sdp) {
             final long delta = System.currentTimeMillis() - callStartedTimeMs;
             if (appRtcClient != null) {
-                Log.i(TAG, "Sending " + sdp.type + ", delay=" + delta + "ms");
+                AppLog.i(TAG, "Sending {}, delay={}ms", sdp.type, delta);
                 if (signalingParameters.initiator) {
                     ((WebRTCatClient)appRtcClient).sendOfferSdp(sdp, destClientName);
                 } else {
@@ -548,7 +768,7 @@ public class WebRTCat {
         @Override
         public void onIceCandidate(final IceCandidate candidate) {
             if (appRtcClient != null) {
-                Log.i(TAG, "Sending LOCAL ICE candidate: " + candidate);
+                AppLog.i(TAG, "Sending LOCAL ICE candidate: {}", candidate);
                 appRtcClient.sendLocalIceCandidate(candidate);
             }
         }
@@ -559,22 +779,36 @@ public class WebRTCat {
             }
         }
 
+        @Override
+        public void onIceGatheringComplete() {
+            if (appRtcClient != null) {
+                ((WebRTCatClient)appRtcClient).flushLocalIceCandidates();
+            }
+        }
+
         @Override
         public void onIceConnected() {
             final long delta = System.currentTimeMillis() - callStartedTimeMs;
-            Log.i(TAG, "ICE connected, delay=" + delta + "ms");
+            AppLog.i(TAG, "ICE connected, delay={}ms", delta);
             iceConnected = true;
             callConnected();
         }
 
         @Override
         public void onIceFailed() {
+            // The TURN server may have rejected the cached credentials, e.g. after a
+            // secret rotation; fetch new ones for the next call rather than fail it too.
+            SignalingParameters params = signalingParameters;
+            if (params != null && params.turnCredentialsKey != null) {
+                AppLog.i(TAG, "Dropping cached TURN credentials for {}", params.turnCredentialsKey);
+                TurnCredentialCache.getInstance().invalidate(params.turnCredentialsKey);
+            }
             reportError("ICE connection failed", WebRTCatErrorCode.ICE_CONNECTION_FAILED);
         }
 
         @Override
         public void onIceDisconnected() {
-            Log.i(TAG, "ICE disconnected");
+            AppLog.i(TAG, "ICE disconnected");
             iceConnected = false;
             disconnect(DisconnectReason.ICE_DISCONNECT);
             callbacks.onError(WebRTCatErrorCode.ICE_CONNECTION_FAILED);
@@ -588,8 +822,12 @@ public class WebRTCat {
         public void onPeerConnectionStatsReady(final StatsReport[] reports) {
             WebRTStats stats = new WebRTStats();
             stats.setCallStartTime(lastCallStartTime);
+            boolean logReports = AppLog.LOG_DEBUG && AppLog.isLoggable(AppLog.DEBUG)
+                    && statsLogSampler.sample();
             for (StatsReport report : reports) {
-                Log.i(TAG, "*** STAT_REPORT: " + report.toString());
+                if (logReports) {
+                    AppLog.d(TAG, "*** STAT_REPORT: {}", report);
+                }
 
                 if ("googCandidatePair".equals(report.type)) {
                     // Look for the "googActiveConnection=true" value to determine
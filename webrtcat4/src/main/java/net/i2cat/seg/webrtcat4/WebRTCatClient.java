@@ -10,23 +10,40 @@
 
 package net.i2cat.seg.webrtcat4;
 
-import android.util.Log;
+import android.os.SystemClock;
 
+import net.i2cat.seg.webrtcat4.WebRTCatSocketChannelClient.SendQueueOverflowPolicy;
 import net.i2cat.seg.webrtcat4.WebRTCatSocketChannelClient.WebSocketConnectionState;
+import net.i2cat.seg.webrtcat4.stats.CallSetupTimeline;
+import net.i2cat.seg.webrtcat4.stats.CallSetupTimeline.Milestone;
 import net.i2cat.seg.webrtcat4.stats.WebRTStats;
 
 import org.appspot.apprtc.AppRTCClient;
 import org.appspot.apprtc.RoomParametersFetcher;
 import org.appspot.apprtc.RoomParametersFetcher.RoomParametersFetcherEvents;
+import org.appspot.apprtc.util.AppLog;
+import org.appspot.apprtc.util.AsyncHttpExecutor;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.Cancellable;
+import org.appspot.apprtc.util.Completion;
+import org.appspot.apprtc.util.ExponentialBackoffRetryPolicy;
 import org.appspot.apprtc.util.LooperExecutor;
+import org.appspot.apprtc.util.RetryPolicy;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
 import static net.i2cat.seg.webrtcat4.WebRTUtils.jsonPut;
 
 /**
@@ -45,6 +62,12 @@ public class WebRTCatClient implements AppRTCClient,
     private static final String ROOM_JOIN = "join";
     private static final String ROOM_MESSAGE = "message";
     private static final String ROOM_LEAVE = "leave";
+    // How long disconnecting waits for the LEAVE before stopping the looper thread.
+    private static final long LEAVE_TIMEOUT_MS = 3000;
+    // The LEAVE is sent on teardown: one quick retry, within LEAVE_TIMEOUT_MS.
+    private static final RetryPolicy LEAVE_RETRY_POLICY = new ExponentialBackoffRetryPolicy(2,
+        ExponentialBackoffRetryPolicy.DEFAULT_BASE_DELAY_MS,
+        ExponentialBackoffRetryPolicy.DEFAULT_MAX_DELAY_MS, LEAVE_TIMEOUT_MS);
 
     private enum ConnectionState {
         NEW, CONNECTED, CLOSED, ERROR
@@ -52,6 +75,12 @@ public class WebRTCatClient implements AppRTCClient,
     private enum MessageType {
         MESSAGE, LEAVE
     }
+    // Send order of room server messages: SDP first, then ICE candidates, then candidate
+    // removals and system messages.
+    private enum MessagePriority {
+        SDP, CANDIDATE, CONTROL
+    }
+    public static final int DEFAULT_MAX_MESSAGES_IN_FLIGHT = 2;
 
     private final LooperExecutor executor;
     private boolean initiator;
@@ -64,8 +93,66 @@ public class WebRTCatClient implements AppRTCClient,
     private SignalingParameters signalingParameters;
     private String clientName;
     private boolean isConnectedToRoom;
+    private boolean webSocketRegistered;
+    private boolean connectedToRoomNotified;
     private WebRTCat.DisconnectReason disconnectReason;
     private WebRTStats lastStats;
+    // Started with the client, so that a pre-joined room accounts for the early join.
+    private final CallSetupTimeline callSetupTimeline = new CallSetupTimeline();
+    // Initiator ICE candidate batching: candidates gathered within the window are
+    // posted to the room server in a single "candidates" message.
+    private int iceCandidateBatchWindowMs;
+    private final List<IceCandidate> pendingLocalCandidates = new ArrayList<IceCandidate>();
+    private boolean candidateFlushScheduled;
+    private String leaveRequestEncoding;
+    // In-flight room server requests, keyed by their callbacks. They are cancelled on
+    // disconnect so that they neither hold threads and sockets nor call back into a
+    // closed session.
+    private volatile Cancellable roomParametersRequest;
+    private final Map<AsyncHttpEvents, Cancellable> pendingRequests =
+        new HashMap<AsyncHttpEvents, Cancellable>();
+    // Outbound room server messages waiting to be posted, and the number of posts in
+    // flight per destination URL. Only touched on the looper thread.
+    private final PriorityQueue<OutboundMessage> outboundMessages =
+        new PriorityQueue<OutboundMessage>(16, new Comparator<OutboundMessage>() {
+          @Override
+          public int compare(OutboundMessage lhs, OutboundMessage rhs) {
+            if (lhs.priority != rhs.priority) {
+              return lhs.priority.compareTo(rhs.priority);
+            }
+            return (lhs.sequence < rhs.sequence) ? -1 : ((lhs.sequence == rhs.sequence) ? 0 : 1);
+          }
+        });
+    private final Map<String, List<MessagePriority>> messagesInFlight =
+        new HashMap<String, List<MessagePriority>>();
+    private long outboundSequence;
+    private int maxMessagesInFlight = DEFAULT_MAX_MESSAGES_IN_FLIGHT;
+    private int webSocketSendQueueCapacity = WebRTCatSocketChannelClient.DEFAULT_SEND_QUEUE_CAPACITY;
+    private SendQueueOverflowPolicy webSocketSendQueueOverflowPolicy =
+        SendQueueOverflowPolicy.DROP_OLDEST_CANDIDATE;
+    private int webSocketReconnectTimeoutMs;
+    private boolean binarySignalingFrames;
+    // Set once the remote offer or answer has arrived over the WebSocket. A reconnected
+    // peer may send it again.
+    private boolean remoteDescriptionReceived;
+
+    private static class OutboundMessage {
+        final MessagePriority priority;
+        final long sequence;
+        final String url;
+        final String message;
+        // Stamped once the room server has accepted the message, if not null.
+        final Milestone milestone;
+
+        OutboundMessage(MessagePriority priority, long sequence, String url, String message,
+                        Milestone milestone) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.url = url;
+            this.message = message;
+            this.milestone = milestone;
+        }
+    }
 
     interface SignalingEvents extends AppRTCClient.SignalingEvents {
       /**
@@ -101,13 +188,13 @@ public class WebRTCatClient implements AppRTCClient,
 
   @Override
   public void disconnectFromRoom() {
+    cancelPendingRequests();
     executor.execute(new Runnable() {
       @Override
       public void run() {
         disconnectFromRoomInternal();
       }
     });
-    executor.requestStop();
   }
 
   public void setDisconnectReason(WebRTCat.DisconnectReason reason) {
@@ -118,12 +205,48 @@ public class WebRTCatClient implements AppRTCClient,
     this.lastStats = stats;
   }
 
+  public void setIceCandidateBatchWindowMs(int iceCandidateBatchWindowMs) {
+    this.iceCandidateBatchWindowMs = iceCandidateBatchWindowMs;
+  }
+
+  public void setLeaveRequestEncoding(String leaveRequestEncoding) {
+    this.leaveRequestEncoding = leaveRequestEncoding;
+  }
+
+  public void setMaxMessagesInFlight(int maxMessagesInFlight) {
+    this.maxMessagesInFlight = Math.max(1, maxMessagesInFlight);
+  }
+
+  public void setWebSocketSendQueue(int capacity, SendQueueOverflowPolicy overflowPolicy) {
+    this.webSocketSendQueueCapacity = capacity;
+    this.webSocketSendQueueOverflowPolicy = overflowPolicy;
+  }
+
+  public void setWebSocketReconnectTimeoutMs(int webSocketReconnectTimeoutMs) {
+    this.webSocketReconnectTimeoutMs = webSocketReconnectTimeoutMs;
+  }
+
+  public void setBinarySignalingFrames(boolean binarySignalingFrames) {
+    this.binarySignalingFrames = binarySignalingFrames;
+  }
+
+  public CallSetupTimeline getCallSetupTimeline() {
+    return callSetupTimeline;
+  }
+
   // Connects to room - function runs on a local looper thread.
   private void connectToRoomInternal() {
     String connectionUrl = getConnectionUrl(connectionParameters);
-    Log.d(TAG, "Connect to room: " + connectionUrl);
+    AppLog.d(TAG, "Connect to room: {}", connectionUrl);
     roomState = ConnectionState.NEW;
-    wsClient = new WebRTCatSocketChannelClient(executor, this);
+    webSocketRegistered = false;
+    connectedToRoomNotified = false;
+    wsClient = new WebRTCatSocketChannelClient(executor, this, webSocketSendQueueCapacity,
+        webSocketSendQueueOverflowPolicy);
+    wsClient.setReconnectTimeoutMs(webSocketReconnectTimeoutMs);
+    wsClient.setBinaryFramesEnabled(binarySignalingFrames);
+    remoteDescriptionReceived = false;
+    wsClient.setCallSetupTimeline(callSetupTimeline);
 
     RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
       @Override
@@ -137,31 +260,73 @@ public class WebRTCatClient implements AppRTCClient,
         });
       }
 
+      @Override
+      public void onIceServersReady(final List<PeerConnection.IceServer> iceServers) {
+        WebRTCatClient.this.executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            WebRTCatClient.this.iceServersReady(iceServers);
+          }
+        });
+      }
+
       @Override
       public void onSignalingParametersError(String description) {
         WebRTCatClient.this.reportError(description, WebRTCatErrorCode.CANT_JOIN_ROOM);
       }
     };
 
-    new RoomParametersFetcher(connectionUrl, null, callbacks).makeRequest();
+    RoomParametersFetcher fetcher = new RoomParametersFetcher(connectionUrl, null, callbacks);
+    fetcher.setConfigCacheKey(connectionParameters.roomUrl);
+    roomParametersRequest = fetcher.makeRequest();
   }
 
-  // Disconnect from room and send bye messages - runs on a local looper thread.
+  // Disconnect from room and send bye messages - runs on a local looper thread. The LEAVE
+  // and the WebSocket close run in parallel; the looper is stopped once both are done, so
+  // that their last events still reach it, or after LEAVE_TIMEOUT_MS.
   private void disconnectFromRoomInternal() {
-    Log.d(TAG, "Disconnect. Room state: " + roomState);
+    AppLog.d(TAG, "Disconnect. Room state: {}", roomState);
+    final long startMs = SystemClock.elapsedRealtime();
+    Completion leaveSent = Completion.completed();
+    pendingLocalCandidates.clear();
+    outboundMessages.clear();
+    messagesInFlight.clear();
+    cancelPendingRequests();
     if (isConnectedToRoom) {
-      Log.d(TAG, "Closing room.");
+      AppLog.d(TAG, "Closing room.");
       JSONObject json = new JSONObject();
       jsonPut(json, "disconnectReason", (disconnectReason != null) ? disconnectReason.toString() : "");
-      if (lastStats != null) {
-        jsonPut(json, "clientStats", lastStats.toJSON());
-      }
-      sendPostMessage(MessageType.LEAVE, leaveUrl, json.toString());
+      JSONObject clientStats = (lastStats != null) ? lastStats.toJSON() : new JSONObject();
+      jsonPut(clientStats, "callSetup", callSetupTimeline.toJSON());
+      jsonPut(json, "clientStats", clientStats);
+      leaveSent = sendPostMessage(MessageType.LEAVE, leaveUrl, json.toString(), null);
     }
     roomState = ConnectionState.CLOSED;
+    Completion wsClosed = Completion.completed();
     if (wsClient != null) {
-      wsClient.disconnect(true);
+      AppLog.d(TAG, "WebSocket send queue: depth={}, highWaterMark={}, dropped={}",
+          wsClient.getSendQueueDepth(), wsClient.getSendQueueHighWaterMark(),
+          wsClient.getDroppedMessageCount());
+      wsClosed = wsClient.disconnectAsync();
     }
+    final Completion roomLeft = Completion.allOf(leaveSent, wsClosed);
+    roomLeft.whenDone(new Runnable() {
+      @Override
+      public void run() {
+        AppLog.d(TAG, "Room left in {} ms", SystemClock.elapsedRealtime() - startMs);
+        executor.requestStop();
+      }
+    });
+    // The timeout runs off the looper thread, which may be stopped by then.
+    AsyncHttpExecutor.getInstance().schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!roomLeft.isDone()) {
+          AppLog.w(TAG, "LEAVE not done after {} ms, stopping anyway", LEAVE_TIMEOUT_MS);
+          executor.requestStop();
+        }
+      }
+    }, LEAVE_TIMEOUT_MS);
   }
 
   // Helper functions to get connection, post message and leave message URLs
@@ -190,7 +355,8 @@ public class WebRTCatClient implements AppRTCClient,
     // Callback issued when room parameters are extracted. Runs on local
     // looper thread.
     private void signalingParametersReady(final SignalingParameters signalingParameters) {
-        Log.d(TAG, "Room connection completed.");
+        AppLog.d(TAG, "Room connection completed.");
+        callSetupTimeline.mark(Milestone.ROOM_JOINED);
         if (connectionParameters.loopback
         && (!signalingParameters.initiator
             || signalingParameters.offerSdp != null)) {
@@ -200,21 +366,53 @@ public class WebRTCatClient implements AppRTCClient,
         if (!connectionParameters.loopback
             && !signalingParameters.initiator
             && signalingParameters.offerSdp == null) {
-            Log.w(TAG, "No offer SDP in room response.");
+            AppLog.w(TAG, "No offer SDP in room response.");
         }
         initiator = signalingParameters.initiator;
         messageUrl = getMessageUrl(connectionParameters, signalingParameters);
         leaveUrl = getLeaveUrl(connectionParameters, signalingParameters);
         this.signalingParameters = signalingParameters;
-        Log.d(TAG, "Message URL: " + messageUrl);
-        Log.d(TAG, "Leave URL: " + leaveUrl);
+        AppLog.d(TAG, "Message URL: {}", messageUrl);
+        AppLog.d(TAG, "Leave URL: {}", leaveUrl);
         roomState = ConnectionState.CONNECTED;
         isConnectedToRoom = true;
+        if (!signalingParameters.iceServersPending) {
+            callSetupTimeline.mark(Milestone.ICE_SERVERS_READY);
+        }
+        if (signalingParameters.offerSdp != null) {
+            callSetupTimeline.mark(Milestone.OFFER_RECEIVED);
+        }
+        if (signalingParameters.iceCandidates != null && !signalingParameters.iceCandidates.isEmpty()) {
+            callSetupTimeline.mark(Milestone.FIRST_REMOTE_CANDIDATE);
+        }
 
-        // onWebSocketOpen() will be called when this is successful.
+        // onWebSocketOpen() will be called when this is successful. TURN credentials, if
+        // pending, are fetched meanwhile.
         wsClient.connect(signalingParameters.wssUrl, signalingParameters.wssPostUrl);
     }
 
+    // Runs on local looper thread.
+    private void iceServersReady(List<PeerConnection.IceServer> iceServers) {
+        if (signalingParameters == null || roomState != ConnectionState.CONNECTED) {
+            return;
+        }
+        AppLog.d(TAG, "TURN credentials received.");
+        callSetupTimeline.mark(Milestone.ICE_SERVERS_READY);
+        signalingParameters = signalingParameters.withIceServers(iceServers);
+        maybeConnectedToRoom();
+    }
+
+    // The room is usable once the client is registered on the WebSocket server and the
+    // ICE servers, needed to create the peer connection, are known.
+    private void maybeConnectedToRoom() {
+        if (connectedToRoomNotified || !webSocketRegistered
+            || signalingParameters.iceServersPending) {
+            return;
+        }
+        connectedToRoomNotified = true;
+        events.onConnectedToRoom(signalingParameters);
+    }
+
   @Override
   public void sendOfferSdp(final SessionDescription sdp) {
     sendOfferSdp(sdp, null);
@@ -236,7 +434,7 @@ public class WebRTCatClient implements AppRTCClient,
           jsonPut(json, "sourceClientName", clientName);
           jsonPut(json, "destClientName", destClientName);
         }
-        sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+        queuePostMessage(MessagePriority.SDP, messageUrl, json.toString(), Milestone.OFFER_SENT);
         if (connectionParameters.loopback) {
           // In loopback mode rename this offer to answer and route it back.
           SessionDescription sdpAnswer = new SessionDescription(
@@ -254,19 +452,20 @@ public class WebRTCatClient implements AppRTCClient,
       @Override
       public void run() {
         if (connectionParameters.loopback) {
-          Log.e(TAG, "Sending answer in loopback mode.");
+          AppLog.e(TAG, "Sending answer in loopback mode.");
           return;
         }
         JSONObject json = new JSONObject();
         jsonPut(json, "sdp", sdp.description);
         jsonPut(json, "type", "answer");
         wsClient.send(json.toString());
+        callSetupTimeline.mark(Milestone.ANSWER_SENT);
 
         // Send a system:answer message to the room server to indicate that we are answering a call.
         json = new JSONObject();
         jsonPut(json, "type", "system:answer");
         jsonPut(json, "sourceClientName", clientName);
-        sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+        queuePostMessage(MessagePriority.CONTROL, messageUrl, json.toString());
       }
     });
   }
@@ -288,13 +487,26 @@ public class WebRTCatClient implements AppRTCClient,
             reportError("Sending ICE candidate in non connected state.", WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          if (iceCandidateBatchWindowMs > 0) {
+            pendingLocalCandidates.add(candidate);
+            if (!candidateFlushScheduled) {
+              candidateFlushScheduled = true;
+              executor.executeDelayed(new Runnable() {
+                @Override
+                public void run() {
+                  flushLocalIceCandidatesInternal();
+                }
+              }, iceCandidateBatchWindowMs);
+            }
+          } else {
+            queuePostMessage(MessagePriority.CANDIDATE, messageUrl, json.toString());
+          }
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidate(candidate);
           }
         } else {
           // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+          wsClient.send(json.toString(), true);
         }
       }
     });
@@ -318,7 +530,9 @@ public class WebRTCatClient implements AppRTCClient,
             reportError("Sending ICE candidate removals in non connected state.", WebRTCatErrorCode.INTERNAL_STATE_MACHINE_ERROR);
           return;
         }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          // Removals must not overtake the candidates they refer to.
+          flushLocalIceCandidatesInternal();
+          queuePostMessage(MessagePriority.CONTROL, messageUrl, json.toString());
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidatesRemoved(candidates);
           }
@@ -330,6 +544,41 @@ public class WebRTCatClient implements AppRTCClient,
     });
   }
 
+  // Send any batched local ICE candidates now instead of waiting for the batch window.
+  public void flushLocalIceCandidates() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        flushLocalIceCandidatesInternal();
+      }
+    });
+  }
+
+  // Runs on local looper thread.
+  private void flushLocalIceCandidatesInternal() {
+    candidateFlushScheduled = false;
+    if (pendingLocalCandidates.isEmpty() || roomState != ConnectionState.CONNECTED) {
+      pendingLocalCandidates.clear();
+      return;
+    }
+    JSONObject json;
+    if (pendingLocalCandidates.size() == 1) {
+      json = toJsonCandidate(pendingLocalCandidates.get(0));
+      jsonPut(json, "type", "candidate");
+    } else {
+      json = new JSONObject();
+      jsonPut(json, "type", "candidates");
+      JSONArray jsonArray = new JSONArray();
+      for (IceCandidate candidate : pendingLocalCandidates) {
+        jsonArray.put(toJsonCandidate(candidate));
+      }
+      jsonPut(json, "candidates", jsonArray);
+    }
+    AppLog.d(TAG, "Sending {} batched ICE candidate(s)", pendingLocalCandidates.size());
+    pendingLocalCandidates.clear();
+    queuePostMessage(MessagePriority.CANDIDATE, messageUrl, json.toString());
+  }
+
   // --------------------------------------------------------------------
   // WebSocketChannelEvents interface implementation.
   // All events are called by WebRTCatSocketChannelClient on a local looper thread
@@ -343,14 +592,15 @@ public class WebRTCatClient implements AppRTCClient,
     @Override
     public void onWebSocketRegistered() {
         // Finally, with the socket open and the client registered can we consider ourselves truly
-        // connected to the room.
-        events.onConnectedToRoom(signalingParameters);
+        // connected to the room (once the TURN credentials are in, if still pending).
+        webSocketRegistered = true;
+        maybeConnectedToRoom();
     }
 
     @Override
     public void onWebSocketMessage(final String msg) {
         if (wsClient.getState() != WebSocketConnectionState.REGISTERED) {
-          Log.e(TAG, "Got WebSocket message in non registered state.");
+          AppLog.e(TAG, "Got WebSocket message in non registered state.");
           return;
         }
         try {
@@ -360,8 +610,16 @@ public class WebRTCatClient implements AppRTCClient,
           if (msgText.length() > 0) {
             json = new JSONObject(msgText);
             String type = json.optString("type");
+            if (type.equals("candidate") || type.equals("candidates")) {
+              callSetupTimeline.mark(Milestone.FIRST_REMOTE_CANDIDATE);
+            }
             if (type.equals("candidate")) {
               events.onRemoteIceCandidate(toJavaCandidate(json));
+            } else if (type.equals("candidates")) {
+              JSONArray candidateArray = json.getJSONArray("candidates");
+              for (int i = 0; i < candidateArray.length(); ++i) {
+                events.onRemoteIceCandidate(toJavaCandidate(candidateArray.getJSONObject(i)));
+              }
             } else if (type.equals("remove-candidates")) {
               JSONArray candidateArray = json.getJSONArray("candidates");
               IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
@@ -369,8 +627,12 @@ public class WebRTCatClient implements AppRTCClient,
                 candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
               }
               events.onRemoteIceCandidatesRemoved(candidates);
+            } else if ((type.equals("answer") || type.equals("offer")) && remoteDescriptionReceived) {
+              AppLog.w(TAG, "Ignoring repeated remote {}", type);
             } else if (type.equals("answer")) {
               if (initiator) {
+                remoteDescriptionReceived = true;
+                callSetupTimeline.mark(Milestone.ANSWER_RECEIVED);
                 SessionDescription sdp = new SessionDescription(
                     SessionDescription.Type.fromCanonicalForm(type),
                     json.getString("sdp"));
@@ -380,6 +642,8 @@ public class WebRTCatClient implements AppRTCClient,
               }
             } else if (type.equals("offer")) {
               if (!initiator) {
+                remoteDescriptionReceived = true;
+                callSetupTimeline.mark(Milestone.OFFER_RECEIVED);
                 SessionDescription sdp = new SessionDescription(
                     SessionDescription.Type.fromCanonicalForm(type),
                     json.getString("sdp"));
@@ -417,7 +681,7 @@ public class WebRTCatClient implements AppRTCClient,
   // --------------------------------------------------------------------
   // Helper functions.
   private void reportError(final String errorMessage, final WebRTCatErrorCode errorCode) {
-    Log.e(TAG, errorMessage);
+    AppLog.e(TAG, errorMessage);
     executor.execute(new Runnable() {
       @Override
       public void run() {
@@ -429,19 +693,82 @@ public class WebRTCatClient implements AppRTCClient,
     });
   }
 
-  // Send SDP or ICE candidate to a room server.
-  private void sendPostMessage(
-      final MessageType messageType, final String url, final String message) {
-    String logInfo = url;
+  // Queues a message to the room server. Runs on the local looper thread.
+  private void queuePostMessage(MessagePriority priority, String url, String message) {
+    queuePostMessage(priority, url, message, null);
+  }
+
+  private void queuePostMessage(MessagePriority priority, String url, String message,
+      Milestone milestone) {
+    outboundMessages.add(new OutboundMessage(priority, outboundSequence++, url, message, milestone));
+    dispatchPostMessages();
+  }
+
+  // Posts queued messages in priority order. A message is held back while a message of a
+  // higher priority to the same destination is in flight, and at most maxMessagesInFlight
+  // messages are in flight per destination. Runs on the local looper thread.
+  private void dispatchPostMessages() {
+    List<OutboundMessage> blocked = null;
+    OutboundMessage next;
+    while ((next = outboundMessages.poll()) != null) {
+      List<MessagePriority> inFlight = messagesInFlight.get(next.url);
+      if (inFlight == null) {
+        inFlight = new ArrayList<MessagePriority>();
+        messagesInFlight.put(next.url, inFlight);
+      }
+      boolean canSend = inFlight.size() < maxMessagesInFlight;
+      for (MessagePriority priority : inFlight) {
+        if (priority.compareTo(next.priority) < 0) {
+          canSend = false;
+        }
+      }
+      if (!canSend) {
+        // Lower priority messages to this destination have to wait as well.
+        if (blocked == null) {
+          blocked = new ArrayList<OutboundMessage>();
+        }
+        blocked.add(next);
+        continue;
+      }
+      inFlight.add(next.priority);
+      final OutboundMessage sent = next;
+      sendPostMessage(MessageType.MESSAGE, sent.url, sent.message, new Runnable() {
+        @Override
+        public void run() {
+          if (sent.milestone != null) {
+            callSetupTimeline.mark(sent.milestone);
+          }
+          List<MessagePriority> inFlight = messagesInFlight.get(sent.url);
+          if (inFlight != null) {
+            inFlight.remove(sent.priority);
+          }
+          dispatchPostMessages();
+        }
+      });
+    }
+    if (blocked != null) {
+      outboundMessages.addAll(blocked);
+    }
+  }
+
+  // Send SDP or ICE candidate to a room server. |onDone|, if not null, is run on the local
+  // looper thread once the request has completed or failed. The returned completion
+  // finishes, on the HTTP thread, once the request has completed, failed or been cancelled.
+  private Completion sendPostMessage(final MessageType messageType, final String url,
+      final String message, final Runnable onDone) {
     if (message != null) {
-      logInfo += ". Message: " + message;
+      AppLog.d(TAG, "C->RoomServer: {}. Message: {}", url, message);
+    } else {
+      AppLog.d(TAG, "C->RoomServer: {}", url);
     }
-    Log.d(TAG, "C->RoomServer: " + logInfo);
-    AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
-      "POST", url, message, new AsyncHttpEvents() {
+    final Completion finished = new Completion();
+    AsyncHttpEvents callbacks = new AsyncHttpEvents() {
         @Override
         public void onHttpError(String errorMessage) {
+          // Errors are posted to the looper before |finished| completes, as the looper
+          // may be stopped once the LEAVE is done.
           reportError("RoomServer POST error: " + errorMessage, (messageType == MessageType.MESSAGE) ? WebRTCatErrorCode.CANT_MESSAGE_ROOM : WebRTCatErrorCode.GENERAL_ERROR);
+          requestFinished(this, onDone, finished);
         }
 
         @Override
@@ -457,9 +784,70 @@ public class WebRTCatClient implements AppRTCClient,
               reportError("RoomServer POST JSON error: " + e.toString(), WebRTCatErrorCode.CANT_MESSAGE_ROOM);
             }
           }
+          requestFinished(this, onDone, finished);
         }
-      });
+      };
+    final AsyncHttpURLConnection httpConnection =
+        new AsyncHttpURLConnection("POST", url, message, callbacks);
+    if (messageType == MessageType.LEAVE) {
+      httpConnection.setEndpoint("leave");
+      // The LEAVE carries the call stats and is sent on teardown, keep it small.
+      httpConnection.setRequestEncoding(leaveRequestEncoding);
+      httpConnection.setRetryPolicy(LEAVE_RETRY_POLICY);
+    } else {
+      httpConnection.setEndpoint("message");
+    }
+    if (messageType != MessageType.LEAVE) {
+      // The LEAVE is not tracked so that a later cancelPendingRequests() does not stop
+      // it from reaching the server.
+      synchronized (pendingRequests) {
+        // A cancelled request calls back no more, so cancelling it completes it.
+        pendingRequests.put(callbacks, new Cancellable() {
+          @Override
+          public void cancel() {
+            httpConnection.cancel();
+            finished.complete();
+          }
+
+          @Override
+          public boolean isCancelled() {
+            return httpConnection.isCancelled();
+          }
+        });
+      }
+    }
     httpConnection.send();
+    return finished;
+  }
+
+  private void requestFinished(AsyncHttpEvents callbacks, Runnable onDone, Completion finished) {
+    synchronized (pendingRequests) {
+      pendingRequests.remove(callbacks);
+    }
+    finished.complete();
+    if (onDone != null) {
+      executor.execute(onDone);
+    }
+  }
+
+  // Cancels the room join and any room server POST still in flight. May be called
+  // from any thread.
+  private void cancelPendingRequests() {
+    Cancellable joinRequest = roomParametersRequest;
+    if (joinRequest != null) {
+      joinRequest.cancel();
+    }
+    List<Cancellable> requests;
+    synchronized (pendingRequests) {
+      requests = new ArrayList<Cancellable>(pendingRequests.values());
+      pendingRequests.clear();
+    }
+    if (!requests.isEmpty()) {
+      AppLog.d(TAG, "Cancelling {} pending room server request(s)", requests.size());
+    }
+    for (Cancellable request : requests) {
+      request.cancel();
+    }
   }
 
   // Converts a Java candidate to a JSONObject.
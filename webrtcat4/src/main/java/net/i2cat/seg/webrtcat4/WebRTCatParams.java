@@ -1,5 +1,11 @@
 package net.i2cat.seg.webrtcat4;
 
+import org.appspot.apprtc.util.AsyncHttpExecutor;
+import org.appspot.apprtc.util.ExponentialBackoffRetryPolicy;
+import org.appspot.apprtc.util.HttpTransport;
+import org.appspot.apprtc.util.RetryPolicy;
+import org.appspot.apprtc.util.StreamUtils;
+
 public class WebRTCatParams {
     private String roomServerUri;
     private String roomName;
@@ -10,6 +16,20 @@ public class WebRTCatParams {
     private int videoStartingBitrate = 1024;    // in kbps
     private String audioCodec = "OPUS";
     private int audioStartingBitrate = 32;      // in kbps
+    private int httpMaxThreads = AsyncHttpExecutor.DEFAULT_MAX_THREADS;         // Signaling HTTP worker threads.
+    private int httpQueueCapacity = AsyncHttpExecutor.DEFAULT_QUEUE_CAPACITY;   // Pending signaling HTTP requests.
+    private int maxHttpResponseBytes = StreamUtils.DEFAULT_MAX_BODY_BYTES;     // Largest accepted signaling response.
+    private RetryPolicy httpRetryPolicy = new ExponentialBackoffRetryPolicy();  // null = never retry.
+    private int iceCandidateBatchWindowMs = 0;  // 0 = send each local ICE candidate on its own.
+    private String leaveRequestEncoding = null;  // null = send the LEAVE body uncompressed.
+    private HttpTransport httpTransport = null;  // null = HttpURLConnection.
+    private int maxSignalingMessagesInFlight = WebRTCatClient.DEFAULT_MAX_MESSAGES_IN_FLIGHT;
+    private boolean prewarmSignalingConnection = false;  // Open a connection to the WebSocket host early.
+    private int webSocketSendQueueCapacity = WebRTCatSocketChannelClient.DEFAULT_SEND_QUEUE_CAPACITY;
+    private WebRTCatSocketChannelClient.SendQueueOverflowPolicy webSocketSendQueueOverflowPolicy =
+            WebRTCatSocketChannelClient.SendQueueOverflowPolicy.DROP_OLDEST_CANDIDATE;
+    private int webSocketReconnectTimeoutMs = 0;  // 0 = a lost WebSocket connection ends the call.
+    private boolean binarySignalingFrames = false;  // Ask the WebSocket server for binary frames.
 
     public WebRTCatParams(String roomServerUri, String roomName) {
         this.roomServerUri = roomServerUri;
@@ -52,6 +72,148 @@ public class WebRTCatParams {
         this.videoWidth = videoWidth;
     }
 
+    public int getHttpMaxThreads() {
+        return httpMaxThreads;
+    }
+
+    public void setHttpMaxThreads(int httpMaxThreads) {
+        this.httpMaxThreads = httpMaxThreads;
+    }
+
+    public int getHttpQueueCapacity() {
+        return httpQueueCapacity;
+    }
+
+    public void setHttpQueueCapacity(int httpQueueCapacity) {
+        this.httpQueueCapacity = httpQueueCapacity;
+    }
+
+    public int getMaxHttpResponseBytes() {
+        return maxHttpResponseBytes;
+    }
+
+    public void setMaxHttpResponseBytes(int maxHttpResponseBytes) {
+        this.maxHttpResponseBytes = maxHttpResponseBytes;
+    }
+
+    public RetryPolicy getHttpRetryPolicy() {
+        return httpRetryPolicy;
+    }
+
+    public void setHttpRetryPolicy(RetryPolicy httpRetryPolicy) {
+        this.httpRetryPolicy = httpRetryPolicy;
+    }
+
+    public int getIceCandidateBatchWindowMs() {
+        return iceCandidateBatchWindowMs;
+    }
+
+    /**
+     * When greater than 0, the call initiator collects local ICE candidates for up to this many
+     * milliseconds (or until gathering completes) and posts them to the room server in a single
+     * message. The room server must accept "candidates" messages.
+     */
+    public void setIceCandidateBatchWindowMs(int iceCandidateBatchWindowMs) {
+        this.iceCandidateBatchWindowMs = iceCandidateBatchWindowMs;
+    }
+
+    public String getLeaveRequestEncoding() {
+        return leaveRequestEncoding;
+    }
+
+    /**
+     * Compresses the LEAVE message, which carries the call statistics, with the given
+     * Content-Encoding: StreamUtils.ENCODING_GZIP or StreamUtils.ENCODING_DEFLATE. Room servers
+     * that answer 415 get the message uncompressed.
+     */
+    public void setLeaveRequestEncoding(String leaveRequestEncoding) {
+        this.leaveRequestEncoding = leaveRequestEncoding;
+    }
+
+    public HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Replaces the transport of the signaling HTTP requests, e.g. with an InMemoryHttpTransport
+     * standing in for the room server.
+     */
+    public void setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    public int getMaxSignalingMessagesInFlight() {
+        return maxSignalingMessagesInFlight;
+    }
+
+    /**
+     * Maximum number of messages posted to the room server at the same time. Further messages
+     * are queued and sent in priority order: SDP, ICE candidates, then candidate removals and
+     * system messages.
+     */
+    public void setMaxSignalingMessagesInFlight(int maxSignalingMessagesInFlight) {
+        this.maxSignalingMessagesInFlight = maxSignalingMessagesInFlight;
+    }
+
+    public boolean isPrewarmSignalingConnection() {
+        return prewarmSignalingConnection;
+    }
+
+    /**
+     * If true, an HTTPS connection to the WebSocket server host is opened as soon as the host
+     * is known and kept alive for the messages posted to it.
+     */
+    public void setPrewarmSignalingConnection(boolean prewarmSignalingConnection) {
+        this.prewarmSignalingConnection = prewarmSignalingConnection;
+    }
+
+    public int getWebSocketSendQueueCapacity() {
+        return webSocketSendQueueCapacity;
+    }
+
+    /**
+     * Maximum number of messages queued for the WebSocket server while the client is not yet
+     * registered on it. What happens to further messages depends on the overflow policy.
+     */
+    public void setWebSocketSendQueueCapacity(int webSocketSendQueueCapacity) {
+        this.webSocketSendQueueCapacity = webSocketSendQueueCapacity;
+    }
+
+    public WebRTCatSocketChannelClient.SendQueueOverflowPolicy getWebSocketSendQueueOverflowPolicy() {
+        return webSocketSendQueueOverflowPolicy;
+    }
+
+    public void setWebSocketSendQueueOverflowPolicy(
+            WebRTCatSocketChannelClient.SendQueueOverflowPolicy webSocketSendQueueOverflowPolicy) {
+        this.webSocketSendQueueOverflowPolicy = webSocketSendQueueOverflowPolicy;
+    }
+
+    public int getWebSocketReconnectTimeoutMs() {
+        return webSocketReconnectTimeoutMs;
+    }
+
+    /**
+     * When greater than 0, a lost connection to the WebSocket server is reopened with jittered
+     * exponential backoff for up to this many milliseconds, and the client registered again in
+     * the same room. The call, whose media flows peer to peer, goes on meanwhile; messages sent
+     * shortly before the loss are sent again.
+     */
+    public void setWebSocketReconnectTimeoutMs(int webSocketReconnectTimeoutMs) {
+        this.webSocketReconnectTimeoutMs = webSocketReconnectTimeoutMs;
+    }
+
+    public boolean isBinarySignalingFrames() {
+        return binarySignalingFrames;
+    }
+
+    /**
+     * If true, the client offers the WebSocket server compact binary frames for SDP and ICE
+     * candidates when it registers. Servers that do not answer keep getting JSON text.
+     */
+    public void setBinarySignalingFrames(boolean binarySignalingFrames) {
+        this.binarySignalingFrames = binarySignalingFrames;
+    }
+
     public WebRTCatPeerConnectionClient.PeerConnectionParameters getPCParameters() {
         return new WebRTCatPeerConnectionClient.PeerConnectionParameters(
                 true,           /* is video call */
@@ -13,9 +13,12 @@ package net.i2cat.seg.webrtcat4;
 import android.content.Context;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
-import android.util.Log;
+
+import net.i2cat.seg.webrtcat4.stats.CallSetupTimeline;
+import net.i2cat.seg.webrtcat4.stats.CallSetupTimeline.Milestone;
 
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.util.AppLog;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
 import org.webrtc.Camera1Enumerator;
@@ -48,6 +51,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.EnumSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Executors;
@@ -91,6 +95,9 @@ public class WebRTCatPeerConnectionClient {
   private static final int MAX_VIDEO_WIDTH = 1280;
   private static final int MAX_VIDEO_HEIGHT = 1280;
   private static final int MAX_VIDEO_FPS = 30;
+  // ICE candidates gathered ahead of the offer/answer. With MAXBUNDLE one transport
+  // is used, so one pooled session is enough.
+  private static final int ICE_CANDIDATE_POOL_SIZE = 1;
 
   private static final WebRTCatPeerConnectionClient instance = new WebRTCatPeerConnectionClient();
   private final PCObserver pcObserver = new PCObserver();
@@ -99,8 +106,14 @@ public class WebRTCatPeerConnectionClient {
 
   private Context context;
   private PeerConnectionFactory factory;
+  // Factory created by prewarmFactory() ahead of a call, with the parameters and
+  // options it was created with. Accessed on the executor thread only.
+  private PeerConnectionFactory prewarmedFactory;
+  private PeerConnectionParameters prewarmedParameters;
+  private PeerConnectionFactory.Options prewarmedOptions;
   private PeerConnection peerConnection;
   PeerConnectionFactory.Options options = null;
+  private volatile CallSetupTimeline callSetupTimeline;
   private AudioSource audioSource;
   private VideoSource videoSource;
   private boolean videoCallEnabled;
@@ -112,6 +125,9 @@ public class WebRTCatPeerConnectionClient {
   private VideoRenderer.Callbacks localRender;
   private VideoRenderer.Callbacks remoteRender;
   private SignalingParameters signalingParameters;
+  // ICE servers the peer connection was created with by prepareConnection(), until the
+  // signaling parameters of the room join arrive.
+  private List<PeerConnection.IceServer> preparedIceServers;
   private MediaConstraints pcConstraints;
   private int videoWidth;
   private int videoHeight;
@@ -212,6 +228,12 @@ public class WebRTCatPeerConnectionClient {
      +     */
     void onIceCandidatesRemoved(final IceCandidate[] candidates);
 
+    /**
+     * webrtcat extension: Callback fired once local ICE candidate gathering is
+     * complete (IceGatheringState is COMPLETE).
+     */
+    void onIceGatheringComplete();
+
     /**
      * Callback fired once connection is established (IceConnectionState is
      * CONNECTED).
@@ -258,6 +280,19 @@ public class WebRTCatPeerConnectionClient {
     this.options = options;
   }
 
+  // Timeline of the current call, on which SDP creation, candidate gathering and ICE
+  // connection are stamped.
+  public void setCallSetupTimeline(CallSetupTimeline callSetupTimeline) {
+    this.callSetupTimeline = callSetupTimeline;
+  }
+
+  private void markMilestone(Milestone milestone) {
+    CallSetupTimeline timeline = callSetupTimeline;
+    if (timeline != null) {
+      timeline.mark(milestone);
+    }
+  }
+
   public void createPeerConnectionFactory(
       final Context context,
       final PeerConnectionParameters peerConnectionParameters,
@@ -281,6 +316,7 @@ public class WebRTCatPeerConnectionClient {
     remoteVideoTrack = null;
     enableAudio = true;
     localAudioTrack = null;
+    preparedIceServers = null;
     statsTimer = new Timer();
     executor.execute(new Runnable() {
       @Override
@@ -290,13 +326,48 @@ public class WebRTCatPeerConnectionClient {
     });
   }
 
+  /**
+   * Creates a peer connection factory ahead of a call, e.g. while an incoming call
+   * rings. The next createPeerConnectionFactory() call adopts it if it is made with
+   * compatible parameters. Does nothing while a call is using the factory.
+   */
+  public void prewarmFactory(final Context context,
+      final PeerConnectionParameters peerConnectionParameters) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (factory != null || prewarmedFactory != null) {
+          return;
+        }
+        AppLog.d(TAG, "Pre-warming peer connection factory.");
+        if (!initializeFactoryGlobals(context, peerConnectionParameters)) {
+          AppLog.w(TAG, "Failed to initializeAndroidGlobals");
+          return;
+        }
+        prewarmedFactory = new PeerConnectionFactory(options);
+        prewarmedParameters = peerConnectionParameters;
+        prewarmedOptions = options;
+      }
+    });
+  }
+
+  /** Disposes of the factory created by prewarmFactory(), if not adopted. */
+  public void discardPrewarmedFactory() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        discardPrewarmedFactoryInternal();
+      }
+    });
+  }
+
   public void createPeerConnection(
       final EglBase.Context renderEGLContext,
       final VideoRenderer.Callbacks localRender,
       final VideoRenderer.Callbacks remoteRender,
       final SignalingParameters signalingParameters) {
     if (peerConnectionParameters == null) {
-      Log.e(TAG, "Creating peer connection without initializing factory.");
+      AppLog.e(TAG, "Creating peer connection without initializing factory.");
       return;
     }
     this.localRender = localRender;
@@ -307,7 +378,11 @@ public class WebRTCatPeerConnectionClient {
       public void run() {
         try {
           createMediaConstraintsInternal();
-          createPeerConnectionInternal(renderEGLContext);
+          if (preparedIceServers != null && peerConnection != null) {
+            updatePreparedPeerConnectionInternal();
+          } else {
+            createPeerConnectionInternal(renderEGLContext, signalingParameters.iceServers);
+          }
         } catch (Exception e) {
           reportError("Failed to create peer connection: " + e.getMessage());
           throw e;
@@ -316,6 +391,38 @@ public class WebRTCatPeerConnectionClient {
     });
   }
 
+  /**
+   * Creates the peer connection ahead of the room join with |iceServers| from a
+   * previous join (see RoomConfigCache), so that ICE candidate gathering starts
+   * early. createPeerConnection() then reuses it, updating its configuration if
+   * the ICE servers of the join response differ.
+   */
+  public void prepareConnection(final EglBase.Context renderEGLContext,
+      final List<PeerConnection.IceServer> iceServers) {
+    if (peerConnectionParameters == null) {
+      AppLog.e(TAG, "Preparing peer connection without initializing factory.");
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (peerConnection != null) {
+          return;
+        }
+        try {
+          createMediaConstraintsInternal();
+          createPeerConnectionInternal(renderEGLContext, iceServers);
+          if (peerConnection != null) {
+            preparedIceServers = iceServers;
+          }
+        } catch (Exception e) {
+          // Not fatal: the peer connection is created again once the room is joined.
+          AppLog.w(TAG, "Failed to prepare peer connection: " + e.getMessage());
+        }
+      }
+    });
+  }
+
   public void close() {
     executor.execute(new Runnable() {
       @Override
@@ -336,7 +443,7 @@ public class WebRTCatPeerConnectionClient {
                   Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
                   + "webrtc-trace.txt");
       }
-    Log.d(TAG, "Create peer connection factory. Use video: " +
+    AppLog.d(TAG, "Create peer connection factory. Use video: {}",
         peerConnectionParameters.videoCallEnabled);
     isError = false;
 
@@ -352,55 +459,97 @@ public class WebRTCatPeerConnectionClient {
         preferredVideoCodec = VIDEO_CODEC_H264;
       }
     }
-    Log.d(TAG, "Pereferred video codec: " + preferredVideoCodec);
+    AppLog.d(TAG, "Pereferred video codec: {}", preferredVideoCodec);
 
     // Check if ISAC is used by default.
     preferIsac = peerConnectionParameters.audioCodec != null && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
 
+    if (prewarmedFactory != null) {
+      if (canAdoptPrewarmedFactory()) {
+        AppLog.d(TAG, "Using pre-warmed peer connection factory.");
+        this.context = context;
+        factory = prewarmedFactory;
+        prewarmedFactory = null;
+        prewarmedParameters = null;
+        prewarmedOptions = null;
+        return;
+      }
+      discardPrewarmedFactoryInternal();
+    }
+
+    // Create peer connection factory.
+    if (!initializeFactoryGlobals(context, peerConnectionParameters)) {
+      events.onPeerConnectionError("Failed to initializeAndroidGlobals");
+    }
+    if (options != null) {
+      AppLog.d(TAG, "Factory networkIgnoreMask option: {}", options.networkIgnoreMask);
+    }
+    this.context = context;
+    factory = new PeerConnectionFactory(options);
+    AppLog.d(TAG, "Peer connection factory created.");
+  }
+
+  // Applies the process-wide audio settings of |params| and initializes the Android
+  // globals the factory depends on.
+  private static boolean initializeFactoryGlobals(Context context,
+      PeerConnectionParameters params) {
     // Enable/disable OpenSL ES playback.
-    if (!peerConnectionParameters.useOpenSLES) {
-      Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
+    if (!params.useOpenSLES) {
+      AppLog.d(TAG, "Disable OpenSL ES audio even if device supports it");
       WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true /* enable */);
     } else {
-      Log.d(TAG, "Allow OpenSL ES audio if device supports it");
+      AppLog.d(TAG, "Allow OpenSL ES audio if device supports it");
       WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(false);
     }
 
-    if (peerConnectionParameters.disableBuiltInAEC) {
-      Log.d(TAG, "Disable built-in AEC even if device supports it");
+    if (params.disableBuiltInAEC) {
+      AppLog.d(TAG, "Disable built-in AEC even if device supports it");
       WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(true);
     } else {
-      Log.d(TAG, "Enable built-in AEC if device supports it");
+      AppLog.d(TAG, "Enable built-in AEC if device supports it");
       WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(false);
     }
 
-    if (peerConnectionParameters.disableBuiltInAGC) {
-      Log.d(TAG, "Disable built-in AGC even if device supports it");
+    if (params.disableBuiltInAGC) {
+      AppLog.d(TAG, "Disable built-in AGC even if device supports it");
       WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(true);
     } else {
-      Log.d(TAG, "Enable built-in AGC if device supports it");
+      AppLog.d(TAG, "Enable built-in AGC if device supports it");
       WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(false);
     }
 
-    if (peerConnectionParameters.disableBuiltInNS) {
-      Log.d(TAG, "Disable built-in NS even if device supports it");
+    if (params.disableBuiltInNS) {
+      AppLog.d(TAG, "Disable built-in NS even if device supports it");
       WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(true);
     } else {
-      Log.d(TAG, "Enable built-in NS if device supports it");
+      AppLog.d(TAG, "Enable built-in NS if device supports it");
       WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(false);
     }
 
-    // Create peer connection factory.
-    if (!PeerConnectionFactory.initializeAndroidGlobals(context, true, true,
-        peerConnectionParameters.videoCodecHwAcceleration)) {
-      events.onPeerConnectionError("Failed to initializeAndroidGlobals");
-    }
-    if (options != null) {
-      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
+    return PeerConnectionFactory.initializeAndroidGlobals(context, true, true,
+        params.videoCodecHwAcceleration);
+  }
+
+  // The factory depends on the parameters applied by initializeFactoryGlobals() and
+  // on the factory options; the remaining parameters are read per call.
+  private boolean canAdoptPrewarmedFactory() {
+    PeerConnectionParameters p = prewarmedParameters;
+    return prewarmedOptions == options
+        && p.videoCodecHwAcceleration == peerConnectionParameters.videoCodecHwAcceleration
+        && p.useOpenSLES == peerConnectionParameters.useOpenSLES
+        && p.disableBuiltInAEC == peerConnectionParameters.disableBuiltInAEC
+        && p.disableBuiltInAGC == peerConnectionParameters.disableBuiltInAGC
+        && p.disableBuiltInNS == peerConnectionParameters.disableBuiltInNS;
+  }
+
+  private void discardPrewarmedFactoryInternal() {
+    if (prewarmedFactory != null) {
+      AppLog.d(TAG, "Discarding pre-warmed peer connection factory.");
+      prewarmedFactory.dispose();
+      prewarmedFactory = null;
+      prewarmedParameters = null;
+      prewarmedOptions = null;
     }
-    this.context = context;
-    factory = new PeerConnectionFactory(options);
-    Log.d(TAG, "Peer connection factory created.");
   }
 
   private void createMediaConstraintsInternal() {
@@ -418,7 +567,7 @@ public class WebRTCatPeerConnectionClient {
     // Check if there is a camera on device and disable video call if not.
     numberOfCameras = CameraEnumerationAndroid.getDeviceCount();
     if (numberOfCameras == 0) {
-      Log.w(TAG, "No camera on device. Switch to audio only call.");
+      AppLog.w(TAG, "No camera on device. Switch to audio only call.");
       videoCallEnabled = false;
     }
     // Create video constraints if video call is enabled.
@@ -447,7 +596,7 @@ public class WebRTCatPeerConnectionClient {
     audioConstraints = new MediaConstraints();
     // added for audio performance measurements
     if (peerConnectionParameters.noAudioProcessing) {
-      Log.d(TAG, "Disabling audio processing");
+      AppLog.d(TAG, "Disabling audio processing");
       audioConstraints.mandatory.add(new KeyValuePair(
             AUDIO_ECHO_CANCELLATION_CONSTRAINT, "false"));
       audioConstraints.mandatory.add(new KeyValuePair(
@@ -458,7 +607,7 @@ public class WebRTCatPeerConnectionClient {
            AUDIO_NOISE_SUPPRESSION_CONSTRAINT , "false"));
     }
     if (peerConnectionParameters.enableLevelControl) {
-      Log.d(TAG, "Enabling level control.");
+      AppLog.d(TAG, "Enabling level control.");
       audioConstraints.mandatory.add(new KeyValuePair(
            AUDIO_LEVEL_CONTROL_CONSTRAINT, "true"));
     }
@@ -505,31 +654,70 @@ public class WebRTCatPeerConnectionClient {
     }
   }
 
-  private void createPeerConnectionInternal(EglBase.Context renderEGLContext) {
+  private PeerConnection.RTCConfiguration createRtcConfiguration(
+      List<PeerConnection.IceServer> iceServers) {
+    PeerConnection.RTCConfiguration rtcConfig =
+        new PeerConnection.RTCConfiguration(iceServers);
+    // TCP candidates are only useful when connecting to a server that supports
+    // ICE-TCP.
+    rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+    rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+    rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+    rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+    // Use ECDSA encryption.
+    rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+    rtcConfig.iceCandidatePoolSize = ICE_CANDIDATE_POOL_SIZE;
+    return rtcConfig;
+  }
+
+  // Checks the ICE servers a prepared peer connection was created with against the ones
+  // of the room join, and reconfigures it if they differ.
+  private void updatePreparedPeerConnectionInternal() {
+    List<PeerConnection.IceServer> iceServers = signalingParameters.iceServers;
+    if (sameIceServers(preparedIceServers, iceServers)) {
+      AppLog.d(TAG, "Using prepared peer connection.");
+    } else {
+      AppLog.d(TAG, "ICE servers changed, updating prepared peer connection.");
+      if (!peerConnection.setConfiguration(createRtcConfiguration(iceServers))) {
+        reportError("Failed to update peer connection configuration");
+      }
+    }
+    preparedIceServers = null;
+  }
+
+  private static boolean sameIceServers(List<PeerConnection.IceServer> lhs,
+      List<PeerConnection.IceServer> rhs) {
+    if (lhs.size() != rhs.size()) {
+      return false;
+    }
+    for (int i = 0; i < lhs.size(); i++) {
+      PeerConnection.IceServer a = lhs.get(i);
+      PeerConnection.IceServer b = rhs.get(i);
+      if (!a.uri.equals(b.uri) || !a.username.equals(b.username)
+          || !a.password.equals(b.password)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void createPeerConnectionInternal(EglBase.Context renderEGLContext,
+      List<PeerConnection.IceServer> iceServers) {
     if (factory == null || isError) {
-      Log.e(TAG, "Peerconnection factory is not created");
+      AppLog.e(TAG, "Peerconnection factory is not created");
       return;
     }
-    Log.d(TAG, "Create peer connection.");
+    AppLog.d(TAG, "Create peer connection.");
 
-    Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
+    AppLog.d(TAG, "PCConstraints: {}", pcConstraints);
     queuedRemoteCandidates = new LinkedList<IceCandidate>();
 
     if (videoCallEnabled) {
-      Log.d(TAG, "EGLContext: " + renderEGLContext);
+      AppLog.d(TAG, "EGLContext: {}", renderEGLContext);
       factory.setVideoHwAccelerationOptions(renderEGLContext, renderEGLContext);
     }
 
-    PeerConnection.RTCConfiguration rtcConfig =
-        new PeerConnection.RTCConfiguration(signalingParameters.iceServers);
-    // TCP candidates are only useful when connecting to a server that supports
-    // ICE-TCP.
-    rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
-    rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-    rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-    rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
-    // Use ECDSA encryption.
-    rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+    PeerConnection.RTCConfiguration rtcConfig = createRtcConfiguration(iceServers);
 
     peerConnection = factory.createPeerConnection(
         rtcConfig, pcConstraints, pcObserver);
@@ -551,7 +739,7 @@ public class WebRTCatPeerConnectionClient {
       if (numberOfCameras > 1 && frontCameraDeviceName != null) {
         cameraDeviceName = frontCameraDeviceName;
       }
-      Log.d(TAG, "Opening camera: " + cameraDeviceName);
+      AppLog.d(TAG, "Opening camera: {}", cameraDeviceName);
       videoCapturer = VideoCapturerAndroid.create(cameraDeviceName, null,
           peerConnectionParameters.captureToTexture ? renderEGLContext : null);
       if (videoCapturer == null) {
@@ -576,11 +764,11 @@ public class WebRTCatPeerConnectionClient {
                 ParcelFileDescriptor.MODE_TRUNCATE);
         factory.startAecDump(aecDumpFileDescriptor.getFd(), -1);
       } catch(IOException e) {
-        Log.e(TAG, "Can not open aecdump file", e);
+        AppLog.e(TAG, "Can not open aecdump file", e);
       }
     }
 
-    Log.d(TAG, "Peer connection created.");
+    AppLog.d(TAG, "Peer connection created.");
   }
 
   public void setVideoRenderers(VideoRenderer.Callbacks localRender, VideoRenderer.Callbacks remoteRender) {
@@ -626,18 +814,18 @@ public class WebRTCatPeerConnectionClient {
     if (factory != null && peerConnectionParameters.aecDump) {
       factory.stopAecDump();
     }
-    Log.d(TAG, "Closing peer connection.");
+    AppLog.d(TAG, "Closing peer connection.");
     statsTimer.cancel();
     if (peerConnection != null) {
       peerConnection.dispose();
       peerConnection = null;
     }
-    Log.d(TAG, "Closing audio source.");
+    AppLog.d(TAG, "Closing audio source.");
     if (audioSource != null) {
       audioSource.dispose();
       audioSource = null;
     }
-    Log.d(TAG, "Stopping capture.");
+    AppLog.d(TAG, "Stopping capture.");
     if (videoCapturer != null) {
       try {
         videoCapturer.stopCapture();
@@ -647,18 +835,18 @@ public class WebRTCatPeerConnectionClient {
       videoCapturer.dispose();
       videoCapturer = null;
     }
-    Log.d(TAG, "Closing video source.");
+    AppLog.d(TAG, "Closing video source.");
     if (videoSource != null) {
       videoSource.dispose();
       videoSource = null;
     }
-    Log.d(TAG, "Closing peer connection factory.");
+    AppLog.d(TAG, "Closing peer connection factory.");
     if (factory != null) {
       factory.dispose();
       factory = null;
     }
     options = null;
-    Log.d(TAG, "Closing peer connection done.");
+    AppLog.d(TAG, "Closing peer connection done.");
     events.onPeerConnectionClosed();
     PeerConnectionFactory.stopInternalTracingCapture();
     PeerConnectionFactory.shutdownInternalTracer();
@@ -683,7 +871,7 @@ public class WebRTCatPeerConnectionClient {
       }
     }, null);
     if (!success) {
-      Log.e(TAG, "getStats() returns false!");
+      AppLog.e(TAG, "getStats() returns false!");
     }
   }
 
@@ -702,7 +890,7 @@ public class WebRTCatPeerConnectionClient {
           }
         }, 0, periodMs);
       } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
+        AppLog.e(TAG, "Can not schedule statistics timer", e);
       }
     } else {
       statsTimer.cancel();
@@ -741,7 +929,7 @@ public class WebRTCatPeerConnectionClient {
       @Override
       public void run() {
         if (peerConnection != null && !isError) {
-          Log.d(TAG, "PC Create OFFER");
+          AppLog.d(TAG, "PC Create OFFER");
           isInitiator = true;
           peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
         }
@@ -754,7 +942,7 @@ public class WebRTCatPeerConnectionClient {
       @Override
       public void run() {
         if (peerConnection != null && !isError) {
-          Log.d(TAG, "PC create ANSWER");
+          AppLog.d(TAG, "PC create ANSWER");
           isInitiator = false;
           peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
         }
@@ -818,7 +1006,7 @@ public class WebRTCatPeerConnectionClient {
           sdpDescription = setStartBitrate(AUDIO_CODEC_OPUS, false,
               sdpDescription, peerConnectionParameters.audioStartBitrate);
         }
-        Log.d(TAG, "Set remote SDP.");
+        AppLog.d(TAG, "Set remote SDP.");
         SessionDescription sdpRemote = new SessionDescription(
             sdp.type, sdpDescription);
         peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
@@ -831,7 +1019,7 @@ public class WebRTCatPeerConnectionClient {
       @Override
       public void run() {
         if (videoCapturer != null && !videoCapturerStopped) {
-          Log.d(TAG, "Stop video source.");
+          AppLog.d(TAG, "Stop video source.");
           try {
             videoCapturer.stopCapture();
           } catch (InterruptedException e) {}
@@ -846,7 +1034,7 @@ public class WebRTCatPeerConnectionClient {
       @Override
       public void run() {
         if (videoCapturer != null && videoCapturerStopped) {
-          Log.d(TAG, "Restart video source.");
+          AppLog.d(TAG, "Restart video source.");
           videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
           videoCapturerStopped = false;
         }
@@ -855,7 +1043,7 @@ public class WebRTCatPeerConnectionClient {
   }
 
   private void reportError(final String errorMessage) {
-    Log.e(TAG, "Peerconnection error: " + errorMessage);
+    AppLog.e(TAG, "Peerconnection error: " + errorMessage);
     executor.execute(new Runnable() {
       @Override
       public void run() {
@@ -902,11 +1090,10 @@ public class WebRTCatPeerConnectionClient {
       }
     }
     if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
+      AppLog.w(TAG, "No rtpmap for " + codec + " codec");
       return sdpDescription;
     }
-    Log.d(TAG, "Found " +  codec + " rtpmap " + codecRtpMap
-        + " at " + lines[rtpmapLineIndex]);
+    AppLog.d(TAG, "Found {} rtpmap {} at {}", codec, codecRtpMap, lines[rtpmapLineIndex]);
 
     // Check if a=fmtp string already exist in remote SDP for this codec and
     // update it with new bitrate parameter.
@@ -915,7 +1102,7 @@ public class WebRTCatPeerConnectionClient {
     for (int i = 0; i < lines.length; i++) {
       Matcher codecMatcher = codecPattern.matcher(lines[i]);
       if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " +  codec + " " + lines[i]);
+        AppLog.d(TAG, "Found {} {}", codec, lines[i]);
         if (isVideoCodec) {
           lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE
               + "=" + bitrateKbps;
@@ -923,7 +1110,7 @@ public class WebRTCatPeerConnectionClient {
           lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE
               + "=" + (bitrateKbps * 1000);
         }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
+        AppLog.d(TAG, "Update remote SDP line: {}", lines[i]);
         sdpFormatUpdated = true;
         break;
       }
@@ -942,7 +1129,7 @@ public class WebRTCatPeerConnectionClient {
           bitrateSet = "a=fmtp:" + codecRtpMap + " "
               + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
         }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
+        AppLog.d(TAG, "Add remote SDP line: {}", bitrateSet);
         newSdpDescription.append(bitrateSet).append("\r\n");
       }
 
@@ -974,15 +1161,14 @@ public class WebRTCatPeerConnectionClient {
       }
     }
     if (mLineIndex == -1) {
-      Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
+      AppLog.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
       return sdpDescription;
     }
     if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec);
+      AppLog.w(TAG, "No rtpmap for " + codec);
       return sdpDescription;
     }
-    Log.d(TAG, "Found " +  codec + " rtpmap " + codecRtpMap + ", prefer at "
-        + lines[mLineIndex]);
+    AppLog.d(TAG, "Found {} rtpmap {}, prefer at {}", codec, codecRtpMap, lines[mLineIndex]);
     String[] origMLineParts = lines[mLineIndex].split(" ");
     if (origMLineParts.length > 3) {
       StringBuilder newMLine = new StringBuilder();
@@ -998,9 +1184,9 @@ public class WebRTCatPeerConnectionClient {
         }
       }
       lines[mLineIndex] = newMLine.toString();
-      Log.d(TAG, "Change media description: " + lines[mLineIndex]);
+      AppLog.d(TAG, "Change media description: {}", lines[mLineIndex]);
     } else {
-      Log.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
+      AppLog.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
     }
     StringBuilder newSdpDescription = new StringBuilder();
     for (String line : lines) {
@@ -1011,7 +1197,7 @@ public class WebRTCatPeerConnectionClient {
 
   private void drainCandidates() {
     if (queuedRemoteCandidates != null) {
-      Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
+      AppLog.d(TAG, "Add {} remote candidates", queuedRemoteCandidates.size());
       for (IceCandidate candidate : queuedRemoteCandidates) {
         peerConnection.addIceCandidate(candidate);
       }
@@ -1021,11 +1207,11 @@ public class WebRTCatPeerConnectionClient {
 
   private void switchCameraInternal() {
     if (!videoCallEnabled || numberOfCameras < 2 || isError || videoCapturer == null) {
-      Log.e(TAG, "Failed to switch camera. Video: " + videoCallEnabled + ". Error : "
+      AppLog.e(TAG, "Failed to switch camera. Video: " + videoCallEnabled + ". Error : "
           + isError + ". Number of cameras: " + numberOfCameras);
       return;  // No video is sent or only one camera is available or error happened.
     }
-    Log.d(TAG, "Switch camera");
+    AppLog.d(TAG, "Switch camera");
     videoCapturer.switchCamera(null);
   }
 
@@ -1049,11 +1235,11 @@ public class WebRTCatPeerConnectionClient {
 
   private void changeCaptureFormatInternal(int width, int height, int framerate) {
     if (!videoCallEnabled || isError || videoCapturer == null) {
-      Log.e(TAG, "Failed to change capture format. Video: " + videoCallEnabled + ". Error : "
+      AppLog.e(TAG, "Failed to change capture format. Video: " + videoCallEnabled + ". Error : "
           + isError);
       return;
     }
-    Log.d(TAG, "changeCaptureFormat: " + width + "x" + height + "@" + framerate);
+    AppLog.d(TAG, "changeCaptureFormat: {}x{}@{}", width, height, framerate);
     videoCapturer.onOutputFormatRequest(width, height, framerate);
   }
 
@@ -1061,6 +1247,7 @@ public class WebRTCatPeerConnectionClient {
   private class PCObserver implements PeerConnection.Observer {
     @Override
     public void onIceCandidate(final IceCandidate candidate){
+      markMilestone(Milestone.FIRST_LOCAL_CANDIDATE);
       executor.execute(new Runnable() {
         @Override
         public void run() {
@@ -1082,7 +1269,7 @@ public class WebRTCatPeerConnectionClient {
     @Override
     public void onSignalingChange(
         PeerConnection.SignalingState newState) {
-      Log.d(TAG, "SignalingState: " + newState);
+      AppLog.d(TAG, "SignalingState: {}", newState);
     }
 
     @Override
@@ -1091,8 +1278,9 @@ public class WebRTCatPeerConnectionClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          Log.d(TAG, "IceConnectionState: " + newState);
+          AppLog.d(TAG, "IceConnectionState: {}", newState);
           if (newState == IceConnectionState.CONNECTED) {
+            markMilestone(Milestone.ICE_CONNECTED);
             events.onIceConnected();
           } else if (newState == IceConnectionState.DISCONNECTED) {
             events.onIceDisconnected();
@@ -1107,12 +1295,20 @@ public class WebRTCatPeerConnectionClient {
     @Override
     public void onIceGatheringChange(
       PeerConnection.IceGatheringState newState) {
-      Log.d(TAG, "IceGatheringState: " + newState);
+      AppLog.d(TAG, "IceGatheringState: {}", newState);
+      if (newState == PeerConnection.IceGatheringState.COMPLETE) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            events.onIceGatheringComplete();
+          }
+        });
+      }
     }
 
     @Override
     public void onIceConnectionReceivingChange(boolean receiving) {
-      Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
+      AppLog.d(TAG, "IceConnectionReceiving changed to {}", receiving);
     }
 
     @Override
@@ -1170,6 +1366,8 @@ public class WebRTCatPeerConnectionClient {
         reportError("Multiple SDP create.");
         return;
       }
+      markMilestone((origSdp.type == SessionDescription.Type.OFFER)
+          ? Milestone.OFFER_CREATED : Milestone.ANSWER_CREATED);
       String sdpDescription = origSdp.description;
       if (preferIsac) {
         sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
@@ -1184,7 +1382,7 @@ public class WebRTCatPeerConnectionClient {
         @Override
         public void run() {
           if (peerConnection != null && !isError) {
-            Log.d(TAG, "Set local SDP from " + sdp.type);
+            AppLog.d(TAG, "Set local SDP from {}", sdp.type);
             peerConnection.setLocalDescription(sdpObserver, sdp);
           }
         }
@@ -1204,12 +1402,12 @@ public class WebRTCatPeerConnectionClient {
             // local SDP, then after receiving answer set remote SDP.
             if (peerConnection.getRemoteDescription() == null) {
               // We've just set our local SDP so time to send it.
-              Log.d(TAG, "Local SDP set succesfully");
+              AppLog.d(TAG, "Local SDP set succesfully");
               events.onLocalDescription(localSdp);
             } else {
               // We've just set remote description, so drain remote
               // and send local ICE candidates.
-              Log.d(TAG, "Remote SDP set succesfully");
+              AppLog.d(TAG, "Remote SDP set succesfully");
               drainCandidates();
             }
           } else {
@@ -1218,13 +1416,13 @@ public class WebRTCatPeerConnectionClient {
             if (peerConnection.getLocalDescription() != null) {
               // We've just set our local SDP so time to send it, drain
               // remote and send local ICE candidates.
-              Log.d(TAG, "Local SDP set succesfully");
+              AppLog.d(TAG, "Local SDP set succesfully");
               events.onLocalDescription(localSdp);
               drainCandidates();
             } else {
               // We've just set remote SDP - do nothing for now -
               // answer will be created soon.
-              Log.d(TAG, "Remote SDP set succesfully");
+              AppLog.d(TAG, "Remote SDP set succesfully");
             }
           }
         }
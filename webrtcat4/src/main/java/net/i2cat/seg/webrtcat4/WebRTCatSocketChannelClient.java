@@ -10,17 +10,25 @@
 
 package net.i2cat.seg.webrtcat4;
 
-import android.util.Log;
+import android.os.SystemClock;
 
+import net.i2cat.seg.webrtcat4.stats.CallSetupTimeline;
+
+import org.appspot.apprtc.util.AppLog;
+import org.appspot.apprtc.util.AsyncHttpExecutor;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.Completion;
 import org.appspot.apprtc.util.LooperExecutor;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Random;
 
 import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver;
 import de.tavendo.autobahn.WebSocketConnection;
@@ -37,6 +45,12 @@ import de.tavendo.autobahn.WebSocketException;
 public class WebRTCatSocketChannelClient {
   private static final String TAG = "WebRTCatSockClient";
   private static final int CLOSE_TIMEOUT = 1000;
+  public static final int DEFAULT_SEND_QUEUE_CAPACITY = 64;
+  // Reconnection backoff bounds, and how far back sent messages are replayed after a
+  // reconnection.
+  private static final long RECONNECT_BASE_DELAY_MS = 250;
+  private static final long RECONNECT_MAX_DELAY_MS = 4000;
+  private static final long REPLAY_WINDOW_MS = 5000;
   private final WebSocketChannelEvents events;
   private final LooperExecutor executor;
   private WebSocketConnection ws;
@@ -46,17 +60,57 @@ public class WebRTCatSocketChannelClient {
   private String roomID;
   private String clientID;
   private WebSocketConnectionState state;
-  private final Object closeEventLock = new Object();
-  private boolean closeEvent;
+  // Completed by onClose() of the connection closed by disconnectAsync().
+  private volatile Completion closeCompletion;
+  private CallSetupTimeline callSetupTimeline;
   // WebSocket send queue. Messages are added to the queue when WebSocket
   // client is not registered and are consumed in register() call.
-  private final LinkedList<String> wsSendQueue;
+  private final WebSocketSendQueue wsSendQueue;
+  private final WebSocketEnvelopeWriter envelopeWriter = new WebSocketEnvelopeWriter();
+  // Binary frames are asked for at registration if enabled, and used once the server
+  // has accepted them on the current connection.
+  private boolean binaryFramesEnabled;
+  private boolean binaryFramesAccepted;
+  private final SendQueueOverflowPolicy overflowPolicy;
+  private int droppedMessages;
+  // Reconnection after a lost connection, off if reconnectTimeoutMs is 0.
+  private long reconnectTimeoutMs;
+  private long connectionLostAtMs;
+  private int reconnectAttempts;
+  private final Random random = new Random();
+  // Messages sent in the last REPLAY_WINDOW_MS, replayed after a reconnection since
+  // the server does not acknowledge them. Only kept if reconnection is enabled.
+  private final ArrayDeque<SentMessage> recentlySent = new ArrayDeque<SentMessage>();
+
+  private static class SentMessage {
+    final String message;
+    final boolean isCandidate;
+    final long sentAtMs;
+
+    SentMessage(String message, boolean isCandidate, long sentAtMs) {
+      this.message = message;
+      this.isCandidate = isCandidate;
+      this.sentAtMs = sentAtMs;
+    }
+  }
 
   /**
    * Possible WebSocket connection states.
    */
   public enum WebSocketConnectionState {
-    NEW, CONNECTED, REGISTERED, CLOSED, ERROR
+    NEW, CONNECTED, REGISTERED, RECONNECTING, CLOSED, ERROR
+  };
+
+  /**
+   * What send() does with a message when the send queue is full.
+   */
+  public enum SendQueueOverflowPolicy {
+    // Drop the oldest queued ICE candidate, or the new message if it is a candidate and
+    // none is queued. Other messages are never dropped: if there is no candidate to
+    // make room for them, the channel fails as with FAIL_FAST.
+    DROP_OLDEST_CANDIDATE,
+    // Report a CANT_MESSAGE_ROOM error.
+    FAIL_FAST
   };
 
   /**
@@ -72,11 +126,17 @@ public class WebRTCatSocketChannelClient {
     }
 
   public WebRTCatSocketChannelClient(LooperExecutor executor, WebSocketChannelEvents events) {
+    this(executor, events, DEFAULT_SEND_QUEUE_CAPACITY, SendQueueOverflowPolicy.DROP_OLDEST_CANDIDATE);
+  }
+
+  public WebRTCatSocketChannelClient(LooperExecutor executor, WebSocketChannelEvents events,
+      int sendQueueCapacity, SendQueueOverflowPolicy overflowPolicy) {
     this.executor = executor;
     this.events = events;
     roomID = null;
     clientID = null;
-    wsSendQueue = new LinkedList<String>();
+    wsSendQueue = new WebSocketSendQueue(sendQueueCapacity);
+    this.overflowPolicy = overflowPolicy;
     state = WebSocketConnectionState.NEW;
   }
 
@@ -84,17 +144,35 @@ public class WebRTCatSocketChannelClient {
     return state;
   }
 
+  // Number of messages waiting for the registration.
+  public int getSendQueueDepth() {
+    return wsSendQueue.size();
+  }
+
+  public int getSendQueueHighWaterMark() {
+    return wsSendQueue.getHighWaterMark();
+  }
+
+  // Number of messages dropped because the send queue was full.
+  public int getDroppedMessageCount() {
+    return droppedMessages;
+  }
+
   public void connect(final String wsUrl, final String postUrl) {
     checkIfCalledOnValidThread();
     if (state != WebSocketConnectionState.NEW) {
-      Log.e(TAG, "WebSocket is already connected.");
+      AppLog.e(TAG, "WebSocket is already connected.");
       return;
     }
     wsServerUrl = wsUrl;
     postServerUrl = postUrl;
-    closeEvent = false;
 
-    Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
+    AppLog.d(TAG, "Connecting WebSocket to: {}. Post URL: {}", wsUrl, postUrl);
+    openWebSocket();
+  }
+
+  private void openWebSocket() {
+    binaryFramesAccepted = false;
     ws = new WebSocketConnection();
     wsObserver = new WebSocketObserver();
     try {
@@ -106,65 +184,181 @@ public class WebRTCatSocketChannelClient {
     }
   }
 
+  /**
+   * When greater than 0, a registered WebSocket whose connection is lost is reconnected
+   * and registered again with the same room and client id, for up to this many
+   * milliseconds, instead of reporting SIGNALING_SERVER_CONNECTION_CLOSED. Messages sent
+   * meanwhile are queued, and the messages sent shortly before the loss are sent again.
+   */
+  public void setReconnectTimeoutMs(long reconnectTimeoutMs) {
+    this.reconnectTimeoutMs = reconnectTimeoutMs;
+  }
+
+  /**
+   * Asks the WebSocket server for compact binary frames (see SignalingFrameCodec) when
+   * registering. Messages are sent as JSON text until the server accepts.
+   */
+  public void setBinaryFramesEnabled(boolean binaryFramesEnabled) {
+    this.binaryFramesEnabled = binaryFramesEnabled;
+  }
+
+  public void setCallSetupTimeline(CallSetupTimeline callSetupTimeline) {
+    this.callSetupTimeline = callSetupTimeline;
+  }
+
   public void register(final String roomID, final String clientID) {
     checkIfCalledOnValidThread();
     this.roomID = roomID;
     this.clientID = clientID;
     if (state != WebSocketConnectionState.CONNECTED) {
-      Log.w(TAG, "WebSocket register() in state " + state);
+      AppLog.w(TAG, "WebSocket register() in state {}", state);
       return;
     }
-    Log.d(TAG, "Registering WebSocket for room " + roomID + ". CLientID: " + clientID);
-    JSONObject json = new JSONObject();
-    try {
-      json.put("cmd", "register");
-      json.put("roomid", roomID);
-      json.put("clientid", clientID);
-      Log.d(TAG, "C->WSS: " + json.toString());
-      ws.sendTextMessage(json.toString());
-      state = WebSocketConnectionState.REGISTERED;
-      // Send any previously accumulated messages.
-      for (String sendMessage : wsSendQueue) {
-        send(sendMessage);
-      }
-      wsSendQueue.clear();
+    boolean reconnected = reconnectAttempts > 0;
+    AppLog.d(TAG, "Registering WebSocket for room {}. CLientID: {}", roomID, clientID);
+    String message = envelopeWriter.register(roomID, clientID,
+        binaryFramesEnabled ? SignalingFrameCodec.FORMAT : null);
+    AppLog.d(TAG, "C->WSS: {}", message);
+    ws.sendTextMessage(message);
+    state = WebSocketConnectionState.REGISTERED;
+    // Send any previously accumulated messages.
+    if (wsSendQueue.size() > 0) {
+      AppLog.d(TAG, "Flushing {} queued message(s)", wsSendQueue.size());
+    }
+    String queued;
+    while ((queued = wsSendQueue.poll()) != null) {
+      sendRegistered(queued);
+    }
 
-      events.onWebSocketRegistered();
-    } catch (JSONException e) {
-      reportError("WebSocket register JSON error: " + e.getMessage(), WebRTCatErrorCode.CANT_CONNECT_TO_SIGNALING_SERVER);
+    if (reconnected) {
+      // The room already knows about this client.
+      AppLog.d(TAG, "WebSocket reconnected after {} attempt(s), {} ms",
+          reconnectAttempts, SystemClock.elapsedRealtime() - connectionLostAtMs);
+      reconnectAttempts = 0;
+      return;
     }
+    if (callSetupTimeline != null) {
+      callSetupTimeline.mark(CallSetupTimeline.Milestone.WEBSOCKET_REGISTERED);
+    }
+    events.onWebSocketRegistered();
   }
 
   public void send(String message) {
+    send(message, false);
+  }
+
+  // |isCandidate| marks ICE candidates, which the DROP_OLDEST_CANDIDATE policy may drop
+  // while the client is not registered.
+  public void send(String message, boolean isCandidate) {
     checkIfCalledOnValidThread();
     switch (state) {
       case NEW:
       case CONNECTED:
+      case RECONNECTING:
         // Store outgoing messages and send them after websocket client
         // is registered.
-        Log.d(TAG, "WS ACC: " + message);
-        wsSendQueue.add(message);
+        AppLog.d(TAG, "WS ACC: {}", message);
+        enqueue(message, isCandidate);
         return;
       case ERROR:
       case CLOSED:
-        Log.e(TAG, "WebSocket send() in error or closed state : " + message);
+        AppLog.e(TAG, "WebSocket send() in error or closed state : {}", message);
         return;
       case REGISTERED:
-        JSONObject json = new JSONObject();
-        try {
-          json.put("cmd", "send");
-          json.put("msg", message);
-          message = json.toString();
-          Log.d(TAG, "C->WSS: " + message);
-          ws.sendTextMessage(message);
-        } catch (JSONException e) {
-          reportError("WebSocket send JSON error: " + e.getMessage(), WebRTCatErrorCode.CANT_MESSAGE_ROOM);
+        sendRegistered(message);
+        if (reconnectTimeoutMs > 0) {
+          remember(message, isCandidate);
         }
         break;
     }
     return;
   }
 
+  private void remember(String message, boolean isCandidate) {
+    long now = SystemClock.elapsedRealtime();
+    while (!recentlySent.isEmpty() && now - recentlySent.peekFirst().sentAtMs > REPLAY_WINDOW_MS) {
+      recentlySent.pollFirst();
+    }
+    recentlySent.addLast(new SentMessage(message, isCandidate, now));
+  }
+
+  // Runs on the looper thread when a registered WebSocket loses its connection or a
+  // reconnection attempt fails. Returns false if the connection is not to be retried.
+  private boolean scheduleReconnect() {
+    long now = SystemClock.elapsedRealtime();
+    if (state == WebSocketConnectionState.REGISTERED) {
+      connectionLostAtMs = now;
+      reconnectAttempts = 0;
+      // Whatever was sent shortly before the loss may not have reached the server. It
+      // goes out first after the reconnection, followed by the messages sent meanwhile.
+      for (SentMessage sent : recentlySent) {
+        if (now - sent.sentAtMs <= REPLAY_WINDOW_MS) {
+          enqueue(sent.message, sent.isCandidate);
+        }
+      }
+      recentlySent.clear();
+    }
+    long backoffMs = Math.min(RECONNECT_MAX_DELAY_MS,
+        RECONNECT_BASE_DELAY_MS << Math.min(reconnectAttempts, 16));
+    // "Equal jitter": wait at least half the backoff, spread the rest at random.
+    long delayMs = backoffMs / 2 + (long) (random.nextDouble() * (backoffMs / 2 + 1));
+    if (now + delayMs - connectionLostAtMs > reconnectTimeoutMs) {
+      return false;
+    }
+    reconnectAttempts++;
+    state = WebSocketConnectionState.RECONNECTING;
+    AppLog.d(TAG, "Reconnecting WebSocket in {} ms, attempt {}", delayMs, reconnectAttempts);
+    executor.executeDelayed(new Runnable() {
+      @Override
+      public void run() {
+        // Cancelled by disconnect() or a channel error meanwhile.
+        if (state == WebSocketConnectionState.RECONNECTING) {
+          openWebSocket();
+        }
+      }
+    }, delayMs);
+    return true;
+  }
+
+  private void enqueue(String message, boolean isCandidate) {
+    if (wsSendQueue.add(message, isCandidate)) {
+      return;
+    }
+    if (overflowPolicy == SendQueueOverflowPolicy.DROP_OLDEST_CANDIDATE) {
+      if (wsSendQueue.removeOldestDroppable()) {
+        droppedMessages++;
+        AppLog.w(TAG, "WebSocket send queue full, dropped oldest queued ICE candidate");
+        wsSendQueue.add(message, isCandidate);
+        return;
+      }
+      if (isCandidate) {
+        droppedMessages++;
+        AppLog.w(TAG, "WebSocket send queue full, dropped ICE candidate");
+        return;
+      }
+    }
+    reportError("WebSocket send queue full (" + wsSendQueue.capacity() + " messages)",
+        WebRTCatErrorCode.CANT_MESSAGE_ROOM);
+  }
+
+  private void sendRegistered(String message) {
+    if (binaryFramesAccepted) {
+      try {
+        byte[] frame = SignalingFrameCodec.encode(message);
+        if (AppLog.LOG_DEBUG && AppLog.isLoggable(AppLog.DEBUG)) {
+          AppLog.d(TAG, "C->WSS ({} bytes): {}", frame.length, message);
+        }
+        ws.sendBinaryMessage(frame);
+        return;
+      } catch (JSONException e) {
+        AppLog.w(TAG, "Sending message as text, not valid JSON: {}", e.getMessage());
+      }
+    }
+    message = envelopeWriter.send(message);
+    AppLog.d(TAG, "C->WSS: {}", message);
+    ws.sendTextMessage(message);
+  }
+
   // This call can be used to send WebSocket messages before WebSocket
   // connection is opened.
   public void post(String message) {
@@ -172,9 +366,21 @@ public class WebRTCatSocketChannelClient {
     sendWSSMessage("POST", message);
   }
 
-  public void disconnect(boolean waitForComplete) {
+  /**
+   * Starts closing the WebSocket without waiting for it. The returned completion
+   * finishes once the close event has been handled on the looper thread, or after
+   * CLOSE_TIMEOUT if none comes, at which point the WebSocket library no longer posts
+   * to the looper thread and the looper can be stopped.
+   */
+  public Completion disconnectAsync() {
     checkIfCalledOnValidThread();
-    Log.d(TAG, "Disonnect WebSocket. State: " + state);
+    AppLog.d(TAG, "Disonnect WebSocket. State: {}", state);
+    recentlySent.clear();
+    if (state == WebSocketConnectionState.RECONNECTING) {
+      // The server has already dropped this client. Abandon any connection attempt.
+      ws.disconnect();
+      state = WebSocketConnectionState.CLOSED;
+    }
     if (state == WebSocketConnectionState.REGISTERED) {
       // Send "bye" to WebSocket server.
       send("{\"type\": \"bye\"}");
@@ -185,29 +391,29 @@ public class WebRTCatSocketChannelClient {
     // Close WebSocket in CONNECTED or ERROR states only.
     if (state == WebSocketConnectionState.CONNECTED
         || state == WebSocketConnectionState.ERROR) {
+      final Completion closed = new Completion();
+      closeCompletion = closed;
       ws.disconnect();
       state = WebSocketConnectionState.CLOSED;
 
-      // Wait for websocket close event to prevent websocket library from
-      // sending any pending messages to deleted looper thread.
-      if (waitForComplete) {
-        synchronized (closeEventLock) {
-          while (!closeEvent) {
-            try {
-              closeEventLock.wait(CLOSE_TIMEOUT);
-              break;
-            } catch (InterruptedException e) {
-              Log.e(TAG, "Wait error: " + e.toString());
-            }
+      // The timeout runs off the looper thread, which may be stopped by then.
+      AsyncHttpExecutor.getInstance().schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (closed.complete()) {
+            AppLog.w(TAG, "No WebSocket close event after {} ms", CLOSE_TIMEOUT);
           }
         }
-      }
+      }, CLOSE_TIMEOUT);
+      AppLog.d(TAG, "Disonnecting WebSocket started.");
+      return closed;
     }
-    Log.d(TAG, "Disonnecting WebSocket done.");
+    AppLog.d(TAG, "Disonnecting WebSocket done.");
+    return Completion.completed();
   }
 
   private void reportError(final String errorMessage, final WebRTCatErrorCode errorCode) {
-    Log.e(TAG, errorMessage);
+    AppLog.e(TAG, errorMessage);
     executor.execute(new Runnable() {
       @Override
       public void run() {
@@ -222,7 +428,7 @@ public class WebRTCatSocketChannelClient {
   // Asynchronously send POST/DELETE to WebSocket server.
   private void sendWSSMessage(final String method, final String message) {
     String postUrl = postServerUrl + "/" + roomID + "/" + clientID;
-    Log.d(TAG, "WS " + method + " : " + postUrl + " : " + message);
+    AppLog.d(TAG, "WS {} : {} : {}", method, postUrl, message);
     AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
         method, postUrl, message, new AsyncHttpEvents() {
           @Override
@@ -234,6 +440,7 @@ public class WebRTCatSocketChannelClient {
           public void onHttpComplete(String response) {
           }
         });
+    httpConnection.setEndpoint("wss");
     httpConnection.send();
   }
 
@@ -249,11 +456,22 @@ public class WebRTCatSocketChannelClient {
   private class WebSocketObserver implements WebSocketConnectionObserver {
     @Override
     public void onOpen() {
-      Log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
+      AppLog.d(TAG, "WebSocket connection opened to: {}", wsServerUrl);
       executor.execute(new Runnable() {
         @Override
         public void run() {
+            if (wsObserver != WebSocketObserver.this) {
+              return;
+            }
+            if (state == WebSocketConnectionState.RECONNECTING) {
+              state = WebSocketConnectionState.CONNECTED;
+              register(roomID, clientID);
+              return;
+            }
             state = WebSocketConnectionState.CONNECTED;
+            if (callSetupTimeline != null) {
+              callSetupTimeline.mark(CallSetupTimeline.Milestone.WEBSOCKET_OPEN);
+            }
             events.onWebSocketOpen();
         }
       });
@@ -261,52 +479,111 @@ public class WebRTCatSocketChannelClient {
 
     @Override
     public void onClose(final WebSocketCloseNotification code, final String reason) {
-      Log.d(TAG, "WebSocket connection closed. Code: " + code
-              + ". Reason: " + reason + ". State: " + state);
-      synchronized (closeEventLock) {
-        closeEvent = true;
-        closeEventLock.notify();
-      }
+      AppLog.d(TAG, "WebSocket connection closed. Code: {}. Reason: {}. State: {}",
+          code, reason, state);
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          if (state != WebSocketConnectionState.CLOSED) {
-            state = WebSocketConnectionState.CLOSED;
-            if (code == WebSocketCloseNotification.CANNOT_CONNECT) {
-              events.onWebSocketError(reason, WebRTCatErrorCode.CANT_CONNECT_TO_SIGNALING_SERVER);
-            } else if (code == WebSocketCloseNotification.CONNECTION_LOST) {
-              events.onWebSocketError(reason, WebRTCatErrorCode.SIGNALING_SERVER_CONNECTION_CLOSED);
-            } else if ((code == WebSocketCloseNotification.INTERNAL_ERROR) ||
-                       (code == WebSocketCloseNotification.PROTOCOL_ERROR) ||
-                       (code == WebSocketCloseNotification.SERVER_ERROR)) {
-              events.onWebSocketError(reason, WebRTCatErrorCode.SIGNALING_SERVER_CONNECTION_ERROR);
-            } else {
-              events.onWebSocketClose();
+          if (wsObserver != WebSocketObserver.this) {
+            // A connection replaced by a reconnection.
+            return;
+          }
+          try {
+            handleClose(code, reason);
+          } finally {
+            // Completed last, as the looper may be stopped once it is.
+            Completion closed = closeCompletion;
+            if (closed != null) {
+              closed.complete();
             }
           }
         }
       });
     }
 
+    // Runs on the looper thread.
+    private void handleClose(WebSocketCloseNotification code, String reason) {
+      WebSocketCloseNotification closeCode = code;
+      boolean lost = (code == WebSocketCloseNotification.CONNECTION_LOST)
+          || (code == WebSocketCloseNotification.CANNOT_CONNECT);
+      if (reconnectTimeoutMs > 0 && lost
+          && (state == WebSocketConnectionState.REGISTERED
+              || state == WebSocketConnectionState.RECONNECTING)
+          && scheduleReconnect()) {
+        return;
+      }
+      if (state == WebSocketConnectionState.RECONNECTING) {
+        AppLog.w(TAG, "Giving up WebSocket reconnection after {} attempt(s)", reconnectAttempts);
+        closeCode = WebSocketCloseNotification.CONNECTION_LOST;
+      }
+      if (state != WebSocketConnectionState.CLOSED) {
+        state = WebSocketConnectionState.CLOSED;
+        if (closeCode == WebSocketCloseNotification.CANNOT_CONNECT) {
+          events.onWebSocketError(reason, WebRTCatErrorCode.CANT_CONNECT_TO_SIGNALING_SERVER);
+        } else if (closeCode == WebSocketCloseNotification.CONNECTION_LOST) {
+          events.onWebSocketError(reason, WebRTCatErrorCode.SIGNALING_SERVER_CONNECTION_CLOSED);
+        } else if ((closeCode == WebSocketCloseNotification.INTERNAL_ERROR) ||
+                   (closeCode == WebSocketCloseNotification.PROTOCOL_ERROR) ||
+                   (closeCode == WebSocketCloseNotification.SERVER_ERROR)) {
+          events.onWebSocketError(reason, WebRTCatErrorCode.SIGNALING_SERVER_CONNECTION_ERROR);
+        } else {
+          events.onWebSocketClose();
+        }
+      }
+    }
+
     @Override
     public void onTextMessage(String payload) {
-      Log.d(TAG, "WSS->C: " + payload);
       final String message = payload;
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          Log.d(TAG, "WSS->C: " + message + " state: " + state);
-            events.onWebSocketMessage(message);
+          if (wsObserver != WebSocketObserver.this) {
+            // A connection replaced by a reconnection.
+            return;
+          }
+          AppLog.d(TAG, "WSS->C: {} state: {}", message, state);
+          events.onWebSocketMessage(message);
         }
       });
     }
 
     @Override
     public void onRawTextMessage(byte[] payload) {
+      try {
+        onTextMessage(new String(payload, "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
     }
 
     @Override
-    public void onBinaryMessage(byte[] payload) {
+    public void onBinaryMessage(final byte[] payload) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (wsObserver != WebSocketObserver.this) {
+            return;
+          }
+          if (SignalingFrameCodec.isHello(payload)) {
+            AppLog.d(TAG, "WebSocket server accepted binary frames");
+            binaryFramesAccepted = binaryFramesEnabled;
+            return;
+          }
+          String message;
+          try {
+            message = SignalingFrameCodec.decode(payload);
+          } catch (IOException e) {
+            reportError("Malformed binary WebSocket message: " + e.getMessage(),
+                WebRTCatErrorCode.UNKNOWN_SIGNALING_SERVER_MESSAGE);
+            return;
+          }
+          if (AppLog.LOG_DEBUG && AppLog.isLoggable(AppLog.DEBUG)) {
+            AppLog.d(TAG, "WSS->C ({} bytes): {}", payload.length, message);
+          }
+          events.onWebSocketMessage(envelopeWriter.received(message));
+        }
+      });
     }
   }
 
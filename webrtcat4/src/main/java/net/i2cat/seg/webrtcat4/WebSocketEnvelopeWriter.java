@@ -0,0 +1,113 @@
+package net.i2cat.seg.webrtcat4;
+
+/**
+ * Writes the envelopes of the messages sent to the WebSocket server:
+ * {"cmd":"register","roomid":...,"clientid":...} and {"cmd":"send","msg":...}, and the
+ * {"msg":...,"error":""} text form of the messages received in binary frames.
+ *
+ * <p>The payload of a "send" is a JSON document already serialized by the caller, which
+ * the server expects as a string. It is escaped straight into a StringBuilder that is
+ * reused from one message to the next, so that writing an envelope allocates little
+ * more than the resulting String. Not thread safe: it is only used on the WebSocket
+ * client's looper thread.
+ */
+class WebSocketEnvelopeWriter {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // The builder is dropped rather than kept once it has grown past this size.
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private StringBuilder sb = new StringBuilder(1024);
+
+    // |frames|, if not null, asks the server for binary frames of that format.
+    String register(String roomId, String clientId, String frames) {
+        reset();
+        sb.append("{\"cmd\":\"register\",\"roomid\":");
+        appendString(roomId);
+        sb.append(",\"clientid\":");
+        appendString(clientId);
+        if (frames != null) {
+            sb.append(",\"frames\":");
+            appendString(frames);
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    String send(String message) {
+        reset();
+        sb.append("{\"cmd\":\"send\",\"msg\":");
+        appendString(message);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    String received(String message) {
+        reset();
+        sb.append("{\"msg\":");
+        appendString(message);
+        sb.append(",\"error\":\"\"}");
+        return sb.toString();
+    }
+
+    private void reset() {
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            sb = new StringBuilder(1024);
+        } else {
+            sb.setLength(0);
+        }
+    }
+
+    // Appends |value| as a JSON string literal, or null.
+    private void appendString(String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            // Copy the run of characters that need no escaping in one go.
+            sb.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                default:
+                    // Other control characters, and the line separators that JavaScript
+                    // does not accept in string literals.
+                    sb.append("\\u")
+                      .append(HEX_DIGITS[(c >> 12) & 0xf])
+                      .append(HEX_DIGITS[(c >> 8) & 0xf])
+                      .append(HEX_DIGITS[(c >> 4) & 0xf])
+                      .append(HEX_DIGITS[c & 0xf]);
+                    break;
+            }
+        }
+        sb.append(value, start, length);
+        sb.append('"');
+    }
+}
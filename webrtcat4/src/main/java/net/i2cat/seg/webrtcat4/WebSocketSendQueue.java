@@ -0,0 +1,88 @@
+package net.i2cat.seg.webrtcat4;
+
+/**
+ * Bounded FIFO of the WebSocket messages sent before the client is registered.
+ *
+ * <p>Messages are kept in a fixed array used as a ring, so that queueing does not
+ * allocate. Messages added as droppable (ICE candidates) can be evicted to make room
+ * for newer ones. Not thread safe: it is only used on the WebSocket client's looper
+ * thread.
+ */
+class WebSocketSendQueue {
+    private final String[] messages;
+    private final boolean[] droppable;
+    private int head;
+    private int size;
+    private int highWaterMark;
+
+    WebSocketSendQueue(int capacity) {
+        messages = new String[Math.max(1, capacity)];
+        droppable = new boolean[messages.length];
+    }
+
+    // Appends |message|. Returns false, leaving the queue unchanged, if it is full.
+    boolean add(String message, boolean isDroppable) {
+        if (size == messages.length) {
+            return false;
+        }
+        int tail = index(size);
+        messages[tail] = message;
+        droppable[tail] = isDroppable;
+        size++;
+        highWaterMark = Math.max(highWaterMark, size);
+        return true;
+    }
+
+    // Removes the oldest droppable message. Returns false if there is none.
+    boolean removeOldestDroppable() {
+        for (int i = 0; i < size; i++) {
+            if (droppable[index(i)]) {
+                // Close the gap by moving the older messages one slot towards the tail.
+                for (int j = i; j > 0; j--) {
+                    messages[index(j)] = messages[index(j - 1)];
+                    droppable[index(j)] = droppable[index(j - 1)];
+                }
+                messages[head] = null;
+                head = index(1);
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Removes and returns the oldest message, or null if the queue is empty.
+    String poll() {
+        if (size == 0) {
+            return null;
+        }
+        String message = messages[head];
+        messages[head] = null;
+        head = index(1);
+        size--;
+        return message;
+    }
+
+    void clear() {
+        while (poll() != null) {
+        }
+        head = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return messages.length;
+    }
+
+    // Largest number of messages queued at the same time.
+    int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    private int index(int offset) {
+        return (head + offset) % messages.length;
+    }
+}
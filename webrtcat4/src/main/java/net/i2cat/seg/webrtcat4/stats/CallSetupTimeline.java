@@ -0,0 +1,96 @@
+package net.i2cat.seg.webrtcat4.stats;
+
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+import static net.i2cat.seg.webrtcat4.WebRTUtils.jsonPut;
+
+/**
+ * Time at which each call setup milestone was reached, in ms since the call setup
+ * started (WebRTCat.connect() or WebRTCat.prejoin()).
+ *
+ * <p>Milestones are stamped with a monotonic clock by the signaling client, the
+ * WebSocket client and the peer connection client, from whichever thread they run
+ * on. Only the first time a milestone is reached is kept. On the callee side the
+ * time between OFFER_RECEIVED and CALL_ACCEPTED is spent waiting for the user.
+ */
+public class CallSetupTimeline {
+    public enum Milestone {
+        ROOM_JOINED,                // Join response received from the room server.
+        ICE_SERVERS_READY,          // ICE servers known, with TURN credentials.
+        WEBSOCKET_OPEN,
+        WEBSOCKET_REGISTERED,
+        OFFER_CREATED,
+        OFFER_SENT,                 // Offer POST to the room server completed.
+        OFFER_RECEIVED,
+        CALL_ACCEPTED,              // acceptCall() called by the callee.
+        ANSWER_CREATED,
+        ANSWER_SENT,
+        ANSWER_RECEIVED,
+        FIRST_LOCAL_CANDIDATE,
+        FIRST_REMOTE_CANDIDATE,
+        ICE_CONNECTED
+    }
+
+    private static final long NOT_REACHED = -1;
+
+    private final long startedAtMs = SystemClock.elapsedRealtime();
+    private final long startedAtWallClockMs = System.currentTimeMillis();
+    private final long[] elapsedMs = new long[Milestone.values().length];
+
+    public CallSetupTimeline() {
+        for (int i = 0; i < elapsedMs.length; i++) {
+            elapsedMs[i] = NOT_REACHED;
+        }
+    }
+
+    public synchronized void mark(Milestone milestone) {
+        if (elapsedMs[milestone.ordinal()] == NOT_REACHED) {
+            elapsedMs[milestone.ordinal()] = SystemClock.elapsedRealtime() - startedAtMs;
+        }
+    }
+
+    public synchronized boolean hasReached(Milestone milestone) {
+        return elapsedMs[milestone.ordinal()] != NOT_REACHED;
+    }
+
+    // Time from the start of the call setup to |milestone|, or -1 if not reached.
+    public synchronized long getElapsedMs(Milestone milestone) {
+        return elapsedMs[milestone.ordinal()];
+    }
+
+    // Wall clock time at which the call setup started, to match timelines with server logs.
+    public long getStartTime() {
+        return startedAtWallClockMs;
+    }
+
+    public synchronized JSONObject toJSON() {
+        JSONObject timeline = new JSONObject();
+        jsonPut(timeline, "startTime", startedAtWallClockMs);
+        for (Milestone milestone : Milestone.values()) {
+            long ms = elapsedMs[milestone.ordinal()];
+            if (ms != NOT_REACHED) {
+                jsonPut(timeline, milestone.name().toLowerCase(Locale.US), ms);
+            }
+        }
+        return timeline;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Milestone milestone : Milestone.values()) {
+            long ms = elapsedMs[milestone.ordinal()];
+            if (ms != NOT_REACHED) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(milestone.name().toLowerCase(Locale.US)).append('=').append(ms).append("ms");
+            }
+        }
+        return sb.toString();
+    }
+}
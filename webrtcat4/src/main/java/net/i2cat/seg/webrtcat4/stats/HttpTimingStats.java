@@ -0,0 +1,186 @@
+package net.i2cat.seg.webrtcat4.stats;
+
+import org.appspot.apprtc.util.HttpTiming;
+import org.appspot.apprtc.util.HttpTimingListener;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static net.i2cat.seg.webrtcat4.WebRTUtils.jsonPut;
+
+/**
+ * Aggregates the phase timings of signaling HTTP requests into one histogram per
+ * endpoint (join, message, leave, turn...) and phase.
+ */
+public class HttpTimingStats implements HttpTimingListener {
+    public static final String[] PHASES = {"dns", "connect", "tls", "send", "wait", "transfer", "total"};
+    // Upper bounds, in ms, of all buckets but the last one, which is unbounded.
+    public static final long[] BUCKET_BOUNDS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    private final Map<String, EndpointStats> endpoints = new LinkedHashMap<String, EndpointStats>();
+
+    /**
+     * Distribution of the durations of one phase.
+     */
+    public static class Histogram {
+        private final long[] buckets = new long[BUCKET_BOUNDS_MS.length + 1];
+        private long count;
+        private long sumMs;
+        private long maxMs;
+
+        void add(long valueMs) {
+            int i = 0;
+            while (i < BUCKET_BOUNDS_MS.length && valueMs > BUCKET_BOUNDS_MS[i]) {
+                i++;
+            }
+            buckets[i]++;
+            count++;
+            sumMs += valueMs;
+            maxMs = Math.max(maxMs, valueMs);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getAverageMs() {
+            return (count > 0) ? sumMs / count : 0;
+        }
+
+        public long getMaxMs() {
+            return maxMs;
+        }
+
+        // Upper bound of the bucket holding the |percentile|th value; getMaxMs() for the last bucket.
+        public long getPercentileMs(int percentile) {
+            long rank = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(BUCKET_BOUNDS_MS[i], maxMs);
+                }
+            }
+            return maxMs;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            jsonPut(json, "count", count);
+            jsonPut(json, "avgMs", getAverageMs());
+            jsonPut(json, "p50Ms", getPercentileMs(50));
+            jsonPut(json, "p95Ms", getPercentileMs(95));
+            jsonPut(json, "maxMs", maxMs);
+            JSONArray counts = new JSONArray();
+            for (long bucket : buckets) {
+                counts.put(bucket);
+            }
+            jsonPut(json, "buckets", counts);
+            return json;
+        }
+    }
+
+    /**
+     * Phase histograms of one endpoint.
+     */
+    public static class EndpointStats {
+        private final Histogram[] phases = new Histogram[PHASES.length];
+        private long failures;
+        private long newConnections;
+
+        EndpointStats() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+            }
+        }
+
+        void add(HttpTiming timing) {
+            if (timing.isFailed()) {
+                failures++;
+            }
+            if (!timing.isConnectionReused()) {
+                newConnections++;
+            }
+            phases[0].add(timing.getDnsMs());
+            phases[1].add(timing.getConnectMs());
+            phases[2].add(timing.getTlsMs());
+            phases[3].add(timing.getSendMs());
+            phases[4].add(timing.getWaitMs());
+            phases[5].add(timing.getTransferMs());
+            phases[6].add(timing.getTotalMs());
+        }
+
+        public long getFailureCount() {
+            return failures;
+        }
+
+        public long getNewConnectionCount() {
+            return newConnections;
+        }
+
+        // |phase| is one of PHASES.
+        public Histogram getHistogram(String phase) {
+            for (int i = 0; i < PHASES.length; i++) {
+                if (PHASES[i].equals(phase)) {
+                    return phases[i];
+                }
+            }
+            return null;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            jsonPut(json, "requests", phases[0].getCount());
+            jsonPut(json, "failures", failures);
+            jsonPut(json, "newConnections", newConnections);
+            for (int i = 0; i < PHASES.length; i++) {
+                jsonPut(json, PHASES[i], phases[i].toJSON());
+            }
+            return json;
+        }
+    }
+
+    @Override
+    public void onHttpTiming(HttpTiming timing) {
+        synchronized (endpoints) {
+            EndpointStats stats = endpoints.get(timing.getEndpoint());
+            if (stats == null) {
+                stats = new EndpointStats();
+                endpoints.put(timing.getEndpoint(), stats);
+            }
+            stats.add(timing);
+        }
+    }
+
+    public void reset() {
+        synchronized (endpoints) {
+            endpoints.clear();
+        }
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        synchronized (endpoints) {
+            for (Map.Entry<String, EndpointStats> entry : endpoints.entrySet()) {
+                jsonPut(json, entry.getKey(), entry.getValue().toJSON());
+            }
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (endpoints) {
+            for (Map.Entry<String, EndpointStats> entry : endpoints.entrySet()) {
+                Histogram total = entry.getValue().getHistogram("total");
+                sb.append(entry.getKey()).append(": ").append(total.getCount()).append(" requests, p50=")
+                        .append(total.getPercentileMs(50)).append("ms, p95=")
+                        .append(total.getPercentileMs(95)).append("ms; ");
+            }
+        }
+        return sb.toString();
+    }
+}
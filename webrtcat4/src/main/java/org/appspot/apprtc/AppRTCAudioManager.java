@@ -16,8 +16,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.media.AudioManager;
-import android.util.Log;
 
+import org.appspot.apprtc.util.AppLog;
 import org.appspot.apprtc.util.AppRTCUtils;
 
 import java.util.Collections;
@@ -125,7 +125,7 @@ public class AppRTCAudioManager {
   }
 
   public void init() {
-    Log.d(TAG, "init");
+    AppLog.d(TAG, "init");
     if (initialized) {
       return;
     }
@@ -161,7 +161,7 @@ public class AppRTCAudioManager {
   }
 
   public void close() {
-    Log.d(TAG, "close");
+    AppLog.d(TAG, "close");
     if (!initialized) {
       return;
     }
@@ -186,7 +186,7 @@ public class AppRTCAudioManager {
 
   /** Changes selection of the currently active audio device. */
   public void setAudioDevice(AudioDevice device) {
-    Log.d(TAG, "setAudioDevice(device=" + device + ")");
+    AppLog.d(TAG, "setAudioDevice(device={})", device);
     AppRTCUtils.assertIsTrue(audioDevices.contains(device));
 
     switch (device) {
@@ -203,7 +203,7 @@ public class AppRTCAudioManager {
         selectedAudioDevice = AudioDevice.WIRED_HEADSET;
         break;
       default:
-        Log.e(TAG, "Invalid audio device selection");
+        AppLog.e(TAG, "Invalid audio device selection");
         break;
     }
     onAudioManagerChangedState();
@@ -239,13 +239,15 @@ public class AppRTCAudioManager {
         int state = intent.getIntExtra("state", STATE_UNPLUGGED);
         int microphone = intent.getIntExtra("microphone", HAS_NO_MIC);
         String name = intent.getStringExtra("name");
-        Log.d(TAG, "BroadcastReceiver.onReceive" + AppRTCUtils.getThreadInfo()
-            + ": "
-            + "a=" + intent.getAction()
-            + ", s=" + (state == STATE_UNPLUGGED ? "unplugged" : "plugged")
-            + ", m=" + (microphone == HAS_MIC ? "mic" : "no mic")
-            + ", n=" + name
-            + ", sb=" + isInitialStickyBroadcast());
+        if (AppLog.LOG_DEBUG && AppLog.isLoggable(AppLog.DEBUG)) {
+          AppLog.d(TAG, "BroadcastReceiver.onReceive" + AppRTCUtils.getThreadInfo()
+              + ": "
+              + "a=" + intent.getAction()
+              + ", s=" + (state == STATE_UNPLUGGED ? "unplugged" : "plugged")
+              + ", m=" + (microphone == HAS_MIC ? "mic" : "no mic")
+              + ", n=" + name
+              + ", sb=" + isInitialStickyBroadcast());
+        }
 
         boolean hasWiredHeadset = (state == STATE_PLUGGED);
         switch (state) {
@@ -258,7 +260,7 @@ public class AppRTCAudioManager {
             }
             break;
           default:
-            Log.e(TAG, "Invalid state");
+            AppLog.e(TAG, "Invalid state");
             break;
         }
       }
@@ -324,7 +326,7 @@ public class AppRTCAudioManager {
         audioDevices.add(AudioDevice.EARPIECE);
       }
     }
-    Log.d(TAG, "audioDevices: " + audioDevices);
+    AppLog.d(TAG, "audioDevices: {}", audioDevices);
 
     // Switch to correct audio device given the list of available audio devices.
     if (hasWiredHeadset) {
@@ -336,8 +338,8 @@ public class AppRTCAudioManager {
 
   /** Called each time a new audio device has been added or removed. */
   private void onAudioManagerChangedState() {
-    Log.d(TAG, "onAudioManagerChangedState: devices=" + audioDevices
-        + ", selected=" + selectedAudioDevice);
+    AppLog.d(TAG, "onAudioManagerChangedState: devices={}, selected={}",
+        audioDevices, selectedAudioDevice);
 
     // Enable the proximity sensor if there are two available audio devices
     // in the list. Given the current implementation, we know that the choice
@@ -351,7 +353,7 @@ public class AppRTCAudioManager {
       // Stop the proximity sensor since it is no longer needed.
       // proximitySensor.stop();
     } else {
-      Log.e(TAG, "Invalid device list");
+      AppLog.e(TAG, "Invalid device list");
     }
 
     if (onStateChangeListener != null) {
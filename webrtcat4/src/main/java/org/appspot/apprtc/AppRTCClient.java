@@ -79,12 +79,35 @@ public interface AppRTCClient {
     public final String wssPostUrl;
     public final SessionDescription offerSdp;
     public final List<IceCandidate> iceCandidates;
+    // True while TURN credentials are still being fetched; |iceServers| then lacks them.
+    public final boolean iceServersPending;
+    // Key of the TURN credentials in TurnCredentialCache, or null if none are used.
+    public final String turnCredentialsKey;
 
     public SignalingParameters(
         List<PeerConnection.IceServer> iceServers,
         boolean initiator, String clientId,
         String wssUrl, String wssPostUrl,
         SessionDescription offerSdp, List<IceCandidate> iceCandidates) {
+      this(iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates, false);
+    }
+
+    public SignalingParameters(
+        List<PeerConnection.IceServer> iceServers,
+        boolean initiator, String clientId,
+        String wssUrl, String wssPostUrl,
+        SessionDescription offerSdp, List<IceCandidate> iceCandidates,
+        boolean iceServersPending) {
+      this(iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates,
+          iceServersPending, null);
+    }
+
+    public SignalingParameters(
+        List<PeerConnection.IceServer> iceServers,
+        boolean initiator, String clientId,
+        String wssUrl, String wssPostUrl,
+        SessionDescription offerSdp, List<IceCandidate> iceCandidates,
+        boolean iceServersPending, String turnCredentialsKey) {
       this.iceServers = iceServers;
       this.initiator = initiator;
       this.clientId = clientId;
@@ -92,6 +115,14 @@ public interface AppRTCClient {
       this.wssPostUrl = wssPostUrl;
       this.offerSdp = offerSdp;
       this.iceCandidates = iceCandidates;
+      this.iceServersPending = iceServersPending;
+      this.turnCredentialsKey = turnCredentialsKey;
+    }
+
+    // Returns a copy of these parameters with the final list of ICE servers.
+    public SignalingParameters withIceServers(List<PeerConnection.IceServer> iceServers) {
+      return new SignalingParameters(iceServers, initiator, clientId, wssUrl, wssPostUrl,
+          offerSdp, iceCandidates, false, turnCredentialsKey);
     }
   }
 
@@ -0,0 +1,106 @@
+package org.appspot.apprtc;
+
+/**
+ * Restores the '+' characters of ICE credentials that the room server turns into
+ * spaces: the values of a=ice-ufrag and a=ice-pwd lines, and the ufrag token of
+ * candidate lines.
+ *
+ * <p>The input is scanned once and nothing else is touched. When no credential
+ * contains a space, the input string itself is returned and nothing is allocated;
+ * otherwise the only allocations are the output characters and string.
+ */
+final class IceCredentialsRepair {
+  private static final String ICE_UFRAG_PREFIX = "a=ice-ufrag:";
+  private static final String ICE_PWD_PREFIX = "a=ice-pwd:";
+  private static final String UFRAG_TOKEN = " ufrag ";
+  // libjingle generates 4 character ufrags; the room server keeps the length, so
+  // the span to repair in a candidate is known even when it contains spaces.
+  private static final int CANDIDATE_UFRAG_LENGTH = 4;
+
+  private IceCredentialsRepair() {
+  }
+
+  /** Repairs the credentials of a whole SDP. */
+  static String repairSdp(CharSequence sdp) {
+    return repair(sdp, true);
+  }
+
+  /** Repairs the ufrag of a single "candidate:..." attribute value. */
+  static String repairCandidate(CharSequence candidate) {
+    return repair(candidate, false);
+  }
+
+  // In SDP mode only line starts are checked for the ice-ufrag and ice-pwd prefixes.
+  // In both modes the ufrag token of candidate attributes is repaired.
+  private static String repair(CharSequence text, boolean sdp) {
+    final int length = text.length();
+    char[] out = null;
+    // End (exclusive) of the span being repaired: until the end of the line for
+    // ice-ufrag/ice-pwd values, or a fixed length for candidate ufrags.
+    int spanEnd = -1;
+    boolean lineSpan = false;
+    boolean lineStart = true;
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (lineStart && sdp && spanEnd < 0) {
+        int prefixLength = startsWithAt(text, i, ICE_UFRAG_PREFIX)
+            ? ICE_UFRAG_PREFIX.length()
+            : startsWithAt(text, i, ICE_PWD_PREFIX) ? ICE_PWD_PREFIX.length() : 0;
+        if (prefixLength > 0) {
+          spanEnd = length;
+          lineSpan = true;
+          if (out != null) {
+            copy(text, i, i + prefixLength, out);
+          }
+          i += prefixLength - 1;
+          lineStart = false;
+          continue;
+        }
+      }
+      lineStart = (c == '\n');
+      if (c == '\r' || c == '\n') {
+        spanEnd = -1;
+        lineSpan = false;
+      } else if (spanEnd < 0 && c == ' ' && startsWithAt(text, i, UFRAG_TOKEN)) {
+        if (out != null) {
+          copy(text, i, i + UFRAG_TOKEN.length(), out);
+        }
+        i += UFRAG_TOKEN.length() - 1;
+        spanEnd = Math.min(length, i + 1 + CANDIDATE_UFRAG_LENGTH);
+        continue;
+      } else if (spanEnd >= 0 && c == ' ') {
+        if (out == null) {
+          out = new char[length];
+          copy(text, 0, i, out);
+        }
+        c = '+';
+      }
+      if (out != null) {
+        out[i] = c;
+      }
+      if (!lineSpan && spanEnd >= 0 && i + 1 >= spanEnd) {
+        spanEnd = -1;
+      }
+    }
+    // toString() of a String returns the same instance.
+    return (out == null) ? text.toString() : new String(out);
+  }
+
+  private static boolean startsWithAt(CharSequence text, int offset, String prefix) {
+    if (offset + prefix.length() > text.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (text.charAt(offset + i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void copy(CharSequence text, int start, int end, char[] out) {
+    for (int i = start; i < end; i++) {
+      out[i] = text.charAt(i);
+    }
+  }
+}
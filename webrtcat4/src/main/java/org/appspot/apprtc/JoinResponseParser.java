@@ -0,0 +1,274 @@
+package org.appspot.apprtc;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.appspot.apprtc.util.AppLog;
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the room server response to a join request with a pull parser, without
+ * building JSON trees.
+ *
+ * <p>The room server nests JSON documents as strings: "params" may be an object
+ * or a string holding one, and "messages" is an array of strings, each holding
+ * one message. Nested documents are read by a reader over the string value
+ * instead of being parsed into trees and serialized again. pc_config is kept as
+ * text, since it is cached as is.
+ */
+final class JoinResponseParser {
+  private static final String TAG = "JoinResponseParser";
+
+  /**
+   * Fields of a join response. String fields are null when absent.
+   */
+  static class JoinResponse {
+    String result;
+    String roomId;
+    String clientId;
+    String wssUrl;
+    String wssPostUrl;
+    String turnTimeLimitedLtcUrl;
+    final List<String> turnTimeLimitedLtcUrls = new ArrayList<String>();
+    Boolean initiator;
+    String pcConfig;
+    // Queued messages from the call initiator, with their ICE credentials repaired.
+    String offerSdp;
+    int messageCount;
+    final List<IceCandidate> iceCandidates = new ArrayList<IceCandidate>();
+
+    // Endpoints that hand out TURN credentials, in order of preference.
+    List<String> getTurnCredentialsUrls() {
+      List<String> urls = new ArrayList<String>();
+      if (turnTimeLimitedLtcUrl != null) {
+        urls.add(turnTimeLimitedLtcUrl);
+      }
+      for (String url : turnTimeLimitedLtcUrls) {
+        if (!urls.contains(url)) {
+          urls.add(url);
+        }
+      }
+      return urls;
+    }
+
+    // Throws if a field needed to join the room is missing.
+    void checkParams() throws JSONException {
+      String missing = (roomId == null) ? "room_id"
+          : (clientId == null) ? "client_id"
+          : (wssUrl == null) ? "wss_url"
+          : (wssPostUrl == null) ? "wss_post_url"
+          : (initiator == null) ? "is_initiator"
+          : (pcConfig == null) ? "pc_config"
+          : null;
+      if (missing != null) {
+        throw new JSONException("No value for " + missing);
+      }
+    }
+  }
+
+  private JoinResponseParser() {
+  }
+
+  static JoinResponse parse(String body) throws JSONException {
+    JoinResponse response = new JoinResponse();
+    JsonReader reader = new JsonReader(new StringReader(body));
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (name.equals("result")) {
+          response.result = nextString(reader);
+        } else if (name.equals("params")) {
+          if (reader.peek() == JsonToken.STRING) {
+            readNested(reader.nextString(), response, false);
+          } else {
+            readParams(reader, response);
+          }
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IOException e) {
+      throw new JSONException(e.toString());
+    } catch (IllegalStateException e) {
+      // Thrown by JsonReader when a value is not of the expected type.
+      throw new JSONException(e.getMessage());
+    } catch (NumberFormatException e) {
+      // Thrown by JsonReader.nextInt() for a number that is not an int, e.g. a label.
+      throw new JSONException(e.getMessage());
+    } finally {
+      closeQuietly(reader);
+    }
+    return response;
+  }
+
+  // Reads a document that was nested as a string: a "params" object or a message.
+  private static void readNested(String json, JoinResponse response, boolean message)
+      throws IOException {
+    JsonReader reader = new JsonReader(new StringReader(json));
+    try {
+      if (message) {
+        readMessage(reader, response);
+      } else {
+        readParams(reader, response);
+      }
+    } finally {
+      closeQuietly(reader);
+    }
+  }
+
+  private static void readParams(JsonReader reader, JoinResponse response) throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("room_id")) {
+        response.roomId = nextString(reader);
+      } else if (name.equals("client_id")) {
+        response.clientId = nextString(reader);
+      } else if (name.equals("wss_url")) {
+        response.wssUrl = nextString(reader);
+      } else if (name.equals("wss_post_url")) {
+        response.wssPostUrl = nextString(reader);
+      } else if (name.equals("turn_time_limited_ltc_url")) {
+        response.turnTimeLimitedLtcUrl = nextString(reader);
+      } else if (name.equals("turn_time_limited_ltc_urls")) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          String url = nextString(reader);
+          if (url != null) {
+            response.turnTimeLimitedLtcUrls.add(url);
+          }
+        }
+        reader.endArray();
+      } else if (name.equals("is_initiator")) {
+        // Sent as a string by the AppRTC server.
+        if (reader.peek() == JsonToken.BOOLEAN) {
+          response.initiator = reader.nextBoolean();
+        } else {
+          response.initiator = "true".equalsIgnoreCase(nextString(reader));
+        }
+      } else if (name.equals("pc_config")) {
+        response.pcConfig = nextString(reader);
+      } else if (name.equals("messages")) {
+        readMessages(reader, response);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private static void readMessages(JsonReader reader, JoinResponse response) throws IOException {
+    if (reader.peek() == JsonToken.STRING) {
+      JsonReader nested = new JsonReader(new StringReader(reader.nextString()));
+      try {
+        readMessages(nested, response);
+      } finally {
+        closeQuietly(nested);
+      }
+      return;
+    }
+    reader.beginArray();
+    while (reader.hasNext()) {
+      if (reader.peek() == JsonToken.STRING) {
+        readNested(reader.nextString(), response, true);
+      } else {
+        readMessage(reader, response);
+      }
+    }
+    reader.endArray();
+  }
+
+  private static void readMessage(JsonReader reader, JoinResponse response) throws IOException {
+    String type = null;
+    String sdp = null;
+    List<IceCandidate> candidates = null;
+    String id = null;
+    int label = 0;
+    String candidateSdp = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("type")) {
+        type = nextString(reader);
+      } else if (name.equals("sdp")) {
+        sdp = nextString(reader);
+      } else if (name.equals("id")) {
+        id = nextString(reader);
+      } else if (name.equals("label")) {
+        label = reader.nextInt();
+      } else if (name.equals("candidate")) {
+        candidateSdp = nextString(reader);
+      } else if (name.equals("candidates")) {
+        // Batched candidates sent by a call initiator.
+        candidates = new ArrayList<IceCandidate>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          candidates.add(readCandidate(reader));
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    AppLog.d(TAG, "GAE->C #{} : {}", response.messageCount++, type);
+    if ("offer".equals(type) && sdp != null) {
+      // Restore the '+' characters of the ICE credentials, which the room server
+      // turns into spaces.
+      response.offerSdp = IceCredentialsRepair.repairSdp(sdp);
+    } else if ("candidate".equals(type) && candidateSdp != null) {
+      response.iceCandidates.add(
+          new IceCandidate(id, label, IceCredentialsRepair.repairCandidate(candidateSdp)));
+    } else if ("candidates".equals(type) && candidates != null) {
+      response.iceCandidates.addAll(candidates);
+    } else {
+      AppLog.e(TAG, "Unknown message type: " + type);
+    }
+  }
+
+  private static IceCandidate readCandidate(JsonReader reader) throws IOException {
+    String id = null;
+    int label = 0;
+    String sdp = "";
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("id")) {
+        id = nextString(reader);
+      } else if (name.equals("label")) {
+        label = reader.nextInt();
+      } else if (name.equals("candidate")) {
+        sdp = nextString(reader);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new IceCandidate(id, label, IceCredentialsRepair.repairCandidate(sdp));
+  }
+
+  // Returns the next string value, or null for a JSON null.
+  private static String nextString(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+
+  private static void closeQuietly(JsonReader reader) {
+    try {
+      reader.close();
+    } catch (IOException e) {
+      // Ignore.
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.util.AppLog;
+import org.appspot.apprtc.util.StreamUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of the last good room configuration (pc_config, WebSocket URLs
+ * and TURN credentials URL) per room server, so that a call can start preparing
+ * its peer connection before the join response arrives, even right after a
+ * process restart.
+ *
+ * <p>The file is versioned and loaded lazily on first use, which reads it from
+ * disk: the first get() or update() must not run on the main thread. Entries are only
+ * hints: each join response is checked against the cached entry, which is
+ * replaced when they differ. This class is a singleton.
+ */
+public class RoomConfigCache {
+  private static final String TAG = "RoomConfigCache";
+  private static final String FILE_NAME = "webrtcat_room_config.json";
+  private static final int VERSION = 1;
+  private static final long MAX_ENTRY_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+  private static final RoomConfigCache instance = new RoomConfigCache();
+
+  private File file;
+  private Map<String, Entry> entries;
+
+  /**
+   * Cached configuration of one room server.
+   */
+  public static class Entry {
+    public final String pcConfig;
+    public final String wssUrl;
+    public final String wssPostUrl;
+    // Key of the TURN credentials in TurnCredentialCache, or null.
+    public final String turnCredentialsUrl;
+    public final long savedAtMs;
+    private List<PeerConnection.IceServer> iceServers;
+
+    Entry(String pcConfig, String wssUrl, String wssPostUrl, String turnCredentialsUrl,
+        long savedAtMs) {
+      this.pcConfig = pcConfig;
+      this.wssUrl = wssUrl;
+      this.wssPostUrl = wssPostUrl;
+      this.turnCredentialsUrl = turnCredentialsUrl;
+      this.savedAtMs = savedAtMs;
+    }
+
+    /**
+     * ICE servers of |pcConfig|, with the TURN credentials of TurnCredentialCache if
+     * it still has them, so that they match the ICE servers of the next join and the
+     * prepared peer connection is used as is. Otherwise TURN servers lack credentials.
+     */
+    public List<PeerConnection.IceServer> getIceServers() throws JSONException {
+      List<PeerConnection.IceServer> servers;
+      synchronized (this) {
+        if (iceServers == null) {
+          iceServers = RoomParametersFetcher.iceServersFromPCConfigJSON(pcConfig);
+        }
+        servers = iceServers;
+      }
+      if (turnCredentialsUrl != null) {
+        TurnCredentialCache.Credentials credentials =
+            TurnCredentialCache.getInstance().get(turnCredentialsUrl, null);
+        if (credentials != null) {
+          return RoomParametersFetcher.applyTurnCredentials(servers, credentials);
+        }
+      }
+      return servers;
+    }
+
+    boolean sameAs(String pcConfig, String wssUrl, String wssPostUrl,
+        String turnCredentialsUrl) {
+      return this.pcConfig.equals(pcConfig) && this.wssUrl.equals(wssUrl)
+          && this.wssPostUrl.equals(wssPostUrl)
+          && ((this.turnCredentialsUrl == null) ? turnCredentialsUrl == null
+              : this.turnCredentialsUrl.equals(turnCredentialsUrl));
+    }
+
+    JSONObject toJSON() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("pc_config", pcConfig);
+      json.put("wss_url", wssUrl);
+      json.put("wss_post_url", wssPostUrl);
+      if (turnCredentialsUrl != null) {
+        json.put("turn_url", turnCredentialsUrl);
+      }
+      json.put("saved_at", savedAtMs);
+      return json;
+    }
+  }
+
+  private RoomConfigCache() {
+  }
+
+  public static RoomConfigCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Sets the directory of the cache file, typically Context.getCacheDir(). The
+   * cache is memory only until this is called.
+   */
+  public synchronized void setDirectory(File directory) {
+    File newFile = new File(directory, FILE_NAME);
+    if (!newFile.equals(file)) {
+      file = newFile;
+      entries = null;
+    }
+  }
+
+  /** Returns the cached configuration of |roomServerUrl|, or null. */
+  public synchronized Entry get(String roomServerUrl) {
+    Entry entry = getEntries().get(roomServerUrl);
+    if (entry != null && System.currentTimeMillis() - entry.savedAtMs > MAX_ENTRY_AGE_MS) {
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Checks the configuration of a fresh join response against the cache and
+   * stores it if it differs.
+   *
+   * @return true if the cached entry was missing or out of date.
+   */
+  public synchronized boolean update(String roomServerUrl, String pcConfig, String wssUrl,
+      String wssPostUrl, String turnCredentialsUrl) {
+    Map<String, Entry> entries = getEntries();
+    Entry entry = entries.get(roomServerUrl);
+    if (entry != null && entry.sameAs(pcConfig, wssUrl, wssPostUrl, turnCredentialsUrl)) {
+      return false;
+    }
+    AppLog.d(TAG, "{} room configuration of {}", (entry == null) ? "Caching" : "Updating",
+        roomServerUrl);
+    entries.put(roomServerUrl,
+        new Entry(pcConfig, wssUrl, wssPostUrl, turnCredentialsUrl,
+            System.currentTimeMillis()));
+    save();
+    return true;
+  }
+
+  public synchronized void clear() {
+    entries = new HashMap<String, Entry>();
+    if (file != null && !file.delete()) {
+      AppLog.w(TAG, "Could not delete " + file);
+    }
+  }
+
+  private Map<String, Entry> getEntries() {
+    if (entries == null) {
+      entries = load();
+    }
+    return entries;
+  }
+
+  private Map<String, Entry> load() {
+    Map<String, Entry> loaded = new HashMap<String, Entry>();
+    if (file == null || !file.exists()) {
+      return loaded;
+    }
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      JSONObject json = new JSONObject(StreamUtils.drainStream(in, (int) file.length()));
+      if (json.optInt("version") != VERSION) {
+        AppLog.d(TAG, "Ignoring room configuration cache of version {}", json.optInt("version"));
+        return loaded;
+      }
+      JSONObject rooms = json.getJSONObject("rooms");
+      Iterator<?> keys = rooms.keys();
+      while (keys.hasNext()) {
+        String key = (String) keys.next();
+        JSONObject room = rooms.getJSONObject(key);
+        loaded.put(key, new Entry(room.getString("pc_config"), room.getString("wss_url"),
+            room.getString("wss_post_url"),
+            room.has("turn_url") ? room.getString("turn_url") : null,
+            room.getLong("saved_at")));
+      }
+    } catch (IOException e) {
+      AppLog.w(TAG, "Could not read " + file + ": " + e.getMessage());
+    } catch (JSONException e) {
+      AppLog.w(TAG, "Discarding corrupt " + file + ": " + e.getMessage());
+      loaded.clear();
+    } finally {
+      closeQuietly(in);
+    }
+    return loaded;
+  }
+
+  private void save() {
+    if (file == null) {
+      return;
+    }
+    File tmpFile = new File(file.getPath() + ".tmp");
+    OutputStream out = null;
+    try {
+      JSONObject rooms = new JSONObject();
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        rooms.put(entry.getKey(), entry.getValue().toJSON());
+      }
+      JSONObject json = new JSONObject();
+      json.put("version", VERSION);
+      json.put("rooms", rooms);
+      out = new FileOutputStream(tmpFile);
+      out.write(json.toString().getBytes("UTF-8"));
+      out.close();
+      out = null;
+      // Replace the old file in one step so that a crash never leaves half of it.
+      if (!tmpFile.renameTo(file)) {
+        throw new IOException("Could not rename " + tmpFile);
+      }
+    } catch (IOException e) {
+      AppLog.w(TAG, "Could not write " + file + ": " + e.getMessage());
+    } catch (JSONException e) {
+      AppLog.w(TAG, "Could not write " + file + ": " + e.getMessage());
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+    }
+  }
+}
@@ -10,11 +10,12 @@
 
 package org.appspot.apprtc;
 
-import android.util.Log;
-
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.util.AppLog;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.Cancellable;
+import org.appspot.apprtc.util.HostPrewarmer;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -23,26 +24,26 @@ import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Scanner;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
  * parameters to use with that room.
+ *
+ * <p>The fetch, including the TURN credential request it may trigger, can be
+ * cancelled; no callback is delivered after cancel().
  */
-public class RoomParametersFetcher {
+public class RoomParametersFetcher implements Cancellable {
   private static final String TAG = "RoomRTCClient";
-  private static final int TURN_HTTP_TIMEOUT_MS = 5000;
   private final RoomParametersFetcherEvents events;
   private final String roomUrl;
   private final String roomMessage;
   private AsyncHttpURLConnection httpConnection;
+  private volatile boolean cancelled;
+  private volatile Cancellable turnRequest;
+  private String configCacheKey;
 
   /**
    * Room parameters fetcher callbacks.
@@ -54,6 +55,12 @@ public class RoomParametersFetcher {
      */
     public void onSignalingParametersReady(final SignalingParameters params);
 
+    /**
+     * Callback fired once TURN credentials have been fetched, if the parameters
+     * passed to onSignalingParametersReady() had iceServersPending set.
+     */
+    public void onIceServersReady(final List<PeerConnection.IceServer> iceServers);
+
     /**
      * Callback for room parameters extraction error.
      */
@@ -67,15 +74,23 @@ public class RoomParametersFetcher {
     this.events = events;
   }
 
-  public void makeRequest() {
-    Log.d(TAG, "Connecting to room: " + roomUrl);
+  /**
+   * Keeps the configuration of the join response in RoomConfigCache under
+   * |roomServerUrl|, so that later calls can prepare with it.
+   */
+  public void setConfigCacheKey(String roomServerUrl) {
+    this.configCacheKey = roomServerUrl;
+  }
+
+  public Cancellable makeRequest() {
+    AppLog.d(TAG, "Connecting to room: {}", roomUrl);
     httpConnection = new AsyncHttpURLConnection(
         "POST", roomUrl, roomMessage,
         new AsyncHttpEvents() {
           @Override
           public void onHttpError(String errorMessage) {
-            Log.e(TAG, "Room connection error: " + errorMessage);
-            events.onSignalingParametersError(errorMessage);
+            AppLog.e(TAG, "Room connection error: " + errorMessage);
+            reportError(errorMessage);
           }
 
           @Override
@@ -83,187 +98,124 @@ public class RoomParametersFetcher {
             roomHttpResponseParse(response);
           }
         });
+    httpConnection.setEndpoint("join");
     httpConnection.send();
+    return this;
+  }
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+    if (httpConnection != null) {
+      httpConnection.cancel();
+    }
+    Cancellable request = turnRequest;
+    if (request != null) {
+      request.cancel();
+    }
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  private void reportError(String description) {
+    if (!cancelled) {
+      events.onSignalingParametersError(description);
+    }
   }
 
   private void roomHttpResponseParse(String response) {
-    Log.d(TAG, "Room response: " + response);
+    AppLog.d(TAG, "Room response: {}", response);
     try {
       LinkedList<IceCandidate> iceCandidates = null;
       SessionDescription offerSdp = null;
-      JSONObject roomJson = new JSONObject(response);
+      JoinResponseParser.JoinResponse join = JoinResponseParser.parse(response);
 
-      String result = roomJson.getString("result");
-      if (!result.equals("SUCCESS")) {
-        events.onSignalingParametersError("Room response error: " + result);
+      String result = join.result;
+      if (!"SUCCESS".equals(result)) {
+        reportError("Room response error: " + result);
         return;
       }
-      response = roomJson.getString("params");
-      roomJson = new JSONObject(response);
-      String roomId = roomJson.getString("room_id");
-      String clientId = roomJson.getString("client_id");
-      String wssUrl = roomJson.getString("wss_url");
-      String wssPostUrl = roomJson.getString("wss_post_url");
-      String turnTimeLimitedLTCURL = null;
-      if (roomJson.has("turn_time_limited_ltc_url")) {
-        turnTimeLimitedLTCURL = roomJson.getString("turn_time_limited_ltc_url");
-      }
-      boolean initiator = (roomJson.getBoolean("is_initiator"));
+      join.checkParams();
+      String roomId = join.roomId;
+      String clientId = join.clientId;
+      String wssUrl = join.wssUrl;
+      String wssPostUrl = join.wssPostUrl;
+      List<String> turnCredentialsUrls = join.getTurnCredentialsUrls();
+      boolean initiator = join.initiator;
       if (!initiator) {
-        iceCandidates = new LinkedList<IceCandidate>();
-        String messagesString = roomJson.getString("messages");
-        JSONArray messages = new JSONArray(messagesString);
-        for (int i = 0; i < messages.length(); ++i) {
-          String messageString = messages.getString(i);
-          JSONObject message = new JSONObject(messageString);
-          String messageType = message.getString("type");
-          Log.d(TAG, "GAE->C #" + i + " : " + messageString);
-          if (messageType.equals("offer")) {
-            String messageSdp = message.getString("sdp");
-            String[] parts = messageSdp.split("\n");
-            Integer index = 0;
-
-            StringBuilder sb = new StringBuilder();
-
-            for(String frase: parts){
-              String newFrase = frase;
-              if (frase.contains("ufrag")){
-
-                newFrase = frase.replace(" ", "+");
-              }
-              if (frase.contains("ice-pwd")){
-
-                newFrase = frase.replace(" ", "+");
-              }
-              sb.append(newFrase);
-              if (index != parts.length - 1){
-                sb.append("\n");
-              }
-              index ++;
-            }
-
-
-
-            offerSdp = new SessionDescription(SessionDescription.Type.fromCanonicalForm(messageType),
-                    sb.toString());
-          } else if (messageType.equals("candidate")) {
-            String messageSdp = message.getString("candidate");
-
-            final int len = messageSdp.length();
-
-            Boolean uFragFound = false;
-            StringBuilder sb = new StringBuilder();
-            Integer charactersUfrag = 0;
-
-            for (int index = 0; index < len; index++) {
-              Character character = messageSdp.charAt(index);
-              if(!uFragFound){
-                if(index > 3){
-
-                  if(character == 'g'){
-
-                    Character characterPrev = messageSdp.charAt(index - 1);
-                    if(characterPrev == 'a') {
-                      Character characterPrevPrev = messageSdp.charAt(index - 2);
-                      if(characterPrevPrev == 'r') {
-                        Character characterPrevPrevPrev = messageSdp.charAt(index - 3);
-                        if(characterPrevPrevPrev == 'f') {
-                          uFragFound = true;
-                        }
-                      }
-                    }
-                  }
-                }
-                sb.append(character);
-              }
-              else{
-                if(charactersUfrag == 0){
-                  sb.append(character);
-                }
-                else if (charactersUfrag > 0 && charactersUfrag < 5){
-                  if(character == ' '){
-                    sb.append("+");
-                  }
-                  else{
-                    sb.append(character);
-                  }
-                }
-                else{
-                  sb.append(character);
-                }
-
-                charactersUfrag++;
-              }
-
-            }
-
-
-
-            IceCandidate candidate = new IceCandidate(
-                    message.getString("id"),
-                    message.getInt("label"),
-                    sb.toString());
-            iceCandidates.add(candidate);
-          } else {
-            Log.e(TAG, "Unknown message: " + messageString);
-          }
+        iceCandidates = new LinkedList<IceCandidate>(join.iceCandidates);
+        if (join.offerSdp != null) {
+          offerSdp = new SessionDescription(SessionDescription.Type.OFFER, join.offerSdp);
         }
       }
-      Log.d(TAG, "RoomId: " + roomId + ". ClientId: " + clientId);
-      Log.d(TAG, "Initiator: " + initiator);
-      Log.d(TAG, "WSS url: " + wssUrl);
-      Log.d(TAG, "WSS POST url: " + wssPostUrl);
-
-      List<PeerConnection.IceServer> iceServers =
-          iceServersFromPCConfigJSON(roomJson.getString("pc_config"));
-
-      // If TURN servers do not have a username/password,
-      // and a time-limited TURN url was provided, request credentials and update the iceServers list
-      boolean sigParamsOK = true;
+      AppLog.d(TAG, "RoomId: {}. ClientId: {}", roomId, clientId);
+      AppLog.d(TAG, "Initiator: {}", initiator);
+      AppLog.d(TAG, "WSS url: {}", wssUrl);
+      AppLog.d(TAG, "WSS POST url: {}", wssPostUrl);
+
+      String pcConfig = join.pcConfig;
+      List<PeerConnection.IceServer> iceServers = iceServersFromPCConfigJSON(pcConfig);
+      // Resolve the hosts contacted next in parallel, instead of one after another as
+      // the call setup reaches each of them.
+      HostPrewarmer prewarmer = HostPrewarmer.getInstance();
+      prewarmer.prewarm(wssUrl, wssPostUrl);
+      prewarmer.prewarmConnection(wssPostUrl);
+      for (String url : turnCredentialsUrls) {
+        prewarmer.prewarm(url);
+      }
+      for (PeerConnection.IceServer iceServer : iceServers) {
+        prewarmer.prewarm(iceServer.uri);
+      }
+      // If TURN servers do not have a username/password and a time-limited TURN url
+      // was provided, cached credentials are used. Otherwise they are requested after
+      // the signaling parameters are reported, so that the WebSocket connection is set
+      // up in the meantime.
+      boolean fetchTurnCredentials = false;
+      String turnCredentialsKey = null;
       if (!checkTURNServers(iceServers)) {
-        if (turnTimeLimitedLTCURL != null) {
-          Log.d(TAG, "Request TURN credentials from: " + turnTimeLimitedLTCURL);
-          iceServers = getCredentialsForTURNServers(turnTimeLimitedLTCURL, iceServers);
+        if (!turnCredentialsUrls.isEmpty()) {
+          turnCredentialsKey = turnCredentialsUrls.get(0);
+          TurnCredentialCache.Credentials cached = TurnCredentialCache.getInstance().get(
+              turnCredentialsUrls.get(0), turnCredentialsFetcher(turnCredentialsUrls));
+          if (cached != null) {
+            AppLog.d(TAG, "Using cached TURN credentials for {}", turnCredentialsUrls.get(0));
+            iceServers = applyTurnCredentials(iceServers, cached);
+          } else {
+            fetchTurnCredentials = true;
+          }
         } else {
-          sigParamsOK = false;
-          events.onSignalingParametersError(
+          reportError(
                   "No username nor password provided for TURN server(s)");
+          return;
         }
       }
 
-      /* LINO currently we always provide the list of TURN servers at room join time
-      boolean isTurnPresent = false;
-      for (PeerConnection.IceServer server : iceServers) {
-        Log.d(TAG, "IceServer: " + server);
-        if (server.uri.startsWith("turn:")) {
-          isTurnPresent = true;
-          break;
-        }
+      if (configCacheKey != null) {
+        RoomConfigCache.getInstance().update(configCacheKey, pcConfig, wssUrl, wssPostUrl,
+            turnCredentialsKey);
       }
 
-      // Request TURN servers.
-      if (!isTurnPresent) {
-        LinkedList<PeerConnection.IceServer> turnServers =
-            requestTurnServers(roomJson.getString("turn_url"));
-        for (PeerConnection.IceServer turnServer : turnServers) {
-          Log.d(TAG, "TurnServer: " + turnServer);
-          iceServers.add(turnServer);
-        }
+      if (cancelled) {
+        return;
       }
-      */
-
-      if (sigParamsOK) {
-        SignalingParameters params = new SignalingParameters(
-                iceServers, initiator,
-                clientId, wssUrl, wssPostUrl,
-                offerSdp, iceCandidates);
-        events.onSignalingParametersReady(params);
+      SignalingParameters params = new SignalingParameters(
+              iceServers, initiator,
+              clientId, wssUrl, wssPostUrl,
+              offerSdp, iceCandidates, fetchTurnCredentials, turnCredentialsKey);
+      events.onSignalingParametersReady(params);
+      if (fetchTurnCredentials) {
+        iceServers = getCredentialsForTURNServers(turnCredentialsUrls, iceServers);
+        if (!cancelled) {
+          events.onIceServersReady(iceServers);
+        }
       }
     } catch (JSONException e) {
-      events.onSignalingParametersError(
-          "Room JSON parsing error: " + e.toString());
+      reportError("Room JSON parsing error: " + e.toString());
     } catch (IOException e) {
-      events.onSignalingParametersError("Room IO error: " + e.toString());
+      reportError("Room IO error: " + e.toString());
     }
   }
 
@@ -282,41 +234,38 @@ public class RoomParametersFetcher {
   }
 
   // Must be run off the main thread (because the http request is blocking)!
-  private List<PeerConnection.IceServer> getCredentialsForTURNServers(String timedLTCUrl, List<PeerConnection.IceServer> iceServers)
-          throws IOException, JSONException {
-    Log.d(TAG, "Request TURN credentials from: " + timedLTCUrl);
-    HttpURLConnection connection = (HttpURLConnection) new URL(timedLTCUrl).openConnection();
-    connection.setRequestMethod("POST");
-    connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-    connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-    connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-
-    JSONObject paramJSON = new JSONObject();
-    // This loginName is only needed for authenticating vs the TURN server.
-    paramJSON.put("loginName", "user" + System.currentTimeMillis());
-
-    OutputStream os = connection.getOutputStream();
-    os.write(paramJSON.toString().getBytes("UTF-8"));
-    os.close();
-
-    int responseCode = connection.getResponseCode();
-    if (responseCode != 200) {
-      throw new IOException("Non-200 response when requesting TURN credentials from "
-              + timedLTCUrl + " : " + connection.getHeaderField(null));
+  private List<PeerConnection.IceServer> getCredentialsForTURNServers(List<String> urls,
+      List<PeerConnection.IceServer> iceServers) throws IOException, JSONException {
+    TurnCredentialsRequest request = new TurnCredentialsRequest(urls);
+    turnRequest = request;
+    if (cancelled) {
+      throw new IOException("Cancelled");
     }
-    InputStream responseStream = connection.getInputStream();
-    String response = drainStream(responseStream);
-    connection.disconnect();
-    Log.d(TAG, "TURN credentials response: " + response);
-    JSONObject responseJSON = new JSONObject(response);
-    String username = responseJSON.getString("username");
-    String password = responseJSON.getString("credential");
+    TurnCredentialCache.Credentials credentials = request.execute();
+    turnRequest = null;
+    TurnCredentialCache.getInstance().put(urls.get(0), credentials);
+    return applyTurnCredentials(iceServers, credentials);
+  }
+
+  // Refreshes cached TURN credentials in the background. Credentials are cached under
+  // the first of their endpoints.
+  private static TurnCredentialCache.Fetcher turnCredentialsFetcher(final List<String> urls) {
+    return new TurnCredentialCache.Fetcher() {
+      @Override
+      public TurnCredentialCache.Credentials fetch(String url) throws Exception {
+        return new TurnCredentialsRequest(urls).execute();
+      }
+    };
+  }
 
+  static List<PeerConnection.IceServer> applyTurnCredentials(
+      List<PeerConnection.IceServer> iceServers, TurnCredentialCache.Credentials credentials) {
     List<PeerConnection.IceServer> updatedICEServers =
             new ArrayList<PeerConnection.IceServer>(iceServers.size());
     for (PeerConnection.IceServer iceServer : iceServers) {
       if ("turn".equals(iceServer.uri.split(":")[0])) {
-        updatedICEServers.add(new PeerConnection.IceServer(iceServer.uri, username, password));
+        updatedICEServers.add(new PeerConnection.IceServer(iceServer.uri,
+            credentials.username, credentials.password));
       } else {
         updatedICEServers.add(iceServer);
       }
@@ -325,39 +274,9 @@ public class RoomParametersFetcher {
   }
 
 
-  // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-  // off the main thread!
-  private LinkedList<PeerConnection.IceServer> requestTurnServers(String url)
-      throws IOException, JSONException {
-    LinkedList<PeerConnection.IceServer> turnServers =
-        new LinkedList<PeerConnection.IceServer>();
-    Log.d(TAG, "Request TURN from: " + url);
-    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-    connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-    connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-    int responseCode = connection.getResponseCode();
-    if (responseCode != 200) {
-      throw new IOException("Non-200 response when requesting TURN server from "
-          + url + " : " + connection.getHeaderField(null));
-    }
-    InputStream responseStream = connection.getInputStream();
-    String response = drainStream(responseStream);
-    connection.disconnect();
-    Log.d(TAG, "TURN response: " + response);
-    JSONObject responseJSON = new JSONObject(response);
-    String username = responseJSON.getString("username");
-    String password = responseJSON.getString("password");
-    JSONArray turnUris = responseJSON.getJSONArray("uris");
-    for (int i = 0; i < turnUris.length(); i++) {
-      String uri = turnUris.getString(i);
-      turnServers.add(new PeerConnection.IceServer(uri, username, password));
-    }
-    return turnServers;
-  }
-
   // Return the list of ICE servers described by a WebRTCPeerConnection
   // configuration string.
-  private LinkedList<PeerConnection.IceServer> iceServersFromPCConfigJSON(
+  static LinkedList<PeerConnection.IceServer> iceServersFromPCConfigJSON(
       String pcConfig) throws JSONException {
     JSONObject json = new JSONObject(pcConfig);
     JSONArray servers = json.getJSONArray("iceServers");
@@ -374,10 +293,4 @@ public class RoomParametersFetcher {
     return ret;
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in).useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
-  }
-
 }
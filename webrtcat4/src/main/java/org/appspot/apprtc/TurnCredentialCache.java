@@ -0,0 +1,146 @@
+package org.appspot.apprtc;
+
+import android.os.SystemClock;
+
+import org.appspot.apprtc.util.AppLog;
+import org.appspot.apprtc.util.AsyncHttpExecutor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Process-wide cache of time-limited TURN credentials, keyed by the URL they
+ * were requested from, so that back-to-back calls do not wait for a new set.
+ *
+ * <p>Credentials are kept for the lifetime announced by the server, minus a
+ * safety margin. Once most of that lifetime has passed, a lookup still returns
+ * the cached entry but also starts a refresh in the background. This class is
+ * a singleton.
+ */
+public class TurnCredentialCache {
+  private static final String TAG = "TurnCredentialCache";
+  // Credentials are not handed out for a call this close to their expiry.
+  private static final long EXPIRY_MARGIN_MS = 60000;
+  // Fraction of the lifetime after which a lookup triggers a background refresh.
+  private static final double REFRESH_AFTER_FRACTION = 0.75;
+
+  private static final TurnCredentialCache instance = new TurnCredentialCache();
+
+  private final Map<String, Credentials> entries = new HashMap<String, Credentials>();
+  private final Set<String> refreshing = new HashSet<String>();
+
+  /**
+   * A TURN username and password, valid until |expiresAtMs|
+   * (SystemClock.elapsedRealtime() based).
+   */
+  public static class Credentials {
+    public final String username;
+    public final String password;
+    public final long fetchedAtMs;
+    public final long expiresAtMs;
+
+    public Credentials(String username, String password, long ttlMs) {
+      this.username = username;
+      this.password = password;
+      this.fetchedAtMs = SystemClock.elapsedRealtime();
+      this.expiresAtMs = fetchedAtMs + ttlMs;
+    }
+
+    boolean isUsable(long nowMs) {
+      return nowMs < expiresAtMs - EXPIRY_MARGIN_MS;
+    }
+
+    boolean needsRefresh(long nowMs) {
+      return nowMs >= fetchedAtMs + (long) ((expiresAtMs - fetchedAtMs) * REFRESH_AFTER_FRACTION);
+    }
+  }
+
+  /**
+   * Requests a new set of credentials; used for background refreshes.
+   */
+  public interface Fetcher {
+    // Returns the new credentials, or null if they must not be cached.
+    Credentials fetch(String url) throws Exception;
+  }
+
+  private TurnCredentialCache() {
+  }
+
+  public static TurnCredentialCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns usable credentials for |url|, or null if there are none. If the
+   * entry is due for a refresh, |fetcher| is run on the HTTP worker pool to
+   * replace it.
+   */
+  public Credentials get(String url, Fetcher fetcher) {
+    long nowMs = SystemClock.elapsedRealtime();
+    Credentials credentials;
+    synchronized (entries) {
+      credentials = entries.get(url);
+      if (credentials == null) {
+        return null;
+      }
+      if (!credentials.isUsable(nowMs)) {
+        entries.remove(url);
+        return null;
+      }
+    }
+    if (credentials.needsRefresh(nowMs) && fetcher != null) {
+      refresh(url, fetcher);
+    }
+    return credentials;
+  }
+
+  public void put(String url, Credentials credentials) {
+    if (credentials == null || !credentials.isUsable(SystemClock.elapsedRealtime())) {
+      return;
+    }
+    synchronized (entries) {
+      entries.put(url, credentials);
+    }
+  }
+
+  // Drops the credentials for |url|, e.g. after the TURN server rejected them.
+  public void invalidate(String url) {
+    synchronized (entries) {
+      entries.remove(url);
+    }
+  }
+
+  private void refresh(final String url, final Fetcher fetcher) {
+    synchronized (entries) {
+      if (!refreshing.add(url)) {
+        return;
+      }
+    }
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          AppLog.d(TAG, "Refreshing TURN credentials from {}", url);
+          put(url, fetcher.fetch(url));
+        } catch (Exception e) {
+          // The current entry stays until it expires.
+          AppLog.w(TAG, "TURN credentials refresh failed: " + e.toString());
+        } finally {
+          synchronized (entries) {
+            refreshing.remove(url);
+          }
+        }
+      }
+    };
+    try {
+      AsyncHttpExecutor.getInstance().execute(task);
+    } catch (RejectedExecutionException e) {
+      synchronized (entries) {
+        refreshing.remove(url);
+      }
+    }
+  }
+}
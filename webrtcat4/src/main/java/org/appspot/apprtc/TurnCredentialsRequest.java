@@ -0,0 +1,284 @@
+package org.appspot.apprtc;
+
+import android.os.SystemClock;
+
+import org.appspot.apprtc.util.AppLog;
+import org.appspot.apprtc.util.AsyncHttpExecutor;
+import org.appspot.apprtc.util.AsyncHttpURLConnection;
+import org.appspot.apprtc.util.Cancellable;
+import org.appspot.apprtc.util.HttpConnectionManager;
+import org.appspot.apprtc.util.HttpRequest;
+import org.appspot.apprtc.util.HttpResponse;
+import org.appspot.apprtc.util.HttpTiming;
+import org.appspot.apprtc.util.HttpTransport;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Requests a set of time-limited TURN credentials from a list of equivalent
+ * credential endpoints, hedging against a slow one.
+ *
+ * <p>The request goes to the first endpoint. If it has not been answered after the
+ * hedge delay, a backup request goes to the next endpoint on the HTTP worker pool
+ * and the first successful answer wins; the requests still in flight are then
+ * cancelled. A request that fails moves on to the next endpoint at once. The hedge
+ * delay follows the 95th percentile of recent TURN request latencies. With a single
+ * endpoint, the backup request goes to that same endpoint.
+ */
+final class TurnCredentialsRequest implements Cancellable {
+  private static final String TAG = "TurnCredentialsRequest";
+  private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+  // Hedge delay until enough latencies have been seen, and its lower bound.
+  private static final long DEFAULT_HEDGE_DELAY_MS = 500;
+  private static final long MIN_HEDGE_DELAY_MS = 50;
+  private static final int MIN_LATENCY_SAMPLES = 5;
+  private static final int MAX_LATENCY_SAMPLES = 32;
+
+  // Latencies of the last successful TURN requests, in a ring.
+  private static final long[] latenciesMs = new long[MAX_LATENCY_SAMPLES];
+  private static int latencyCount;
+  private static int nextLatency;
+
+  private final List<String> urls;
+  // All of the following are guarded by |this|.
+  private final List<HttpTransport.Call> calls = new ArrayList<HttpTransport.Call>();
+  private int attempts;
+  private int running;
+  private boolean cancelled;
+  private TurnCredentialCache.Credentials credentials;
+  private IOException ioError;
+  private JSONException jsonError;
+
+  TurnCredentialsRequest(List<String> endpoints) {
+    if (endpoints.size() == 1) {
+      urls = Arrays.asList(endpoints.get(0), endpoints.get(0));
+    } else {
+      urls = new ArrayList<String>(endpoints);
+    }
+  }
+
+  /**
+   * Runs the request on the calling thread, which must not be the main thread, and
+   * returns the first credentials received.
+   */
+  TurnCredentialCache.Credentials execute() throws IOException, JSONException {
+    long hedgeDelayMs = getHedgeDelayMs();
+    AsyncHttpExecutor.getInstance().schedule(new Runnable() {
+      @Override
+      public void run() {
+        startBackup();
+      }
+    }, hedgeDelayMs);
+    // Endpoints that fail are replaced by the next one on this thread.
+    while (runAttempt()) {
+    }
+    synchronized (this) {
+      while (credentials == null && !cancelled && running > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted");
+        }
+      }
+      if (credentials != null) {
+        return credentials;
+      }
+      if (cancelled) {
+        throw new IOException("Cancelled");
+      }
+      if (jsonError != null) {
+        throw jsonError;
+      }
+      throw ioError;
+    }
+  }
+
+  @Override
+  public void cancel() {
+    List<HttpTransport.Call> inFlight;
+    synchronized (this) {
+      cancelled = true;
+      inFlight = new ArrayList<HttpTransport.Call>(calls);
+      notifyAll();
+    }
+    for (HttpTransport.Call call : inFlight) {
+      call.cancel();
+    }
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  private void startBackup() {
+    synchronized (this) {
+      if (credentials != null || cancelled || attempts >= urls.size()) {
+        return;
+      }
+    }
+    AppLog.d(TAG, "No TURN credentials after hedge delay, sending backup request");
+    try {
+      AsyncHttpExecutor.getInstance().execute(new Runnable() {
+        @Override
+        public void run() {
+          runAttempt();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      AppLog.w(TAG, "HTTP queue full, no backup TURN request");
+    }
+  }
+
+  // Sends the request to the next endpoint. Returns true if it failed and another
+  // endpoint may be tried.
+  private boolean runAttempt() {
+    int attempt;
+    synchronized (this) {
+      if (credentials != null || cancelled || attempts >= urls.size()) {
+        return false;
+      }
+      attempt = ++attempts;
+      running++;
+    }
+    String url = urls.get(attempt - 1);
+    try {
+      TurnCredentialCache.Credentials result = request(url, attempt);
+      List<HttpTransport.Call> losers = null;
+      synchronized (this) {
+        if (credentials == null && !cancelled) {
+          credentials = result;
+          losers = new ArrayList<HttpTransport.Call>(calls);
+        }
+      }
+      if (losers != null) {
+        for (HttpTransport.Call call : losers) {
+          call.cancel();
+        }
+      }
+      return false;
+    } catch (IOException e) {
+      failed(url, e, null);
+      return true;
+    } catch (JSONException e) {
+      failed(url, null, e);
+      return true;
+    } finally {
+      synchronized (this) {
+        running--;
+        notifyAll();
+      }
+    }
+  }
+
+  private synchronized void failed(String url, IOException ioError, JSONException jsonError) {
+    if (credentials != null || cancelled) {
+      // A request that lost the race, or was cancelled.
+      return;
+    }
+    AppLog.w(TAG, "TURN credentials request to " + url + " failed: "
+        + (ioError != null ? ioError : jsonError));
+    this.ioError = ioError;
+    this.jsonError = jsonError;
+  }
+
+  private TurnCredentialCache.Credentials request(String timedLTCUrl, int attempt)
+      throws IOException, JSONException {
+    AppLog.d(TAG, "Request TURN credentials from: {}", timedLTCUrl);
+    HttpConnectionManager connectionManager = HttpConnectionManager.getInstance();
+    HttpTiming timing = connectionManager.startTiming("turn", "POST", timedLTCUrl, attempt);
+    boolean failed = true;
+    String response;
+    try {
+      JSONObject paramJSON = new JSONObject();
+      // This loginName is only needed for authenticating vs the TURN server.
+      paramJSON.put("loginName", "user" + System.currentTimeMillis());
+
+      HttpRequest request = new HttpRequest("POST", timedLTCUrl,
+          paramJSON.toString().getBytes("UTF-8"));
+      request.setHeader("Content-Type", "application/json; charset=UTF-8");
+      request.setTimeoutMs(TURN_HTTP_TIMEOUT_MS);
+      request.setTiming(timing);
+      HttpTransport.Call call = AsyncHttpURLConnection.getDefaultTransport().newCall(request);
+      synchronized (this) {
+        if (credentials != null || cancelled) {
+          throw new IOException("Cancelled");
+        }
+        calls.add(call);
+      }
+      long startMs = SystemClock.elapsedRealtime();
+      HttpResponse httpResponse;
+      try {
+        httpResponse = call.execute();
+      } finally {
+        synchronized (this) {
+          calls.remove(call);
+        }
+      }
+      if (httpResponse.getStatusCode() != 200) {
+        throw new IOException("Non-200 response when requesting TURN credentials from "
+                + timedLTCUrl + " : " + httpResponse.getStatusLine());
+      }
+      addLatency(SystemClock.elapsedRealtime() - startMs);
+      response = httpResponse.getBody();
+      failed = false;
+    } finally {
+      connectionManager.finishTiming(timing, failed);
+    }
+    AppLog.d(TAG, "TURN credentials response: {}", response);
+    JSONObject responseJSON = new JSONObject(response);
+    String username = responseJSON.getString("username");
+    String password = responseJSON.getString("credential");
+    return new TurnCredentialCache.Credentials(username, password,
+        getTtlMs(responseJSON, username));
+  }
+
+  // Lifetime of a set of TURN credentials: the "ttl" field (seconds) of the TURN REST
+  // API response or, failing that, the expiry timestamp that prefixes the username.
+  // 0 if unknown, in which case the credentials are not cached.
+  private static long getTtlMs(JSONObject responseJSON, String username) {
+    long ttlSeconds = responseJSON.optLong("ttl", 0);
+    if (ttlSeconds > 0) {
+      return ttlSeconds * 1000;
+    }
+    int colon = username.indexOf(':');
+    if (colon > 0) {
+      try {
+        long expirySeconds = Long.parseLong(username.substring(0, colon));
+        return Math.max(0, expirySeconds * 1000 - System.currentTimeMillis());
+      } catch (NumberFormatException e) {
+        // Not a timestamp.
+      }
+    }
+    return 0;
+  }
+
+  private static void addLatency(long latencyMs) {
+    synchronized (latenciesMs) {
+      latenciesMs[nextLatency] = latencyMs;
+      nextLatency = (nextLatency + 1) % MAX_LATENCY_SAMPLES;
+      latencyCount = Math.min(latencyCount + 1, MAX_LATENCY_SAMPLES);
+    }
+  }
+
+  // The 95th percentile of the recent latencies, below the request timeout.
+  static long getHedgeDelayMs() {
+    long[] sorted;
+    synchronized (latenciesMs) {
+      if (latencyCount < MIN_LATENCY_SAMPLES) {
+        return DEFAULT_HEDGE_DELAY_MS;
+      }
+      sorted = Arrays.copyOf(latenciesMs, latencyCount);
+    }
+    Arrays.sort(sorted);
+    long p95 = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+    return Math.max(MIN_HEDGE_DELAY_MS, Math.min(p95, TURN_HTTP_TIMEOUT_MS));
+  }
+}
@@ -0,0 +1,204 @@
+package org.appspot.apprtc.util;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Logging for the library, with level gating at compile time and at run time.
+ *
+ * <p>Messages may be given as a format with "{}" placeholders and up to three arguments
+ * (two for info and warnings, one for errors),
+ * e.g. {@code AppLog.d(TAG, "C->WSS: {}", message)}. The message is only built, and the
+ * arguments only turned into strings, if the level is enabled, so that disabled calls on
+ * hot paths cost a level check, plus the boxing of any primitive argument. Messages
+ * built from more parts than that are guarded with
+ * {@code if (AppLog.LOG_DEBUG && AppLog.isLoggable(AppLog.DEBUG))}.
+ *
+ * <p>LOG_DEBUG is a manual switch: it is true in the sources, and a build of the library
+ * with it set to false drops debug and verbose calls, and the code they guard, entirely.
+ * It is not derived from BuildConfig.DEBUG, which is not a compile-time constant and is
+ * false in the release variant that a library is published as, whatever the app's build.
+ *
+ * <p>The run time level defaults to DEBUG. configure() lowers it to INFO for applications
+ * that are not debuggable, unless the application has called setLevel().
+ */
+public final class AppLog {
+  // Compile-time switch for debug and verbose messages, set by hand; see above.
+  public static final boolean LOG_DEBUG = true;
+
+  public static final int VERBOSE = Log.VERBOSE;
+  public static final int DEBUG = Log.DEBUG;
+  public static final int INFO = Log.INFO;
+  public static final int WARN = Log.WARN;
+  public static final int ERROR = Log.ERROR;
+
+  private static volatile int level = DEBUG;
+  private static volatile boolean levelSet;
+
+  private AppLog() {
+  }
+
+  /** Sets the lowest level logged, e.g. WARN to keep only warnings and errors. */
+  public static void setLevel(int level) {
+    AppLog.level = level;
+    levelSet = true;
+  }
+
+  public static int getLevel() {
+    return level;
+  }
+
+  /** Picks the default level for the application of |context| if none was set. */
+  public static void configure(Context context) {
+    if (!levelSet) {
+      boolean debuggable =
+          (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+      level = debuggable ? DEBUG : INFO;
+    }
+  }
+
+  public static boolean isLoggable(int messageLevel) {
+    return messageLevel >= level && (LOG_DEBUG || messageLevel > DEBUG);
+  }
+
+  public static void v(String tag, String message) {
+    if (LOG_DEBUG && isLoggable(VERBOSE)) {
+      Log.v(tag, message);
+    }
+  }
+
+  public static void d(String tag, String message) {
+    if (LOG_DEBUG && isLoggable(DEBUG)) {
+      Log.d(tag, message);
+    }
+  }
+
+  public static void d(String tag, String format, Object arg) {
+    if (LOG_DEBUG && isLoggable(DEBUG)) {
+      Log.d(tag, format(format, arg, null, null, 1));
+    }
+  }
+
+  public static void d(String tag, String format, Object arg1, Object arg2) {
+    if (LOG_DEBUG && isLoggable(DEBUG)) {
+      Log.d(tag, format(format, arg1, arg2, null, 2));
+    }
+  }
+
+  public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+    if (LOG_DEBUG && isLoggable(DEBUG)) {
+      Log.d(tag, format(format, arg1, arg2, arg3, 3));
+    }
+  }
+
+  public static void i(String tag, String message) {
+    if (isLoggable(INFO)) {
+      Log.i(tag, message);
+    }
+  }
+
+  public static void i(String tag, String format, Object arg) {
+    if (isLoggable(INFO)) {
+      Log.i(tag, format(format, arg, null, null, 1));
+    }
+  }
+
+  public static void i(String tag, String format, Object arg1, Object arg2) {
+    if (isLoggable(INFO)) {
+      Log.i(tag, format(format, arg1, arg2, null, 2));
+    }
+  }
+
+  public static void w(String tag, String message) {
+    if (isLoggable(WARN)) {
+      Log.w(tag, message);
+    }
+  }
+
+  public static void w(String tag, String format, Object arg) {
+    if (isLoggable(WARN)) {
+      Log.w(tag, format(format, arg, null, null, 1));
+    }
+  }
+
+  public static void w(String tag, String format, Object arg1, Object arg2) {
+    if (isLoggable(WARN)) {
+      Log.w(tag, format(format, arg1, arg2, null, 2));
+    }
+  }
+
+  public static void w(String tag, String message, Throwable error) {
+    if (isLoggable(WARN)) {
+      Log.w(tag, message, error);
+    }
+  }
+
+  public static void e(String tag, String message) {
+    if (isLoggable(ERROR)) {
+      Log.e(tag, message);
+    }
+  }
+
+  public static void e(String tag, String format, Object arg) {
+    if (isLoggable(ERROR)) {
+      Log.e(tag, format(format, arg, null, null, 1));
+    }
+  }
+
+  public static void e(String tag, String message, Throwable error) {
+    if (isLoggable(ERROR)) {
+      Log.e(tag, message, error);
+    }
+  }
+
+  // Replaces the first |count| "{}" in |format| with the arguments.
+  private static String format(String format, Object arg1, Object arg2, Object arg3, int count) {
+    StringBuilder sb = new StringBuilder(format.length() + 64);
+    int start = 0;
+    for (int i = 0; i < count; i++) {
+      int placeholder = format.indexOf("{}", start);
+      if (placeholder < 0) {
+        break;
+      }
+      sb.append(format, start, placeholder);
+      sb.append((i == 0) ? arg1 : (i == 1) ? arg2 : arg3);
+      start = placeholder + 2;
+    }
+    sb.append(format, start, format.length());
+    return sb.toString();
+  }
+
+  /**
+   * Lets through at most one message per interval, for messages logged periodically or
+   * in bursts. Use with isLoggable() or LOG_DEBUG so that skipped messages are not built.
+   */
+  public static class Sampler {
+    private final long intervalMs;
+    private long lastSampleMs = -1;
+    private int skipped;
+
+    public Sampler(long intervalMs) {
+      this.intervalMs = intervalMs;
+    }
+
+    /** Returns true if a message may be logged now. */
+    public synchronized boolean sample() {
+      long now = SystemClock.elapsedRealtime();
+      if (lastSampleMs >= 0 && now - lastSampleMs < intervalMs) {
+        skipped++;
+        return false;
+      }
+      lastSampleMs = now;
+      return true;
+    }
+
+    /** Returns the number of messages skipped since the last call, and resets it. */
+    public synchronized int takeSkipped() {
+      int count = skipped;
+      skipped = 0;
+      return count;
+    }
+  }
+}
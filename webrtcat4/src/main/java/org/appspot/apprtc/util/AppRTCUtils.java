@@ -11,7 +11,6 @@
 package org.appspot.apprtc.util;
 
 import android.os.Build;
-import android.util.Log;
 
 /**
  * AppRTCUtils provides helper functions for managing thread safety.
@@ -36,7 +35,10 @@ public final class AppRTCUtils {
 
   /** Information about the current build, taken from system properties. */
   public static void logDeviceInfo(String tag) {
-    Log.d(tag, "Android SDK: " + Build.VERSION.SDK_INT + ", "
+    if (!AppLog.LOG_DEBUG || !AppLog.isLoggable(AppLog.DEBUG)) {
+      return;
+    }
+    AppLog.d(tag, "Android SDK: " + Build.VERSION.SDK_INT + ", "
         + "Release: " + Build.VERSION.RELEASE + ", "
         + "Brand: " + Build.BRAND + ", "
         + "Device: " + Build.DEVICE + ", "
@@ -0,0 +1,222 @@
+package org.appspot.apprtc.util;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared, bounded worker pool used to run AsyncHttpURLConnection requests.
+ *
+ * <p>Signaling traffic comes in short bursts (e.g. one POST per trickled ICE
+ * candidate), so requests are queued on a small set of named worker threads
+ * instead of starting a new thread per request. This class is a singleton.
+ */
+public class AsyncHttpExecutor {
+  private static final String TAG = "AsyncHttpExecutor";
+  public static final int DEFAULT_MAX_THREADS = 4;
+  public static final int DEFAULT_QUEUE_CAPACITY = 64;
+  private static final long IDLE_THREAD_TIMEOUT_MS = 30000;
+
+  private static final AsyncHttpExecutor instance = new AsyncHttpExecutor();
+
+  private ThreadPoolExecutor executor;
+  // Single timer thread that holds delayed work (e.g. retries) so that no worker
+  // is blocked while waiting.
+  private ScheduledThreadPoolExecutor timer;
+  private int maxThreads = DEFAULT_MAX_THREADS;
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+  private final AtomicInteger threadCount = new AtomicInteger();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private final AtomicLong completedTasks = new AtomicLong();
+  private final AtomicLong rejectedTasks = new AtomicLong();
+  private final AtomicLong totalQueueLatencyMs = new AtomicLong();
+  private final AtomicLong maxQueueLatencyMs = new AtomicLong();
+  private final AtomicLong totalTaskLatencyMs = new AtomicLong();
+  private final AtomicLong maxTaskLatencyMs = new AtomicLong();
+
+  private AsyncHttpExecutor() {
+  }
+
+  public static AsyncHttpExecutor getInstance() {
+    return instance;
+  }
+
+  /**
+   * Sets the pool limits. A change of queue capacity replaces the underlying
+   * pool; requests already queued on the old one still run to completion.
+   */
+  public synchronized void configure(int maxThreads, int queueCapacity) {
+    if (maxThreads <= 0 || queueCapacity <= 0) {
+      AppLog.w(TAG, "Ignoring invalid configuration: threads=" + maxThreads
+          + ", queue=" + queueCapacity);
+      return;
+    }
+    if (executor != null && queueCapacity != this.queueCapacity) {
+      executor.shutdown();
+      executor = null;
+    }
+    this.maxThreads = maxThreads;
+    this.queueCapacity = queueCapacity;
+    if (executor != null) {
+      if (maxThreads > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(maxThreads);
+        executor.setCorePoolSize(maxThreads);
+      } else {
+        executor.setCorePoolSize(maxThreads);
+        executor.setMaximumPoolSize(maxThreads);
+      }
+    }
+  }
+
+  /**
+   * Queues |runnable| on the shared pool.
+   *
+   * @throws RejectedExecutionException if the request queue is full.
+   */
+  public void execute(final Runnable runnable) {
+    final long queuedAtMs = SystemClock.elapsedRealtime();
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        long startedAtMs = SystemClock.elapsedRealtime();
+        record(totalQueueLatencyMs, maxQueueLatencyMs, startedAtMs - queuedAtMs);
+        try {
+          runnable.run();
+        } finally {
+          record(totalTaskLatencyMs, maxTaskLatencyMs,
+              SystemClock.elapsedRealtime() - startedAtMs);
+          completedTasks.incrementAndGet();
+        }
+      }
+    };
+    ThreadPoolExecutor pool = getExecutor();
+    try {
+      pool.execute(task);
+    } catch (RejectedExecutionException e) {
+      rejectedTasks.incrementAndGet();
+      throw e;
+    }
+    int depth = pool.getQueue().size();
+    int max;
+    while (depth > (max = maxQueueDepth.get())) {
+      if (maxQueueDepth.compareAndSet(max, depth)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Runs |runnable| on the timer thread after |delayMs|. The runnable must be
+   * short; it typically just queues a request again with execute().
+   */
+  public void schedule(Runnable runnable, long delayMs) {
+    getTimer().schedule(runnable, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  public int getQueueDepth() {
+    ThreadPoolExecutor pool = peekExecutor();
+    return (pool != null) ? pool.getQueue().size() : 0;
+  }
+
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  public int getActiveThreadCount() {
+    ThreadPoolExecutor pool = peekExecutor();
+    return (pool != null) ? pool.getActiveCount() : 0;
+  }
+
+  public long getCompletedTaskCount() {
+    return completedTasks.get();
+  }
+
+  public long getRejectedTaskCount() {
+    return rejectedTasks.get();
+  }
+
+  // Average time a request waited in the queue before a worker picked it up.
+  public long getAverageQueueLatencyMs() {
+    long completed = completedTasks.get();
+    return (completed > 0) ? totalQueueLatencyMs.get() / completed : 0;
+  }
+
+  public long getMaxQueueLatencyMs() {
+    return maxQueueLatencyMs.get();
+  }
+
+  // Average time a worker spent running a request.
+  public long getAverageTaskLatencyMs() {
+    long completed = completedTasks.get();
+    return (completed > 0) ? totalTaskLatencyMs.get() / completed : 0;
+  }
+
+  public long getMaxTaskLatencyMs() {
+    return maxTaskLatencyMs.get();
+  }
+
+  public void resetCounters() {
+    maxQueueDepth.set(0);
+    completedTasks.set(0);
+    rejectedTasks.set(0);
+    totalQueueLatencyMs.set(0);
+    maxQueueLatencyMs.set(0);
+    totalTaskLatencyMs.set(0);
+    maxTaskLatencyMs.set(0);
+  }
+
+  private synchronized ThreadPoolExecutor peekExecutor() {
+    return executor;
+  }
+
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+          IDLE_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(queueCapacity),
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "AsyncHttp-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      // Let idle workers go away between calls.
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  private synchronized ScheduledThreadPoolExecutor getTimer() {
+    if (timer == null) {
+      timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "AsyncHttp-timer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+
+  private static void record(AtomicLong total, AtomicLong max, long valueMs) {
+    total.addAndGet(valueMs);
+    long current;
+    while (valueMs > (current = max.get())) {
+      if (max.compareAndSet(current, valueMs)) {
+        break;
+      }
+    }
+  }
+}
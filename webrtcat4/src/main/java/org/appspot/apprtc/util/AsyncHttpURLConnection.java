@@ -10,30 +10,58 @@
 
 package org.appspot.apprtc.util;
 
-import android.util.Log;
+import android.os.SystemClock;
 
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Asynchronous http requests implementation.
+ *
+ * <p>Failed requests are sent again as decided by a RetryPolicy. Retries are
+ * scheduled, so no worker thread is held while waiting for the next attempt.
+ * A request can be cancelled at any time through the handle returned by send().
+ * Every attempt is timed phase by phase and reported to the HttpTimingListeners
+ * registered on HttpConnectionManager, tagged with the request endpoint.
+ *
+ * <p>Requests go through an HttpTransport, HttpURLConnectionTransport unless
+ * another one is set with setDefaultTransport(). Request bodies are sent compressed
+ * when setRequestEncoding() is used; a server that answers 415 gets the request
+ * again uncompressed and is not sent compressed bodies any more.
  */
-public class AsyncHttpURLConnection {
+public class AsyncHttpURLConnection implements Cancellable {
+  private static final String TAG = "AsyncHttpURLConnection";
   private static final int HTTP_TIMEOUT_MS = 8000;
+  private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+  // Smaller bodies are not worth compressing.
+  private static final int MIN_ENCODED_BODY_BYTES = 256;
 
-  private static final int MAX_RETRIES = 5;
+  private static volatile RetryPolicy defaultRetryPolicy = new ExponentialBackoffRetryPolicy();
+  private static volatile HttpTransport defaultTransport = new HttpURLConnectionTransport();
+  // Hosts that rejected a compressed request body.
+  private static final Set<String> identityOnlyHosts =
+      Collections.synchronizedSet(new HashSet<String>());
 
   private final String method;
   private final String url;
   private final String message;
   private final AsyncHttpEvents events;
   private String contentType;
+  private String endpoint = "other";
+  private String requestEncoding;
+  private RetryPolicy retryPolicy;
+  private final HttpTransport transport;
+  // Attempt bookkeeping. Attempts never overlap, so these are only touched by
+  // one thread at a time.
+  private volatile int attempts;
+  private volatile long firstAttemptMs;
+  private volatile boolean cancelled;
+  private volatile HttpTransport.Call activeCall;
 
   /**
    * Http requests callbacks.
@@ -49,89 +77,204 @@ public class AsyncHttpURLConnection {
     this.url = url;
     this.message = message;
     this.events = events;
+    this.retryPolicy = defaultRetryPolicy;
+    this.transport = defaultTransport;
+  }
+
+  /** Sets the retry policy used by requests created from now on. */
+  public static void setDefaultRetryPolicy(RetryPolicy retryPolicy) {
+    defaultRetryPolicy = retryPolicy;
+  }
+
+  /** Sets the transport used by requests created from now on. */
+  public static void setDefaultTransport(HttpTransport transport) {
+    defaultTransport = (transport != null) ? transport : new HttpURLConnectionTransport();
+  }
+
+  public static HttpTransport getDefaultTransport() {
+    return defaultTransport;
   }
 
   public void setContentType(String contentType) {
     this.contentType = contentType;
   }
 
-  public void send() {
+  /** Sets the tag under which the timings of this request are reported. */
+  public void setEndpoint(String endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * Compresses the request body with StreamUtils.ENCODING_GZIP or
+   * StreamUtils.ENCODING_DEFLATE, or sends it as is if null (the default).
+   */
+  public void setRequestEncoding(String requestEncoding) {
+    this.requestEncoding = requestEncoding;
+  }
+
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
+  public Cancellable send() {
+    attempts = 0;
+    firstAttemptMs = SystemClock.elapsedRealtime();
+    submit();
+    return this;
+  }
+
+  /**
+   * Cancels the request: a queued or scheduled attempt is skipped and an attempt
+   * in progress is aborted through its transport call. No callback is invoked
+   * after this call.
+   */
+  @Override
+  public void cancel() {
+    cancelled = true;
+    HttpTransport.Call call = activeCall;
+    if (call != null) {
+      call.cancel();
+    }
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  private void submit() {
+    if (cancelled) {
+      return;
+    }
     Runnable runHttp = new Runnable() {
       public void run() {
-        sendHttpMessage(MAX_RETRIES);
+        sendHttpMessage();
       }
     };
-    new Thread(runHttp).start();
+    try {
+      AsyncHttpExecutor.getInstance().execute(runHttp);
+    } catch (RejectedExecutionException e) {
+      reportError("HTTP " + method + " to " + url + " rejected: request queue is full");
+    }
   }
 
-  private void sendHttpMessage(int attemptsLeft) {
+  private void sendHttpMessage() {
+    if (cancelled) {
+      return;
+    }
+    attempts++;
+    HttpConnectionManager connectionManager = HttpConnectionManager.getInstance();
+    HttpTiming timing = connectionManager.startTiming(endpoint, method, url, attempts);
+    boolean failed = true;
     try {
-      HttpURLConnection connection =
-        (HttpURLConnection) new URL(url).openConnection();
       byte[] postData = new byte[0];
       if (message != null) {
         postData = message.getBytes("UTF-8");
       }
-      connection.setRequestMethod(method);
-      connection.setUseCaches(false);
-      connection.setDoInput(true);
-      connection.setConnectTimeout(HTTP_TIMEOUT_MS);
-      connection.setReadTimeout(HTTP_TIMEOUT_MS);
-      boolean doOutput = false;
-      if (method.equals("POST")) {
-        doOutput = true;
-        connection.setDoOutput(true);
-        connection.setFixedLengthStreamingMode(postData.length);
+      String host = new URL(url).getHost();
+      String bodyEncoding = null;
+      if (requestEncoding != null && postData.length >= MIN_ENCODED_BODY_BYTES
+          && !identityOnlyHosts.contains(host)) {
+        bodyEncoding = requestEncoding;
+        postData = StreamUtils.encode(postData, bodyEncoding);
       }
+      HttpRequest request = new HttpRequest(method, url,
+          method.equals("POST") ? postData : null);
+      request.setTimeoutMs(HTTP_TIMEOUT_MS);
+      request.setTiming(timing);
       if (contentType == null) {
-        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        request.setHeader("Content-Type", "text/plain; charset=utf-8");
       } else {
-        connection.setRequestProperty("Content-Type", contentType);
+        request.setHeader("Content-Type", contentType);
       }
-
-      // Send POST request.
-      if (doOutput && postData.length > 0) {
-        OutputStream outStream = connection.getOutputStream();
-        outStream.write(postData);
-        outStream.close();
+      if (bodyEncoding != null) {
+        request.setHeader("Content-Encoding", bodyEncoding);
       }
 
-      // Get response.
-      int responseCode = connection.getResponseCode();
+      HttpTransport.Call call = transport.newCall(request);
+      activeCall = call;
+      if (cancelled) {
+        // cancel() may have run before activeCall was set.
+        throw new IOException("Cancelled");
+      }
+      HttpResponse response = call.execute();
+      activeCall = null;
+      int responseCode = response.getStatusCode();
+      if (responseCode == HTTP_UNSUPPORTED_MEDIA_TYPE && bodyEncoding != null) {
+        AppLog.d(TAG, "{} does not accept {} request bodies, resending", host, bodyEncoding);
+        identityOnlyHosts.add(host);
+        submit();
+        return;
+      }
       if (responseCode != 200) {
-        events.onHttpError("Non-200 response to " + method + " to URL: "
-            + url + " : " + connection.getHeaderField(null));
-        connection.disconnect();
+        if (!retry(responseCode, null)) {
+          reportError("Non-200 response to " + method + " to URL: "
+              + url + " : " + response.getStatusLine());
+        }
         return;
       }
-      InputStream responseStream = connection.getInputStream();
-      String response = drainStream(responseStream);
-      responseStream.close();
-      connection.disconnect();
-      events.onHttpComplete(response);
+      failed = false;
+      connectionManager.finishTiming(timing, false);
+      if (!cancelled) {
+        events.onHttpComplete(response.getBody());
+      }
     } catch (SocketTimeoutException e) {
-      events.onHttpError("HTTP " + method + " to " + url + " timeout");
+      activeCall = null;
+      if (!retry(0, e)) {
+        reportError("HTTP " + method + " to " + url + " timeout");
+      }
     } catch (IOException e) {
-      if (e instanceof EOFException) {
-        // See http://stackoverflow.com/a/22830196
-        if (--attemptsLeft == 0) {
-          events.onHttpError("HTTP " + method + " to " + url + " error: "
-                  + e.getMessage());
-        } else {
-          Log.d(AsyncHttpURLConnection.class.getCanonicalName(), "EOFException while HTTP " + method + " to " + url + ", retrying (" + attemptsLeft + " attempt(s) left)");
-          sendHttpMessage(attemptsLeft);
-        }
-      } else {
-        events.onHttpError("HTTP " + method + " to " + url + " error: "
+      activeCall = null;
+      if (cancelled) {
+        AppLog.d(TAG, "HTTP {} to {} cancelled", method, url);
+      } else if (!retry(0, e)) {
+        reportError("HTTP " + method + " to " + url + " error: "
                 + e.getMessage());
-        Log.e(AsyncHttpURLConnection.class.getCanonicalName(), "", e);
+        AppLog.e(TAG, "", e);
+      }
+    } finally {
+      if (failed) {
+        connectionManager.finishTiming(timing, true);
       }
     }
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in).useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  private void reportError(String errorMessage) {
+    if (!cancelled) {
+      events.onHttpError(errorMessage);
+    }
+  }
+
+  // Schedules another attempt if the retry policy allows it.
+  private boolean retry(int statusCode, IOException error) {
+    if (cancelled) {
+      // Nothing to report either.
+      return true;
+    }
+    if (retryPolicy == null) {
+      return false;
+    }
+    long elapsedMs = SystemClock.elapsedRealtime() - firstAttemptMs;
+    long delayMs = retryPolicy.getRetryDelayMs(method, attempts, elapsedMs, statusCode, error);
+    if (delayMs < 0) {
+      return false;
+    }
+    if (AppLog.LOG_DEBUG && AppLog.isLoggable(AppLog.DEBUG)) {
+      AppLog.d(TAG, "HTTP " + method + " to " + url + " failed ("
+          + ((error != null) ? error.toString() : "status " + statusCode) + "), retry #"
+          + attempts + " in " + delayMs + "ms");
+    }
+    if (delayMs == 0) {
+      submit();
+    } else {
+      AsyncHttpExecutor.getInstance().schedule(new Runnable() {
+        @Override
+        public void run() {
+          submit();
+        }
+      }, delayMs);
+    }
+    return true;
   }
+
 }
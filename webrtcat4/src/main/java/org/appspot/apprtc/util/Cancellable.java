@@ -0,0 +1,12 @@
+package org.appspot.apprtc.util;
+
+/**
+ * Handle to an asynchronous operation that can be abandoned. Once cancelled,
+ * the operation releases its resources as soon as possible and delivers no
+ * further callbacks.
+ */
+public interface Cancellable {
+  void cancel();
+
+  boolean isCancelled();
+}
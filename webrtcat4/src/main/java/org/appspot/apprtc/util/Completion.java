@@ -0,0 +1,87 @@
+package org.appspot.apprtc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Signal that an asynchronous operation has finished, whether it succeeded or not.
+ *
+ * <p>Listeners added with whenDone() run on the thread that calls complete(), or at once
+ * on the calling thread if the operation has already finished; they must be short. await()
+ * is for threads that may block, never for a looper thread that has to deliver the event
+ * being waited for.
+ */
+public class Completion {
+  private final CountDownLatch done = new CountDownLatch(1);
+  // Null once completed. Guarded by |this|.
+  private List<Runnable> listeners = new ArrayList<Runnable>();
+
+  /** Returns a completion that has already finished. */
+  public static Completion completed() {
+    Completion completion = new Completion();
+    completion.complete();
+    return completion;
+  }
+
+  /** Returns a completion that finishes once all of |parts| have. */
+  public static Completion allOf(Completion... parts) {
+    final Completion all = new Completion();
+    final AtomicInteger remaining = new AtomicInteger(parts.length);
+    if (parts.length == 0) {
+      all.complete();
+    }
+    for (Completion part : parts) {
+      part.whenDone(new Runnable() {
+        @Override
+        public void run() {
+          if (remaining.decrementAndGet() == 0) {
+            all.complete();
+          }
+        }
+      });
+    }
+    return all;
+  }
+
+  /**
+   * Marks the operation as finished and runs the listeners. Returns false, doing
+   * nothing, if it had already finished.
+   */
+  public boolean complete() {
+    List<Runnable> toRun;
+    synchronized (this) {
+      if (listeners == null) {
+        return false;
+      }
+      toRun = listeners;
+      listeners = null;
+    }
+    done.countDown();
+    for (Runnable listener : toRun) {
+      listener.run();
+    }
+    return true;
+  }
+
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /** Waits up to |timeoutMs| for the operation. Returns true if it has finished. */
+  public boolean await(long timeoutMs) throws InterruptedException {
+    return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  public void whenDone(Runnable listener) {
+    synchronized (this) {
+      if (listeners != null) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+}
@@ -0,0 +1,136 @@
+package org.appspot.apprtc.util;
+
+import android.os.SystemClock;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Default RetryPolicy: exponential backoff with jitter, bounded by a maximum
+ * number of attempts and an overall deadline per request.
+ *
+ * <p>Idempotent methods (GET, HEAD, PUT, DELETE, OPTIONS) are retried after any
+ * I/O error, including timeouts, and after retryable status codes. Other methods
+ * (POST) are only retried when the server can not have processed the request:
+ * connection failures, a stale keep-alive socket (EOFException) and 408, 429 or
+ * 503 responses. setRetryNonIdempotent(true) lifts that restriction.
+ *
+ * <p>Retries made by all requests sharing a policy draw from a common budget. Once
+ * it is spent, every retry waits for the maximum delay, so that a struggling room
+ * server is not hammered by a retry storm.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+  public static final long DEFAULT_BASE_DELAY_MS = 250;
+  public static final long DEFAULT_MAX_DELAY_MS = 4000;
+  public static final long DEFAULT_DEADLINE_MS = 15000;
+  // Retry budget: burst size and refill rate.
+  private static final double MAX_RETRY_TOKENS = 10;
+  private static final double RETRY_TOKENS_PER_SECOND = 1;
+
+  private final int maxAttempts;
+  private final long baseDelayMs;
+  private final long maxDelayMs;
+  private final long deadlineMs;
+  private boolean retryNonIdempotent;
+  private final Random random = new Random();
+  private double retryTokens = MAX_RETRY_TOKENS;
+  private long lastRefillMs = SystemClock.elapsedRealtime();
+
+  public ExponentialBackoffRetryPolicy() {
+    this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_DEADLINE_MS);
+  }
+
+  public ExponentialBackoffRetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs,
+      long deadlineMs) {
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMs = baseDelayMs;
+    this.maxDelayMs = maxDelayMs;
+    this.deadlineMs = deadlineMs;
+  }
+
+  public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+    this.retryNonIdempotent = retryNonIdempotent;
+  }
+
+  @Override
+  public long getRetryDelayMs(String method, int attempts, long elapsedMs, int statusCode,
+      IOException error) {
+    if (attempts >= maxAttempts) {
+      return NO_RETRY;
+    }
+    boolean idempotent = retryNonIdempotent || isIdempotent(method);
+    if (error != null) {
+      if (!idempotent && !isNotDelivered(error)) {
+        return NO_RETRY;
+      }
+    } else if (!isRetryableStatus(statusCode, idempotent)) {
+      return NO_RETRY;
+    }
+
+    long delayMs;
+    if (attempts == 1 && error instanceof EOFException) {
+      // A pooled socket closed by the server; a fresh one is likely to work at once.
+      delayMs = 0;
+    } else {
+      long backoffMs = Math.min(maxDelayMs, baseDelayMs << Math.min(attempts - 1, 16));
+      // "Equal jitter": wait at least half the backoff, spread the rest at random.
+      delayMs = backoffMs / 2 + nextLong(backoffMs / 2 + 1);
+    }
+    if (!takeRetryToken()) {
+      delayMs = maxDelayMs;
+    }
+    if (elapsedMs + delayMs > deadlineMs) {
+      return NO_RETRY;
+    }
+    return delayMs;
+  }
+
+  private static boolean isIdempotent(String method) {
+    return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method)
+        || "DELETE".equals(method) || "OPTIONS".equals(method);
+  }
+
+  // Errors after which the server has not processed the request. An EOFException is
+  // how a keep-alive socket closed by the server shows up (see
+  // http://stackoverflow.com/a/22830196).
+  private static boolean isNotDelivered(IOException error) {
+    return error instanceof EOFException || error instanceof ConnectException
+        || error instanceof UnknownHostException || error instanceof NoRouteToHostException;
+  }
+
+  private static boolean isRetryableStatus(int statusCode, boolean idempotent) {
+    switch (statusCode) {
+      case 408:   // Request Timeout
+      case 429:   // Too Many Requests
+      case 503:   // Service Unavailable
+        return true;
+      case 500:   // Internal Server Error
+      case 502:   // Bad Gateway
+      case 504:   // Gateway Timeout
+        return idempotent;
+      default:
+        return false;
+    }
+  }
+
+  private synchronized long nextLong(long bound) {
+    return (long) (random.nextDouble() * bound);
+  }
+
+  private synchronized boolean takeRetryToken() {
+    long now = SystemClock.elapsedRealtime();
+    retryTokens = Math.min(MAX_RETRY_TOKENS,
+        retryTokens + (now - lastRefillMs) * RETRY_TOKENS_PER_SECOND / 1000);
+    lastRefillMs = now;
+    if (retryTokens < 1) {
+      return false;
+    }
+    retryTokens -= 1;
+    return true;
+  }
+}
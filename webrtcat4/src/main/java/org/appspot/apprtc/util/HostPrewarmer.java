@@ -0,0 +1,337 @@
+package org.appspot.apprtc.util;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the hosts of the signaling endpoints ahead of their first use.
+ *
+ * <p>Hosts passed to prewarm() are resolved in parallel on the HTTP worker pool as
+ * soon as they are known: the room server when a call starts, the WebSocket and TURN
+ * hosts once a join response or a cached room configuration names them. This fills
+ * the system resolver cache, so the connections made later along the call setup path
+ * do not wait on DNS one after another. Lookups are kept for a TTL, so that a host is
+ * not resolved again for every call.
+ *
+ * <p>prewarmConnection() also opens an HTTPS connection to a host with a HEAD request
+ * and leaves it in the keep-alive pool for the requests that follow. resolve() hands
+ * out the prewarmed addresses and accounts the time saved. This class is a singleton.
+ */
+public class HostPrewarmer {
+  private static final String TAG = "HostPrewarmer";
+  public static final long DEFAULT_TTL_MS = 60000;
+  private static final int CONNECTION_TIMEOUT_MS = 5000;
+
+  private static final HostPrewarmer instance = new HostPrewarmer();
+
+  private final Map<String, Lookup> lookups = new HashMap<String, Lookup>();
+  // Origins with a prewarmed connection, and when it was opened.
+  private final Map<String, Long> warmOrigins = new HashMap<String, Long>();
+  private volatile long ttlMs = DEFAULT_TTL_MS;
+  private volatile boolean connectionPrewarmEnabled;
+  private final AtomicLong savedMs = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  // A lookup of one host, done, in progress or queued.
+  private static class Lookup {
+    final CountDownLatch done = new CountDownLatch(1);
+    // Set by whoever runs the lookup: the worker of a prewarm, or a resolve() that finds
+    // it still queued.
+    final AtomicBoolean started = new AtomicBoolean();
+    // Set for lookups started by prewarm(); cleared once their saving is accounted.
+    final AtomicBoolean unclaimed;
+    volatile InetAddress[] addresses;
+    volatile long durationMs;
+    volatile long resolvedAtMs;
+
+    Lookup(boolean prewarmed) {
+      unclaimed = new AtomicBoolean(prewarmed);
+    }
+
+    boolean isFresh(long nowMs, long ttlMs) {
+      return done.getCount() > 0 || (addresses != null && nowMs - resolvedAtMs < ttlMs);
+    }
+  }
+
+  private HostPrewarmer() {
+  }
+
+  public static HostPrewarmer getInstance() {
+    return instance;
+  }
+
+  public void setTtlMs(long ttlMs) {
+    if (ttlMs >= 0) {
+      this.ttlMs = ttlMs;
+    }
+  }
+
+  /** Enables prewarmConnection(), which is off by default. */
+  public void setConnectionPrewarmEnabled(boolean enabled) {
+    connectionPrewarmEnabled = enabled;
+  }
+
+  /**
+   * Starts resolving the hosts of |urls| that have no fresh lookup. Accepts http(s)
+   * and ws(s) URLs as well as stun: and turn: ICE server URIs; null entries are skipped.
+   */
+  public void prewarm(String... urls) {
+    for (String url : urls) {
+      final String host = getHost(url);
+      if (host == null) {
+        continue;
+      }
+      final Lookup lookup;
+      synchronized (lookups) {
+        Lookup current = lookups.get(host);
+        if (current != null && current.isFresh(SystemClock.elapsedRealtime(), ttlMs)) {
+          continue;
+        }
+        lookup = new Lookup(true);
+        lookups.put(host, lookup);
+      }
+      try {
+        AsyncHttpExecutor.getInstance().execute(new Runnable() {
+          @Override
+          public void run() {
+            if (!lookup.started.compareAndSet(false, true)) {
+              // Already run by resolve().
+              return;
+            }
+            try {
+              runLookup(host, lookup);
+            } catch (UnknownHostException e) {
+              AppLog.d(TAG, "Failed to resolve {}: {}", host, e.getMessage());
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // The host is resolved when first used.
+        failLookup(host, lookup);
+      }
+    }
+  }
+
+  /**
+   * Opens an HTTPS connection to the origin of |url| in the background, if enabled
+   * with setConnectionPrewarmEnabled(), so that the DNS lookup, TCP connect and TLS
+   * handshake are done before the first request to it. At most one connection per
+   * origin is opened within the TTL.
+   */
+  public void prewarmConnection(String url) {
+    if (!connectionPrewarmEnabled || url == null
+        || !(AsyncHttpURLConnection.getDefaultTransport() instanceof HttpURLConnectionTransport)) {
+      return;
+    }
+    final String origin;
+    try {
+      URI uri = new URI(url);
+      if (!"https".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+        return;
+      }
+      origin = "https://" + uri.getRawAuthority() + "/";
+    } catch (URISyntaxException e) {
+      return;
+    }
+    synchronized (warmOrigins) {
+      Long openedAtMs = warmOrigins.get(origin);
+      long now = SystemClock.elapsedRealtime();
+      if (openedAtMs != null && now - openedAtMs < ttlMs) {
+        return;
+      }
+      warmOrigins.put(origin, now);
+    }
+    try {
+      AsyncHttpExecutor.getInstance().execute(new Runnable() {
+        @Override
+        public void run() {
+          openConnection(origin);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (warmOrigins) {
+        warmOrigins.remove(origin);
+      }
+    }
+  }
+
+  /**
+   * Returns the addresses of |host|, from a fresh prewarm lookup if there is one
+   * (waiting for it if it is in progress), else from a lookup made now. A prewarm
+   * lookup still queued on the worker pool is run here instead: the caller is often a
+   * worker of that pool, and waiting for a task queued behind it could deadlock.
+   */
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    Lookup lookup;
+    synchronized (lookups) {
+      lookup = lookups.get(host);
+      if (lookup != null && !lookup.isFresh(SystemClock.elapsedRealtime(), ttlMs)) {
+        lookup = null;
+      }
+    }
+    if (lookup != null && lookup.started.compareAndSet(false, true)) {
+      misses.incrementAndGet();
+      lookup.unclaimed.set(false);
+      return runLookup(host, lookup);
+    }
+    if (lookup != null) {
+      long waitStartMs = SystemClock.elapsedRealtime();
+      try {
+        lookup.done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new UnknownHostException("Interrupted while resolving " + host);
+      }
+      InetAddress[] addresses = lookup.addresses;
+      if (addresses != null) {
+        long waitedMs = SystemClock.elapsedRealtime() - waitStartMs;
+        hits.incrementAndGet();
+        // Only the first use of a prewarmed lookup would have waited for DNS.
+        if (lookup.unclaimed.compareAndSet(true, false)) {
+          savedMs.addAndGet(Math.max(0, lookup.durationMs - waitedMs));
+        }
+        return addresses;
+      }
+    }
+    misses.incrementAndGet();
+    lookup = new Lookup(false);
+    lookup.started.set(true);
+    synchronized (lookups) {
+      lookups.put(host, lookup);
+    }
+    return runLookup(host, lookup);
+  }
+
+  // Time that callers of resolve() did not spend waiting on DNS thanks to prewarming.
+  public long getSavedMs() {
+    return savedMs.get();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public void resetStats() {
+    savedMs.set(0);
+    hits.set(0);
+    misses.set(0);
+  }
+
+  public void clear() {
+    synchronized (lookups) {
+      lookups.clear();
+    }
+    synchronized (warmOrigins) {
+      warmOrigins.clear();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "saved=" + savedMs.get() + "ms, hits=" + hits.get() + ", misses=" + misses.get();
+  }
+
+  private InetAddress[] runLookup(String host, Lookup lookup) throws UnknownHostException {
+    long startMs = SystemClock.elapsedRealtime();
+    try {
+      InetAddress[] addresses = InetAddress.getAllByName(host);
+      lookup.resolvedAtMs = SystemClock.elapsedRealtime();
+      lookup.durationMs = lookup.resolvedAtMs - startMs;
+      lookup.addresses = addresses;
+      lookup.done.countDown();
+      return addresses;
+    } catch (UnknownHostException e) {
+      failLookup(host, lookup);
+      throw e;
+    }
+  }
+
+  // Drops a failed lookup so that the next use of the host resolves it again.
+  private void failLookup(String host, Lookup lookup) {
+    synchronized (lookups) {
+      if (lookups.get(host) == lookup) {
+        lookups.remove(host);
+      }
+    }
+    lookup.done.countDown();
+  }
+
+  private void openConnection(String origin) {
+    HttpConnectionManager connectionManager = HttpConnectionManager.getInstance();
+    HttpURLConnection connection = null;
+    try {
+      connection = connectionManager.openConnection(origin);
+      connection.setRequestMethod("HEAD");
+      connection.setUseCaches(false);
+      connection.setConnectTimeout(CONNECTION_TIMEOUT_MS);
+      connection.setReadTimeout(CONNECTION_TIMEOUT_MS);
+      int status = connection.getResponseCode();
+      InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+      connectionManager.release(connection, in);
+      AppLog.d(TAG, "Prewarmed connection to {}", origin);
+    } catch (IOException e) {
+      AppLog.d(TAG, "Failed to prewarm connection to {}: {}", origin, e.getMessage());
+      if (connection != null) {
+        connectionManager.abort(connection);
+      }
+      synchronized (warmOrigins) {
+        warmOrigins.remove(origin);
+      }
+    }
+  }
+
+  // Returns the host name in |url|, or null if there is none or it is an IP literal.
+  static String getHost(String url) {
+    if (url == null) {
+      return null;
+    }
+    String host;
+    int schemeEnd = url.indexOf("://");
+    if (schemeEnd > 0) {
+      try {
+        host = new URI(url).getHost();
+      } catch (URISyntaxException e) {
+        return null;
+      }
+    } else {
+      // ICE server URI, e.g. "turn:host:3478?transport=udp".
+      int colon = url.indexOf(':');
+      if (colon < 0 || url.startsWith("[", colon + 1)) {
+        return null;
+      }
+      host = url.substring(colon + 1);
+      int end = host.length();
+      for (int i = 0; i < host.length(); i++) {
+        char c = host.charAt(i);
+        if (c == ':' || c == '?' || c == '/') {
+          end = i;
+          break;
+        }
+      }
+      host = host.substring(0, end);
+    }
+    if (host == null || host.isEmpty() || host.indexOf(':') >= 0 || host.startsWith("[")
+        || host.matches("[0-9.]+")) {
+      return null;
+    }
+    return host;
+  }
+}
@@ -0,0 +1,263 @@
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens and releases signaling HTTP connections so that sockets to the room
+ * server are kept alive and reused between requests.
+ *
+ * <p>HttpURLConnection pools idle sockets per host as long as the response body
+ * is fully read and closed, and disconnect() is not called. The size of that
+ * pool is left to the platform and the host application (the http.keepAlive
+ * and http.maxConnections system properties); this class does not change the
+ * process-wide settings. All connections opened here share a single
+ * SSLSocketFactory, which keeps pooled HTTPS connections interchangeable and
+ * lets us count the TLS handshakes made per host. This class is a singleton.
+ *
+ * <p>Connections opened with a HttpTiming record their DNS, TCP connect and TLS
+ * phases into it; the caller marks the remaining phases and hands the timing to
+ * finishTiming(), which passes it on to the registered HttpTimingListeners.
+ */
+public class HttpConnectionManager {
+  private static final String TAG = "HttpConnectionManager";
+  private static final int DRAIN_BUFFER_SIZE = 1024;
+
+  private static final HttpConnectionManager instance = new HttpConnectionManager();
+
+  private final Map<String, HostStats> hostStats = new HashMap<String, HostStats>();
+  private SSLSocketFactory sslSocketFactory;
+  private final CopyOnWriteArrayList<HttpTimingListener> timingListeners =
+      new CopyOnWriteArrayList<HttpTimingListener>();
+  // Timing of the attempt running on the current worker thread, picked up by the
+  // socket factory when a new connection is made.
+  private final ThreadLocal<HttpTiming> currentTiming = new ThreadLocal<HttpTiming>();
+
+  /**
+   * Request and handshake counters for one host.
+   */
+  public static class HostStats {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+
+    public long getRequestCount() {
+      return requests.get();
+    }
+
+    // Number of new TLS connections opened; every other request reused one.
+    public long getHandshakeCount() {
+      return handshakes.get();
+    }
+
+    @Override
+    public String toString() {
+      return "requests=" + requests.get() + ", handshakes=" + handshakes.get();
+    }
+  }
+
+  private HttpConnectionManager() {
+  }
+
+  public static HttpConnectionManager getInstance() {
+    return instance;
+  }
+
+  public HttpURLConnection openConnection(String url) throws IOException {
+    return openConnection(url, null);
+  }
+
+  /**
+   * Opens a connection to |url| and records its setup phases into |timing|, if
+   * not null. The host is resolved here so that the DNS lookup can be timed; the
+   * connection then hits the resolver cache. A lookup already made by HostPrewarmer
+   * is used as is.
+   */
+  public HttpURLConnection openConnection(String url, HttpTiming timing) throws IOException {
+    URL u = new URL(url);
+    getHostStats(u.getHost()).requests.incrementAndGet();
+    if (timing != null) {
+      currentTiming.set(timing);
+      HostPrewarmer.getInstance().resolve(u.getHost());
+      timing.markDnsEnd();
+    }
+    HttpURLConnection connection = (HttpURLConnection) u.openConnection();
+    if (connection instanceof HttpsURLConnection) {
+      ((HttpsURLConnection) connection).setSSLSocketFactory(getSSLSocketFactory());
+    }
+    return connection;
+  }
+
+  /**
+   * Finishes a successful exchange: reads what is left of |in| and closes it so
+   * the underlying socket goes back to the keep-alive pool.
+   */
+  public void release(HttpURLConnection connection, InputStream in) {
+    if (in == null) {
+      return;
+    }
+    try {
+      byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+      while (in.read(buffer) != -1) {
+        // Discard.
+      }
+      in.close();
+    } catch (IOException e) {
+      // The socket can not be reused, drop it.
+      AppLog.d(TAG, "Discarding connection to {}: {}",
+          connection.getURL().getHost(), e.getMessage());
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Drops the socket behind |connection|, e.g. after an error response.
+   */
+  public void abort(HttpURLConnection connection) {
+    connection.disconnect();
+  }
+
+  /**
+   * Starts timing attempt number |attempt| of a request. |endpoint| tags the
+   * request for aggregation, e.g. "join" or "message".
+   */
+  public HttpTiming startTiming(String endpoint, String method, String url, int attempt) {
+    return new HttpTiming(endpoint, method, url, attempt);
+  }
+
+  /** Closes |timing| and reports it to the timing listeners. */
+  public void finishTiming(HttpTiming timing, boolean failed) {
+    currentTiming.remove();
+    timing.markEnd(failed);
+    for (HttpTimingListener listener : timingListeners) {
+      listener.onHttpTiming(timing);
+    }
+  }
+
+  public void addTimingListener(HttpTimingListener listener) {
+    timingListeners.addIfAbsent(listener);
+  }
+
+  public void removeTimingListener(HttpTimingListener listener) {
+    timingListeners.remove(listener);
+  }
+
+  public HostStats getHostStats(String host) {
+    synchronized (hostStats) {
+      HostStats stats = hostStats.get(host);
+      if (stats == null) {
+        stats = new HostStats();
+        hostStats.put(host, stats);
+      }
+      return stats;
+    }
+  }
+
+  public Map<String, HostStats> getAllHostStats() {
+    synchronized (hostStats) {
+      return new HashMap<String, HostStats>(hostStats);
+    }
+  }
+
+  public long getTotalHandshakeCount() {
+    long total = 0;
+    synchronized (hostStats) {
+      for (HostStats stats : hostStats.values()) {
+        total += stats.getHandshakeCount();
+      }
+    }
+    return total;
+  }
+
+  public void resetStats() {
+    synchronized (hostStats) {
+      hostStats.clear();
+    }
+  }
+
+  private synchronized SSLSocketFactory getSSLSocketFactory() {
+    if (sslSocketFactory == null) {
+      sslSocketFactory = new CountingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+    return sslSocketFactory;
+  }
+
+  // Delegating factory that counts the TLS sockets (and thus handshakes) per host.
+  private class CountingSSLSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+
+    CountingSSLSocketFactory(SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    private Socket counted(String host, Socket socket) {
+      getHostStats(host).handshakes.incrementAndGet();
+      final HttpTiming timing = currentTiming.get();
+      if (timing != null) {
+        // The TCP connection is up; the handshake starts once the socket is returned.
+        timing.markConnectEnd();
+        if (socket instanceof SSLSocket) {
+          ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+              timing.markTlsEnd();
+            }
+          });
+        }
+      }
+      return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+        throws IOException {
+      return counted(host, delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return counted(host, delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+        throws IOException {
+      return counted(host, delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return counted(host.getHostName(), delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+        int localPort) throws IOException {
+      return counted(address.getHostName(),
+          delegate.createSocket(address, port, localAddress, localPort));
+    }
+  }
+}
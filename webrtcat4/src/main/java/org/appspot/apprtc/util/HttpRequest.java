@@ -0,0 +1,78 @@
+package org.appspot.apprtc.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A request handed to an HttpTransport.
+ */
+public class HttpRequest {
+  public static final int DEFAULT_TIMEOUT_MS = 8000;
+
+  private final String method;
+  private final String url;
+  private final byte[] body;
+  private final Map<String, String> headers = new LinkedHashMap<String, String>();
+  private int connectTimeoutMs = DEFAULT_TIMEOUT_MS;
+  private int readTimeoutMs = DEFAULT_TIMEOUT_MS;
+  private HttpTiming timing;
+
+  // |body| is null for requests without one.
+  public HttpRequest(String method, String url, byte[] body) {
+    this.method = method;
+    this.url = url;
+    this.body = body;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  public void setHeader(String name, String value) {
+    headers.put(name, value);
+  }
+
+  public String getHeader(String name) {
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  public Map<String, String> getHeaders() {
+    return Collections.unmodifiableMap(headers);
+  }
+
+  public void setTimeoutMs(int timeoutMs) {
+    this.connectTimeoutMs = timeoutMs;
+    this.readTimeoutMs = timeoutMs;
+  }
+
+  public int getConnectTimeoutMs() {
+    return connectTimeoutMs;
+  }
+
+  public int getReadTimeoutMs() {
+    return readTimeoutMs;
+  }
+
+  // Timing the transport records the exchange phases into, or null.
+  public void setTiming(HttpTiming timing) {
+    this.timing = timing;
+  }
+
+  public HttpTiming getTiming() {
+    return timing;
+  }
+}
@@ -0,0 +1,53 @@
+package org.appspot.apprtc.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A response returned by an HttpTransport. Header names are case insensitive.
+ */
+public class HttpResponse {
+  private final int statusCode;
+  private final String statusLine;
+  private final Map<String, String> headers = new HashMap<String, String>();
+  private final String body;
+
+  public HttpResponse(int statusCode, String body) {
+    this(statusCode, "HTTP/1.1 " + statusCode, null, body);
+  }
+
+  public HttpResponse(int statusCode, String statusLine, Map<String, String> headers,
+      String body) {
+    this.statusCode = statusCode;
+    this.statusLine = statusLine;
+    this.body = body;
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        this.headers.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+      }
+    }
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public String getStatusLine() {
+    return statusLine;
+  }
+
+  public String getHeader(String name) {
+    return headers.get(name.toLowerCase(Locale.US));
+  }
+
+  public Map<String, String> getHeaders() {
+    return Collections.unmodifiableMap(headers);
+  }
+
+  // Decoded body, or null if it was not read (non-2xx responses).
+  public String getBody() {
+    return body;
+  }
+}
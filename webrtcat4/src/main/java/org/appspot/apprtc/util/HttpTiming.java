@@ -0,0 +1,169 @@
+package org.appspot.apprtc.util;
+
+import android.os.SystemClock;
+
+/**
+ * Phase timestamps of one HTTP attempt, all taken with SystemClock.elapsedRealtime().
+ *
+ * <p>A timestamp is 0 when the phase did not happen: connect and TLS are skipped
+ * when a pooled keep-alive connection is reused, and the TLS timestamps are only
+ * known for HTTPS. Durations of skipped phases are reported as 0.
+ */
+public class HttpTiming {
+  private final String endpoint;
+  private final String method;
+  private final String url;
+  private final int attempt;
+  private final long startMs;
+  private volatile long dnsEndMs;
+  private volatile long connectEndMs;
+  private volatile long tlsEndMs;
+  private volatile long requestSentMs;
+  private volatile long firstByteMs;
+  private volatile long endMs;
+  private volatile int statusCode;
+  private volatile boolean failed;
+  private volatile boolean newConnection;
+
+  HttpTiming(String endpoint, String method, String url, int attempt) {
+    this.endpoint = endpoint;
+    this.method = method;
+    this.url = url;
+    this.attempt = attempt;
+    this.startMs = SystemClock.elapsedRealtime();
+  }
+
+  public void markDnsEnd() {
+    dnsEndMs = SystemClock.elapsedRealtime();
+  }
+
+  public void markConnectEnd() {
+    newConnection = true;
+    connectEndMs = SystemClock.elapsedRealtime();
+  }
+
+  public void markTlsEnd() {
+    tlsEndMs = SystemClock.elapsedRealtime();
+  }
+
+  public void markRequestSent() {
+    requestSentMs = SystemClock.elapsedRealtime();
+  }
+
+  public void markFirstByte(int statusCode) {
+    this.statusCode = statusCode;
+    firstByteMs = SystemClock.elapsedRealtime();
+  }
+
+  public void markEnd(boolean failed) {
+    this.failed = failed;
+    endMs = SystemClock.elapsedRealtime();
+  }
+
+  // Endpoint tag of the request, e.g. "join", "message", "leave" or "turn".
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  // 1 for the first attempt, higher for retries.
+  public int getAttempt() {
+    return attempt;
+  }
+
+  // HTTP status code, or 0 if no response was received.
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  // Whether a pooled connection was used. Only known for HTTPS; plain HTTP
+  // requests are always reported as reused.
+  public boolean isConnectionReused() {
+    return !newConnection;
+  }
+
+  public long getStartMs() {
+    return startMs;
+  }
+
+  public long getDnsEndMs() {
+    return dnsEndMs;
+  }
+
+  public long getConnectEndMs() {
+    return connectEndMs;
+  }
+
+  public long getTlsEndMs() {
+    return tlsEndMs;
+  }
+
+  public long getRequestSentMs() {
+    return requestSentMs;
+  }
+
+  public long getFirstByteMs() {
+    return firstByteMs;
+  }
+
+  public long getEndMs() {
+    return endMs;
+  }
+
+  public long getDnsMs() {
+    return between(startMs, dnsEndMs);
+  }
+
+  // TCP connect. Only measured for HTTPS; for plain HTTP it is part of getSendMs().
+  public long getConnectMs() {
+    return between(dnsEndMs, connectEndMs);
+  }
+
+  public long getTlsMs() {
+    return between(connectEndMs, tlsEndMs);
+  }
+
+  // Writing the request, from the end of the last setup phase.
+  public long getSendMs() {
+    long from = Math.max(dnsEndMs, Math.max(connectEndMs, tlsEndMs));
+    return between(from, requestSentMs);
+  }
+
+  // Server think time: from the request being sent to the response headers.
+  public long getWaitMs() {
+    return between(requestSentMs, firstByteMs);
+  }
+
+  // Reading the response body.
+  public long getTransferMs() {
+    return between(firstByteMs, endMs);
+  }
+
+  public long getTotalMs() {
+    return between(startMs, endMs);
+  }
+
+  private static long between(long fromMs, long toMs) {
+    return (fromMs > 0 && toMs >= fromMs) ? toMs - fromMs : 0;
+  }
+
+  @Override
+  public String toString() {
+    return method + " " + endpoint + " #" + attempt + " status=" + statusCode
+        + (failed ? " failed" : "") + ": dns=" + getDnsMs() + "ms, connect=" + getConnectMs()
+        + "ms, tls=" + getTlsMs() + "ms, send=" + getSendMs() + "ms, wait=" + getWaitMs()
+        + "ms, transfer=" + getTransferMs() + "ms, total=" + getTotalMs() + "ms"
+        + (isConnectionReused() ? " (reused)" : "");
+  }
+}
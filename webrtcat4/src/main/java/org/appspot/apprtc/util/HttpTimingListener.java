@@ -0,0 +1,9 @@
+package org.appspot.apprtc.util;
+
+/**
+ * Receives the phase timings of every signaling HTTP attempt. Called on the HTTP
+ * worker thread, so implementations must be thread safe and quick.
+ */
+public interface HttpTimingListener {
+  void onHttpTiming(HttpTiming timing);
+}
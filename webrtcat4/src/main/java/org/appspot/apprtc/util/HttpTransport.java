@@ -0,0 +1,28 @@
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+
+/**
+ * Performs the HTTP exchanges of the signaling code. The default implementation,
+ * HttpURLConnectionTransport, talks to the network; InMemoryHttpTransport stands
+ * in for the room server so signaling can be exercised offline.
+ */
+public interface HttpTransport {
+  /**
+   * One exchange. execute() may be called only once.
+   */
+  interface Call {
+    /**
+     * Sends the request and blocks until the response has been read. The body
+     * is only read for 2xx responses.
+     *
+     * @throws IOException on network errors, timeouts or after cancel().
+     */
+    HttpResponse execute() throws IOException;
+
+    /** Aborts the exchange; may be called from any thread. */
+    void cancel();
+  }
+
+  Call newCall(HttpRequest request);
+}
@@ -0,0 +1,111 @@
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpTransport over java.net.HttpURLConnection. Connections are opened and
+ * released through HttpConnectionManager so that keep-alive sockets are reused.
+ * gzip and deflate response bodies are decoded.
+ */
+public class HttpURLConnectionTransport implements HttpTransport {
+  @Override
+  public Call newCall(HttpRequest request) {
+    return new URLConnectionCall(request);
+  }
+
+  private static class URLConnectionCall implements Call {
+    private final HttpRequest request;
+    private volatile boolean cancelled;
+    private volatile HttpURLConnection activeConnection;
+
+    URLConnectionCall(HttpRequest request) {
+      this.request = request;
+    }
+
+    @Override
+    public HttpResponse execute() throws IOException {
+      HttpConnectionManager connectionManager = HttpConnectionManager.getInstance();
+      HttpTiming timing = request.getTiming();
+      HttpURLConnection connection =
+          connectionManager.openConnection(request.getUrl(), timing);
+      activeConnection = connection;
+      try {
+        if (cancelled) {
+          // cancel() may have run before activeConnection was set.
+          throw new IOException("Cancelled");
+        }
+        connection.setRequestMethod(request.getMethod());
+        connection.setUseCaches(false);
+        connection.setDoInput(true);
+        connection.setConnectTimeout(request.getConnectTimeoutMs());
+        connection.setReadTimeout(request.getReadTimeoutMs());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+          connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (request.getHeader("Accept-Encoding") == null) {
+          // Asking for an encoding explicitly turns off transparent decompression,
+          // so the body is decoded below.
+          connection.setRequestProperty("Accept-Encoding", StreamUtils.ACCEPTED_ENCODINGS);
+        }
+        byte[] body = request.getBody();
+        if (body != null) {
+          connection.setDoOutput(true);
+          connection.setFixedLengthStreamingMode(body.length);
+          if (body.length > 0) {
+            OutputStream outStream = connection.getOutputStream();
+            outStream.write(body);
+            outStream.close();
+          }
+        }
+
+        if (timing != null) {
+          timing.markRequestSent();
+        }
+        int responseCode = connection.getResponseCode();
+        if (timing != null) {
+          timing.markFirstByte(responseCode);
+        }
+        String statusLine = connection.getHeaderField(null);
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+          if (header.getKey() != null && !header.getValue().isEmpty()) {
+            headers.put(header.getKey(), header.getValue().get(0));
+          }
+        }
+        if (responseCode / 100 != 2) {
+          connectionManager.abort(connection);
+          return new HttpResponse(responseCode, statusLine, headers, null);
+        }
+        String responseEncoding = connection.getContentEncoding();
+        InputStream responseStream =
+            StreamUtils.decode(connection.getInputStream(), responseEncoding);
+        // Content-Length is the encoded size, which is no use for sizing the buffer.
+        int contentLength = (responseEncoding == null) ? connection.getContentLength() : -1;
+        String response = StreamUtils.drainStream(responseStream, contentLength);
+        // Keep the socket alive for the next request to the same host.
+        connectionManager.release(connection, responseStream);
+        return new HttpResponse(responseCode, statusLine, headers, response);
+      } catch (IOException e) {
+        connectionManager.abort(connection);
+        throw e;
+      } finally {
+        activeConnection = null;
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      HttpURLConnection connection = activeConnection;
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+}
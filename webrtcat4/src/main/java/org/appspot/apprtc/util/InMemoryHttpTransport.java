@@ -0,0 +1,155 @@
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HttpTransport that answers requests in-process through registered route
+ * handlers, with optional network latency and loss. Meant for running and
+ * benchmarking the signaling flows (join, message, leave) without a room
+ * server. WebSocket traffic is not covered.
+ *
+ * <p>Each exchange waits for a random round trip time between the configured
+ * bounds, half before and half after the handler runs. A lost exchange fails
+ * with a SocketTimeoutException once the request read timeout has elapsed,
+ * as a dropped packet would. Requests without a matching route get a 404.
+ */
+public class InMemoryHttpTransport implements HttpTransport {
+  private final List<Route> routes = new ArrayList<Route>();
+  private final Random random = new Random();
+  private volatile long minLatencyMs;
+  private volatile long maxLatencyMs;
+  private volatile double lossRate;
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong lostCount = new AtomicLong();
+
+  /**
+   * Produces the response to a request. Called on the HTTP worker thread.
+   */
+  public interface Handler {
+    HttpResponse handle(HttpRequest request) throws IOException;
+  }
+
+  private static class Route {
+    final String method;
+    final String pathPrefix;
+    final Handler handler;
+
+    Route(String method, String pathPrefix, Handler handler) {
+      this.method = method;
+      this.pathPrefix = pathPrefix;
+      this.handler = handler;
+    }
+  }
+
+  /**
+   * Routes requests whose URL path starts with |pathPrefix| to |handler|. A null
+   * |method| matches any method. Routes are tried in the order they were added.
+   */
+  public synchronized void addRoute(String method, String pathPrefix, Handler handler) {
+    routes.add(new Route(method, pathPrefix, handler));
+  }
+
+  // Round trip time of every exchange, picked at random between the two bounds.
+  public void setLatencyMs(long minLatencyMs, long maxLatencyMs) {
+    this.minLatencyMs = minLatencyMs;
+    this.maxLatencyMs = Math.max(minLatencyMs, maxLatencyMs);
+  }
+
+  // Probability, between 0 and 1, that an exchange is lost.
+  public void setLossRate(double lossRate) {
+    this.lossRate = lossRate;
+  }
+
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  public long getLostCount() {
+    return lostCount.get();
+  }
+
+  @Override
+  public Call newCall(HttpRequest request) {
+    return new InMemoryCall(request);
+  }
+
+  private synchronized Handler findHandler(HttpRequest request) throws MalformedURLException {
+    String path = new URL(request.getUrl()).getPath();
+    for (Route route : routes) {
+      if ((route.method == null || route.method.equals(request.getMethod()))
+          && path.startsWith(route.pathPrefix)) {
+        return route.handler;
+      }
+    }
+    return null;
+  }
+
+  private synchronized long nextLatencyMs() {
+    return minLatencyMs + (long) (random.nextDouble() * (maxLatencyMs - minLatencyMs));
+  }
+
+  private synchronized boolean nextLost() {
+    return random.nextDouble() < lossRate;
+  }
+
+  private class InMemoryCall implements Call {
+    private final HttpRequest request;
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+
+    InMemoryCall(HttpRequest request) {
+      this.request = request;
+    }
+
+    @Override
+    public HttpResponse execute() throws IOException {
+      requestCount.incrementAndGet();
+      HttpTiming timing = request.getTiming();
+      if (timing != null) {
+        timing.markDnsEnd();
+        timing.markRequestSent();
+      }
+      if (nextLost()) {
+        lostCount.incrementAndGet();
+        sleep(request.getReadTimeoutMs());
+        throw new SocketTimeoutException("Simulated loss of " + request.getMethod() + " "
+            + request.getUrl());
+      }
+      long latencyMs = nextLatencyMs();
+      sleep(latencyMs / 2);
+      Handler handler = findHandler(request);
+      HttpResponse response = (handler != null)
+          ? handler.handle(request) : new HttpResponse(404, null);
+      sleep(latencyMs - latencyMs / 2);
+      if (timing != null) {
+        timing.markFirstByte(response.getStatusCode());
+      }
+      return response;
+    }
+
+    // Waits for |delayMs|, or fails as soon as the call is cancelled.
+    private void sleep(long delayMs) throws IOException {
+      try {
+        if (cancelled.await(delayMs, TimeUnit.MILLISECONDS)) {
+          throw new IOException("Cancelled");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled.countDown();
+    }
+  }
+}
@@ -12,7 +12,6 @@ package org.appspot.apprtc.util;
 
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -36,7 +35,7 @@ public class LooperExecutor extends Thread implements Executor {
   public void run() {
     Looper.prepare();
     synchronized (looperStartedEvent) {
-      Log.d(TAG, "Looper thread started.");
+      AppLog.d(TAG, "Looper thread started.");
       handler = new Handler();
       threadId = Thread.currentThread().getId();
       looperStartedEvent.notify();
@@ -57,7 +56,7 @@ public class LooperExecutor extends Thread implements Executor {
         try {
           looperStartedEvent.wait();
         } catch (InterruptedException e) {
-          Log.e(TAG, "Can not start looper thread");
+          AppLog.e(TAG, "Can not start looper thread");
           running = false;
         }
       }
@@ -73,7 +72,7 @@ public class LooperExecutor extends Thread implements Executor {
       @Override
       public void run() {
         handler.getLooper().quit();
-        Log.d(TAG, "Looper thread finished.");
+        AppLog.d(TAG, "Looper thread finished.");
       }
     });
   }
@@ -85,7 +84,7 @@ public class LooperExecutor extends Thread implements Executor {
 
   public synchronized void scheduleAtFixedRate(final Runnable command, final long periodMillis) {
     if (!running) {
-      Log.w(TAG, "Trying to schedule task for non running executor");
+      AppLog.w(TAG, "Trying to schedule task for non running executor");
       return;
     }
     Runnable runnable = new Runnable() {
@@ -94,20 +93,30 @@ public class LooperExecutor extends Thread implements Executor {
         if (running) {
           command.run();
           if (!handler.postDelayed(this, periodMillis)) {
-            Log.e(TAG, "Failed to post a delayed runnable in the chain.");
+            AppLog.e(TAG, "Failed to post a delayed runnable in the chain.");
           }
         }
       }
     };
     scheduledPeriodicRunnables.add(runnable);
     if (!handler.postDelayed(runnable, periodMillis)) {
-      Log.e(TAG, "Failed to post a delayed runnable.");
+      AppLog.e(TAG, "Failed to post a delayed runnable.");
+    }
+  }
+
+  public synchronized void executeDelayed(final Runnable runnable, final long delayMillis) {
+    if (!running) {
+      AppLog.w(TAG, "Trying to schedule task for non running executor");
+      return;
+    }
+    if (!handler.postDelayed(runnable, delayMillis)) {
+      AppLog.e(TAG, "Failed to post a delayed runnable.");
     }
   }
 
   public synchronized void cancelScheduledTasks() {
     if (!running) {
-      Log.w(TAG, "Trying to cancel schedule tasks for non running executor");
+      AppLog.w(TAG, "Trying to cancel schedule tasks for non running executor");
       return;
     }
 
@@ -121,7 +130,7 @@ public class LooperExecutor extends Thread implements Executor {
   @Override
   public synchronized void execute(final Runnable runnable) {
     if (!running) {
-      Log.w(TAG, "Running looper executor without calling requestStart()");
+      AppLog.w(TAG, "Running looper executor without calling requestStart()");
       return;
     }
     if (Thread.currentThread().getId() == threadId) {
@@ -0,0 +1,23 @@
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+
+/**
+ * Decides whether, and after how long, a failed AsyncHttpURLConnection request
+ * is sent again.
+ */
+public interface RetryPolicy {
+  /** Returned by getRetryDelayMs() when the request should not be retried. */
+  long NO_RETRY = -1;
+
+  /**
+   * @param method HTTP method of the failed request.
+   * @param attempts number of attempts made so far (1 after the first failure).
+   * @param elapsedMs time since the first attempt was started.
+   * @param statusCode HTTP status code of the failed attempt, or 0 if it failed with |error|.
+   * @param error exception that made the attempt fail, or null for an error status code.
+   * @return delay before the next attempt in milliseconds, or NO_RETRY.
+   */
+  long getRetryDelayMs(String method, int attempts, long elapsedMs, int statusCode,
+      IOException error);
+}
@@ -0,0 +1,125 @@
+package org.appspot.apprtc.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Helpers for reading HTTP response bodies and encoding request bodies.
+ */
+public final class StreamUtils {
+  public static final String ENCODING_GZIP = "gzip";
+  public static final String ENCODING_DEFLATE = "deflate";
+  // Accept-Encoding value matching what decode() understands.
+  public static final String ACCEPTED_ENCODINGS = ENCODING_GZIP + ", " + ENCODING_DEFLATE;
+  public static final int DEFAULT_MAX_BODY_BYTES = 1024 * 1024;
+  private static final int DEFAULT_BUFFER_BYTES = 4096;
+  // Larger buffers are used once and not kept around by the worker thread.
+  private static final int MAX_RETAINED_BUFFER_BYTES = 64 * 1024;
+  private static final int MAX_ARRAY_BYTES = Integer.MAX_VALUE - 8;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static volatile int maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+
+  // Read buffer reused by each HTTP worker thread.
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+  private StreamUtils() {
+  }
+
+  /** Sets the largest response body, in bytes, that drainStream() accepts. */
+  public static void setMaxBodyBytes(int maxBodyBytes) {
+    if (maxBodyBytes > 0) {
+      StreamUtils.maxBodyBytes = Math.min(maxBodyBytes, MAX_ARRAY_BYTES);
+    }
+  }
+
+  public static int getMaxBodyBytes() {
+    return maxBodyBytes;
+  }
+
+  /**
+   * Returns the contents of |in| decoded as UTF-8. |contentLength| is the
+   * Content-Length of the response, or -1 if unknown, and is used to size the
+   * read buffer.
+   *
+   * @throws IOException if the body is larger than getMaxBodyBytes().
+   */
+  public static String drainStream(InputStream in, int contentLength) throws IOException {
+    final int limit = maxBodyBytes;
+    if (contentLength > limit) {
+      throw new IOException("Response body of " + contentLength + " bytes exceeds limit of "
+          + limit + " bytes");
+    }
+    byte[] buffer = buffers.get();
+    int wanted = (contentLength > 0) ? contentLength + 1 : DEFAULT_BUFFER_BYTES;
+    if (buffer == null || buffer.length < wanted) {
+      buffer = new byte[Math.min(wanted, limit + 1)];
+    }
+    int length = 0;
+    while (true) {
+      if (length == buffer.length) {
+        if (length > limit) {
+          throw new IOException("Response body exceeds limit of " + limit + " bytes");
+        }
+        byte[] grown = new byte[(int) Math.min((long) buffer.length * 2, (long) limit + 1)];
+        System.arraycopy(buffer, 0, grown, 0, length);
+        buffer = grown;
+      }
+      int read = in.read(buffer, length, buffer.length - length);
+      if (read == -1) {
+        break;
+      }
+      length += read;
+    }
+    if (length > limit) {
+      throw new IOException("Response body exceeds limit of " + limit + " bytes");
+    }
+    if (buffer.length <= MAX_RETAINED_BUFFER_BYTES) {
+      buffers.set(buffer);
+    }
+    return new String(buffer, 0, length, UTF_8);
+  }
+
+  /**
+   * Compresses |data| with |encoding|, ENCODING_GZIP or ENCODING_DEFLATE (zlib
+   * format, as meant by the HTTP "deflate" coding).
+   */
+  public static byte[] encode(byte[] data, String encoding) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 64);
+    OutputStream out;
+    if (ENCODING_GZIP.equals(encoding)) {
+      out = new GZIPOutputStream(bytes);
+    } else if (ENCODING_DEFLATE.equals(encoding)) {
+      out = new DeflaterOutputStream(bytes);
+    } else {
+      throw new IOException("Unsupported content encoding: " + encoding);
+    }
+    out.write(data);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Wraps |in| so that it reads the body decoded according to its
+   * Content-Encoding header value, which may be null.
+   */
+  public static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+    if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
+      return in;
+    }
+    if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+      return new GZIPInputStream(in);
+    }
+    if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+      return new InflaterInputStream(in);
+    }
+    throw new IOException("Unsupported content encoding: " + contentEncoding);
+  }
+}
@@ -0,0 +1,128 @@
+package net.i2cat.seg.webrtcat4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignalingFrameCodecTest {
+    private static final int FRAME_TYPE_OFFSET = 1;
+    private static final int TYPE_CANDIDATE = 1;
+    private static final int TYPE_SDP = 2;
+    private static final int TYPE_JSON = 3;
+
+    private static final String HOST_CANDIDATE =
+        "candidate:842163049 1 udp 2122260223 192.168.1.10 53000 typ host generation 0"
+        + " ufrag a+bc network-id 1";
+    private static final String SRFLX_CANDIDATE =
+        "candidate:1 1 udp 1677729535 1.2.3.4 5000 typ srflx raddr 10.0.0.2 rport 5000";
+
+    @Test
+    public void candidateRoundTrip() throws Exception {
+        for (String line : new String[] {HOST_CANDIDATE, SRFLX_CANDIDATE,
+                "candidate:1 1 tcp 1 fe80::1 9 typ host tcptype active", "not a candidate line"}) {
+            String message = candidate(0, "audio", line).toString();
+            byte[] frame = SignalingFrameCodec.encode(message);
+            assertEquals(TYPE_CANDIDATE, frame[FRAME_TYPE_OFFSET]);
+            assertSameJson(message, SignalingFrameCodec.decode(frame));
+        }
+    }
+
+    @Test
+    public void sdpRoundTrip() throws Exception {
+        JSONObject offer = new JSONObject();
+        offer.put("type", "offer");
+        offer.put("sdp", "v=0\r\na=ice-ufrag:a+b\r\n");
+        byte[] frame = SignalingFrameCodec.encode(offer.toString());
+        assertEquals(TYPE_SDP, frame[FRAME_TYPE_OFFSET]);
+        assertSameJson(offer.toString(), SignalingFrameCodec.decode(frame));
+    }
+
+    @Test
+    public void candidateWithExtraKeyIsSentAsJson() throws Exception {
+        JSONObject json = candidate(1, "video", HOST_CANDIDATE);
+        json.put("usernameFragment", "a+bc");
+        checkSentAsJson(json.toString());
+    }
+
+    @Test
+    public void candidateWithOtherValueTypesIsSentAsJson() throws Exception {
+        JSONObject json = candidate(0, "audio", HOST_CANDIDATE);
+        json.put("label", "0");
+        checkSentAsJson(json.toString());
+        json = candidate(0, "audio", HOST_CANDIDATE);
+        json.put("id", 7);
+        checkSentAsJson(json.toString());
+        checkSentAsJson(candidate(-1, "audio", HOST_CANDIDATE).toString());
+    }
+
+    @Test
+    public void candidateWithMissingKeyIsSentAsJson() throws Exception {
+        JSONObject json = candidate(0, "audio", HOST_CANDIDATE);
+        json.remove("id");
+        checkSentAsJson(json.toString());
+    }
+
+    @Test
+    public void sdpWithExtraKeyIsSentAsJson() throws Exception {
+        JSONObject answer = new JSONObject();
+        answer.put("type", "answer");
+        answer.put("sdp", "v=0\r\n");
+        answer.put("trickle", true);
+        checkSentAsJson(answer.toString());
+    }
+
+    @Test
+    public void otherMessagesAreSentAsJson() throws Exception {
+        checkSentAsJson("{\"type\":\"bye\"}");
+        checkSentAsJson("{\"type\":\"remove-candidates\",\"candidates\":[]}");
+    }
+
+    @Test
+    public void helloIsRecognized() {
+        assertTrue(SignalingFrameCodec.isHello(new byte[] {(byte) 0xB1, 0}));
+        assertFalse(SignalingFrameCodec.isHello(new byte[] {(byte) 0xB1, 1}));
+        assertFalse(SignalingFrameCodec.isHello(new byte[] {0, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFrameIsRejected() throws Exception {
+        byte[] frame = SignalingFrameCodec.encode(candidate(0, "audio", HOST_CANDIDATE).toString());
+        byte[] truncated = new byte[frame.length - 3];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        SignalingFrameCodec.decode(truncated);
+    }
+
+    private static void checkSentAsJson(String message) throws JSONException, IOException {
+        byte[] frame = SignalingFrameCodec.encode(message);
+        assertEquals(TYPE_JSON, frame[FRAME_TYPE_OFFSET]);
+        assertEquals(message, SignalingFrameCodec.decode(frame));
+    }
+
+    private static JSONObject candidate(int label, String id, String line) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("type", "candidate");
+        json.put("label", label);
+        json.put("id", id);
+        json.put("candidate", line);
+        return json;
+    }
+
+    // Compares two flat JSON objects key by key, ignoring key order.
+    private static void assertSameJson(String expected, String actual) throws JSONException {
+        JSONObject expectedJson = new JSONObject(expected);
+        JSONObject actualJson = new JSONObject(actual);
+        assertEquals(actual, expectedJson.length(), actualJson.length());
+        Iterator<?> keys = expectedJson.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            assertEquals(key, expectedJson.get(key), actualJson.opt(key));
+        }
+    }
+}
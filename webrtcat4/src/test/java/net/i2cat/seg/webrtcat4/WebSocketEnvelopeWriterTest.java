@@ -0,0 +1,120 @@
+package net.i2cat.seg.webrtcat4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WebSocketEnvelopeWriterTest {
+    private final WebSocketEnvelopeWriter writer = new WebSocketEnvelopeWriter();
+
+    @Test
+    public void sendMatchesJSONObjectForPlainAndQuotedText() throws JSONException {
+        String[] messages = {
+            "",
+            "{\"type\":\"bye\"}",
+            "back\\slash and \"quotes\"",
+            "line\nbreak\ttab\rreturn\bback\fform",
+            "caf\u00e9 \u65e5\u672c",
+        };
+        for (String message : messages) {
+            assertEquals("{\"cmd\":\"send\",\"msg\":" + JSONObject.quote(message) + "}",
+                writer.send(message));
+            assertRoundTrip(message);
+        }
+    }
+
+    @Test
+    public void sendEscapesControlCharacters() throws JSONException {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            sb.append(c);
+        }
+        String message = sb.toString();
+        String envelope = writer.send(message);
+        for (int i = 0; i < envelope.length(); i++) {
+            assertTrue("Raw control character in " + envelope, envelope.charAt(i) >= 0x20);
+        }
+        assertTrue(envelope.contains("\\u0000"));
+        assertTrue(envelope.contains("\\u001f"));
+        assertRoundTrip(message);
+    }
+
+    @Test
+    public void sendEscapesLineSeparators() throws JSONException {
+        String message = "a\u2028b\u2029c";
+        String envelope = writer.send(message);
+        assertTrue(envelope.contains("a\\u2028b\\u2029c"));
+        assertRoundTrip(message);
+    }
+
+    @Test
+    public void sendKeepsNonBmpCharacters() throws JSONException {
+        // U+1F600 as a surrogate pair, which must not be split or escaped half-way.
+        String message = "{\"text\":\"smile \ud83d\ude00\"}";
+        assertEquals("{\"cmd\":\"send\",\"msg\":" + JSONObject.quote(message) + "}",
+            writer.send(message));
+        assertRoundTrip(message);
+    }
+
+    @Test
+    public void sendEscapesJsonPayload() throws JSONException {
+        JSONObject candidate = new JSONObject();
+        candidate.put("type", "candidate");
+        candidate.put("label", 0);
+        candidate.put("id", "audio");
+        candidate.put("candidate", "candidate:1 1 udp 2122260223 10.0.0.2 53000 typ host");
+        String message = candidate.toString();
+        JSONObject envelope = new JSONObject(writer.send(message));
+        assertEquals(message, envelope.getString("msg"));
+        JSONObject decoded = new JSONObject(envelope.getString("msg"));
+        assertEquals(candidate.getString("candidate"), decoded.getString("candidate"));
+    }
+
+    @Test
+    public void registerWritesOptionalFrames() throws JSONException {
+        JSONObject register = new JSONObject(writer.register("room\"1", "client\\2", null));
+        assertEquals("register", register.getString("cmd"));
+        assertEquals("room\"1", register.getString("roomid"));
+        assertEquals("client\\2", register.getString("clientid"));
+        assertFalse(register.has("frames"));
+
+        register = new JSONObject(writer.register("room", "client", "b1"));
+        assertEquals("b1", register.getString("frames"));
+    }
+
+    @Test
+    public void registerWritesNullIds() throws JSONException {
+        JSONObject register = new JSONObject(writer.register(null, null, null));
+        assertTrue(register.isNull("roomid"));
+        assertTrue(register.isNull("clientid"));
+    }
+
+    @Test
+    public void receivedWritesEnvelopeWithEmptyError() throws JSONException {
+        String message = "{\"type\":\"offer\",\"sdp\":\"v=0\\r\\n\"}";
+        JSONObject received = new JSONObject(writer.received(message));
+        assertEquals(message, received.getString("msg"));
+        assertEquals("", received.getString("error"));
+    }
+
+    @Test
+    public void writerIsReusableAfterLargeMessage() throws JSONException {
+        char[] chars = new char[100 * 1024];
+        Arrays.fill(chars, '"');
+        String large = new String(chars);
+        assertRoundTrip(large);
+        assertEquals("{\"cmd\":\"send\",\"msg\":\"x\"}", writer.send("x"));
+    }
+
+    private void assertRoundTrip(String message) throws JSONException {
+        JSONObject envelope = new JSONObject(writer.send(message));
+        assertEquals("send", envelope.getString("cmd"));
+        assertEquals(message, envelope.getString("msg"));
+    }
+}
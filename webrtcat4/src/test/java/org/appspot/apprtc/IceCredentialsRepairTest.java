@@ -0,0 +1,120 @@
+package org.appspot.apprtc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class IceCredentialsRepairTest {
+  private static final String SDP_HEAD =
+      "v=0\r\n"
+      + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+      + "s=-\r\n"
+      + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103\r\n"
+      + "c=IN IP4 0.0.0.0\r\n";
+
+  @Test
+  public void sdpRestoresPlusInUfragAndPwd() {
+    String sdp = SDP_HEAD
+        + "a=ice-ufrag:a b \r\n"
+        + "a=ice-pwd:x yz  w+v\r\n"
+        + "a=mid:audio\r\n";
+    String expected = SDP_HEAD
+        + "a=ice-ufrag:a+b+\r\n"
+        + "a=ice-pwd:x+yz++w+v\r\n"
+        + "a=mid:audio\r\n";
+    assertEquals(expected, IceCredentialsRepair.repairSdp(sdp));
+  }
+
+  @Test
+  public void sdpWithoutSpacesInCredentialsIsReturnedAsIs() {
+    String sdp = SDP_HEAD
+        + "a=ice-ufrag:a+b+\r\n"
+        + "a=ice-pwd:x+yz++w+v\r\n";
+    assertSame(sdp, IceCredentialsRepair.repairSdp(sdp));
+  }
+
+  @Test
+  public void sdpLinesWithoutCredentialsAreUntouched() {
+    String sdp = SDP_HEAD
+        + "a=rtpmap:111 opus/48000/2\r\n"
+        + "a=fingerprint:sha-256 AB:CD:EF\r\n";
+    assertSame(sdp, IceCredentialsRepair.repairSdp(sdp));
+  }
+
+  @Test
+  public void sdpCredentialPrefixOnlyMatchesAtLineStart() {
+    String sdp = "a=x a=ice-ufrag:a b\r\n";
+    assertSame(sdp, IceCredentialsRepair.repairSdp(sdp));
+  }
+
+  @Test
+  public void sdpRepairStopsAtCrlf() {
+    String sdp = "a=ice-ufrag:a b\r\nm=video 9 UDP 96\r\n";
+    assertEquals("a=ice-ufrag:a+b\r\nm=video 9 UDP 96\r\n", IceCredentialsRepair.repairSdp(sdp));
+  }
+
+  @Test
+  public void sdpRepairStopsAtBareLf() {
+    String sdp = "a=ice-pwd:a b\nm=video 9 UDP 96\na=ice-ufrag:c d";
+    assertEquals("a=ice-pwd:a+b\nm=video 9 UDP 96\na=ice-ufrag:c+d",
+        IceCredentialsRepair.repairSdp(sdp));
+  }
+
+  @Test
+  public void sdpKeepsFinalLineBreak() {
+    assertEquals("a=ice-ufrag:a+b\r\n", IceCredentialsRepair.repairSdp("a=ice-ufrag:a b\r\n"));
+    assertEquals("a=ice-ufrag:a+b", IceCredentialsRepair.repairSdp("a=ice-ufrag:a b"));
+  }
+
+  @Test
+  public void sdpRepairsOnlyTheUfragOfCandidateLines() {
+    String sdp = "a=candidate:842163049 1 udp 1677729535 1.2.3.4 5000 typ srflx"
+        + " raddr 10.0.0.2 rport 5000 generation 0 ufrag a bc network-id 1\r\n"
+        + "a=mid:audio\r\n";
+    String expected = "a=candidate:842163049 1 udp 1677729535 1.2.3.4 5000 typ srflx"
+        + " raddr 10.0.0.2 rport 5000 generation 0 ufrag a+bc network-id 1\r\n"
+        + "a=mid:audio\r\n";
+    assertEquals(expected, IceCredentialsRepair.repairSdp(sdp));
+  }
+
+  @Test
+  public void candidateRestoresPlusInUfrag() {
+    String candidate = "candidate:1 1 udp 2122260223 10.0.0.2 53000 typ host"
+        + " generation 0 ufrag  x y network-id 3";
+    String expected = "candidate:1 1 udp 2122260223 10.0.0.2 53000 typ host"
+        + " generation 0 ufrag +x+y network-id 3";
+    assertEquals(expected, IceCredentialsRepair.repairCandidate(candidate));
+  }
+
+  @Test
+  public void candidateUfragAtEndOfLine() {
+    assertEquals("candidate:1 1 udp 1 h 1 typ host ufrag a+b",
+        IceCredentialsRepair.repairCandidate("candidate:1 1 udp 1 h 1 typ host ufrag a b"));
+  }
+
+  @Test
+  public void candidateWithoutSpacesInUfragIsReturnedAsIs() {
+    String candidate = "candidate:1 1 udp 2122260223 10.0.0.2 53000 typ host"
+        + " generation 0 ufrag a+bc network-id 3";
+    assertSame(candidate, IceCredentialsRepair.repairCandidate(candidate));
+  }
+
+  @Test
+  public void candidateWithoutUfragIsUntouched() {
+    String candidate = "candidate:1 1 udp 2122260223 10.0.0.2 53000 typ host generation 0";
+    assertSame(candidate, IceCredentialsRepair.repairCandidate(candidate));
+  }
+
+  @Test
+  public void candidateIgnoresSdpCredentialLines() {
+    String text = "a=ice-ufrag:a b";
+    assertSame(text, IceCredentialsRepair.repairCandidate(text));
+  }
+
+  @Test
+  public void acceptsCharSequences() {
+    StringBuilder sdp = new StringBuilder("a=ice-pwd:a b\r\n");
+    assertEquals("a=ice-pwd:a+b\r\n", IceCredentialsRepair.repairSdp(sdp));
+  }
+}
@@ -0,0 +1,81 @@
+package org.appspot.apprtc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HostPrewarmerTest {
+  @Before
+  public void setUp() {
+    HostPrewarmer.getInstance().clear();
+    HostPrewarmer.getInstance().resetStats();
+  }
+
+  @After
+  public void tearDown() {
+    AsyncHttpExecutor.getInstance().configure(AsyncHttpExecutor.DEFAULT_MAX_THREADS,
+        AsyncHttpExecutor.DEFAULT_QUEUE_CAPACITY);
+    HostPrewarmer.getInstance().clear();
+  }
+
+  // A worker that prewarms a host and then resolves it, as the join response handling
+  // does for the TURN host, must not wait for a lookup queued behind itself.
+  @Test(timeout = 10000)
+  public void resolveOnWorkerRunsQueuedPrewarmInline() throws InterruptedException {
+    AsyncHttpExecutor.getInstance().configure(1, AsyncHttpExecutor.DEFAULT_QUEUE_CAPACITY);
+    final AtomicReference<Object> result = new AtomicReference<Object>();
+    final CountDownLatch done = new CountDownLatch(1);
+    AsyncHttpExecutor.getInstance().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          HostPrewarmer.getInstance().prewarm("https://localhost/");
+          result.set(HostPrewarmer.getInstance().resolve("localhost"));
+        } catch (Exception e) {
+          result.set(e);
+        }
+        done.countDown();
+      }
+    });
+    assertTrue("resolve() blocked the only worker", done.await(5, TimeUnit.SECONDS));
+    assertTrue(String.valueOf(result.get()), result.get() instanceof InetAddress[]);
+    assertTrue(((InetAddress[]) result.get()).length > 0);
+    assertEquals(1, HostPrewarmer.getInstance().getMissCount());
+  }
+
+  @Test(timeout = 10000)
+  public void resolveUsesCompletedPrewarm() throws Exception {
+    HostPrewarmer.getInstance().prewarm("wss://localhost:8089/ws");
+    InetAddress[] first = HostPrewarmer.getInstance().resolve("localhost");
+    InetAddress[] second = HostPrewarmer.getInstance().resolve("localhost");
+    assertTrue(first.length > 0);
+    assertTrue(first == second);
+    assertEquals(2, HostPrewarmer.getInstance().getHitCount()
+        + HostPrewarmer.getInstance().getMissCount());
+  }
+
+  @Test
+  public void getHostAcceptsUrlsAndIceServerUris() {
+    assertEquals("example.com", HostPrewarmer.getHost("https://example.com/join/1"));
+    assertEquals("example.com", HostPrewarmer.getHost("wss://example.com:8089/ws"));
+    assertEquals("turn.example.com", HostPrewarmer.getHost("turn:turn.example.com:3478?transport=udp"));
+    assertEquals("stun.example.com", HostPrewarmer.getHost("stun:stun.example.com"));
+  }
+
+  @Test
+  public void getHostSkipsIpLiteralsAndNull() {
+    assertNull(HostPrewarmer.getHost(null));
+    assertNull(HostPrewarmer.getHost("https://192.168.1.10/join"));
+    assertNull(HostPrewarmer.getHost("turn:10.0.0.1:3478"));
+    assertNull(HostPrewarmer.getHost("turn:[2001:db8::1]:3478"));
+  }
+}
@@ -0,0 +1,184 @@
+package org.appspot.apprtc.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class StreamUtilsTest {
+  @After
+  public void tearDown() {
+    StreamUtils.setMaxBodyBytes(StreamUtils.DEFAULT_MAX_BODY_BYTES);
+  }
+
+  @Test
+  public void drainStreamDecodesUtf8() throws IOException {
+    String body = "{\"room\":\"caf\u00e9\",\"emoji\":\"\ud83d\ude00\"}";
+    byte[] bytes = body.getBytes("UTF-8");
+    assertEquals(body, StreamUtils.drainStream(new ByteArrayInputStream(bytes), bytes.length));
+    assertEquals(body, StreamUtils.drainStream(new ByteArrayInputStream(bytes), -1));
+  }
+
+  @Test
+  public void drainStreamReadsEmptyBody() throws IOException {
+    assertEquals("", StreamUtils.drainStream(new ByteArrayInputStream(new byte[0]), 0));
+    assertEquals("", StreamUtils.drainStream(new ByteArrayInputStream(new byte[0]), -1));
+  }
+
+  @Test
+  public void drainStreamGrowsBufferForUnknownLength() throws IOException {
+    String body = repeat('x', 100 * 1024);
+    // Short reads, as from a socket.
+    InputStream in = new ChunkedInputStream(body.getBytes("UTF-8"), 1000);
+    assertEquals(body, StreamUtils.drainStream(in, -1));
+  }
+
+  @Test
+  public void drainStreamHandlesWrongContentLength() throws IOException {
+    String body = repeat('y', 10000);
+    byte[] bytes = body.getBytes("UTF-8");
+    assertEquals(body, StreamUtils.drainStream(new ByteArrayInputStream(bytes), 10));
+    assertEquals(body, StreamUtils.drainStream(new ByteArrayInputStream(bytes), 20000));
+  }
+
+  @Test
+  public void drainStreamAcceptsBodyAtLimit() throws IOException {
+    StreamUtils.setMaxBodyBytes(5000);
+    String body = repeat('z', 5000);
+    byte[] bytes = body.getBytes("UTF-8");
+    assertEquals(body, StreamUtils.drainStream(new ByteArrayInputStream(bytes), -1));
+    assertEquals(body, StreamUtils.drainStream(new ByteArrayInputStream(bytes), bytes.length));
+  }
+
+  @Test
+  public void drainStreamRejectsBodyOverLimit() throws IOException {
+    StreamUtils.setMaxBodyBytes(5000);
+    byte[] bytes = repeat('z', 5001).getBytes("UTF-8");
+    try {
+      StreamUtils.drainStream(new ChunkedInputStream(bytes, 700), -1);
+      fail("Body over the limit accepted");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void drainStreamRejectsContentLengthOverLimitWithoutReading() throws IOException {
+    StreamUtils.setMaxBodyBytes(5000);
+    ChunkedInputStream in = new ChunkedInputStream(new byte[10], 10);
+    try {
+      StreamUtils.drainStream(in, 5001);
+      fail("Content-Length over the limit accepted");
+    } catch (IOException expected) {
+    }
+    assertEquals(0, in.reads);
+  }
+
+  @Test
+  public void setMaxBodyBytesIgnoresNonPositiveValues() {
+    StreamUtils.setMaxBodyBytes(5000);
+    StreamUtils.setMaxBodyBytes(0);
+    StreamUtils.setMaxBodyBytes(-1);
+    assertEquals(5000, StreamUtils.getMaxBodyBytes());
+  }
+
+  @Test
+  public void gzipRoundTrip() throws IOException {
+    checkRoundTrip(StreamUtils.ENCODING_GZIP);
+  }
+
+  @Test
+  public void deflateRoundTrip() throws IOException {
+    checkRoundTrip(StreamUtils.ENCODING_DEFLATE);
+  }
+
+  @Test
+  public void decodeMatchesContentEncodingIgnoringCase() throws IOException {
+    byte[] data = "{\"result\":\"SUCCESS\"}".getBytes("UTF-8");
+    byte[] encoded = StreamUtils.encode(data, StreamUtils.ENCODING_GZIP);
+    InputStream in = StreamUtils.decode(new ByteArrayInputStream(encoded), "GZIP");
+    assertEquals("{\"result\":\"SUCCESS\"}", StreamUtils.drainStream(in, -1));
+  }
+
+  @Test
+  public void decodePassesIdentityThrough() throws IOException {
+    InputStream in = new ByteArrayInputStream(new byte[1]);
+    assertSame(in, StreamUtils.decode(in, null));
+    assertSame(in, StreamUtils.decode(in, "identity"));
+  }
+
+  @Test(expected = IOException.class)
+  public void decodeRejectsUnknownEncoding() throws IOException {
+    StreamUtils.decode(new ByteArrayInputStream(new byte[1]), "br");
+  }
+
+  @Test(expected = IOException.class)
+  public void encodeRejectsUnknownEncoding() throws IOException {
+    StreamUtils.encode(new byte[1], "br");
+  }
+
+  private static void checkRoundTrip(String encoding) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      sb.append("{\"type\":\"candidate\",\"label\":").append(i).append("},");
+    }
+    byte[] data = sb.toString().getBytes("UTF-8");
+    byte[] encoded = StreamUtils.encode(data, encoding);
+    if (encoded.length >= data.length) {
+      fail(encoding + " did not compress: " + encoded.length + " >= " + data.length);
+    }
+    InputStream in = StreamUtils.decode(new ByteArrayInputStream(encoded), encoding);
+    assertArrayEquals(data, StreamUtils.drainStream(in, -1).getBytes("UTF-8"));
+
+    assertArrayEquals(new byte[0], decodeAll(StreamUtils.encode(new byte[0], encoding), encoding));
+  }
+
+  private static byte[] decodeAll(byte[] encoded, String encoding) throws IOException {
+    InputStream in = StreamUtils.decode(new ByteArrayInputStream(encoded), encoding);
+    return StreamUtils.drainStream(in, -1).getBytes("UTF-8");
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  // Returns at most |chunkSize| bytes per read and counts the reads.
+  private static class ChunkedInputStream extends InputStream {
+    private final byte[] data;
+    private final int chunkSize;
+    private int position;
+    int reads;
+
+    ChunkedInputStream(byte[] data, int chunkSize) {
+      this.data = data;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int read() {
+      reads++;
+      return (position < data.length) ? data[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      reads++;
+      if (position == data.length) {
+        return -1;
+      }
+      int count = Math.min(Math.min(length, chunkSize), data.length - position);
+      System.arraycopy(data, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+  }
+}